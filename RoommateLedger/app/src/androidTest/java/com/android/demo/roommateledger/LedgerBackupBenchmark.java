@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Times LedgerBackup against copying the database file, in both directions,
+ * on a database of LedgerGenerator's default size. The times and sizes are
+ * logged under this class's tag; the test fails if the backup is not smaller
+ * than the file or a restore loses rows.
+ */
+public class LedgerBackupBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "LedgerBackupBenchmark";
+
+    private File mDirectory;
+    private File mDatabase;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "backup_benchmark");
+        assertTrue(mDirectory.isDirectory() || mDirectory.mkdirs());
+        mDatabase = new File(mDirectory, "generated.db");
+        LedgerGenerator.Result generated =
+                new LedgerGenerator(new LedgerGenerator.Config()).generate(mDatabase);
+        Log.i(TAG, "Generated " + generated.rows + " rows in " + generated.millis + "ms");
+        mDb = SQLiteDatabase.openDatabase(mDatabase.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testBackupAndRestoreAgainstRawCopy() throws IOException {
+        long purchases = DatabaseUtils.queryNumEntries(mDb, Purchases.TABLE);
+        long payments = DatabaseUtils.queryNumEntries(mDb, Payments.TABLE);
+        LedgerBackup backup = new LedgerBackup(getContext(), mDb);
+        File backupFile = new File(mDirectory, LedgerBackup.BACKUP_FILE);
+        File rawCopy = new File(mDirectory, "raw-copy.db");
+
+        long rawBackupMillis = copy(mDatabase, rawCopy);
+        LedgerBackup.Result written = backup.backup(backupFile);
+        LedgerBackup.Result loaded = backup.restore(backupFile);
+        // Restoring a raw copy is writing the whole file back
+        long rawRestoreMillis = copy(rawCopy, new File(mDirectory, "raw-restore.db"));
+
+        Log.i(TAG, "Backup: " + written.bytes + " bytes in " + written.millis + "ms, raw copy " +
+                rawCopy.length() + " bytes in " + rawBackupMillis + "ms");
+        Log.i(TAG, "Restore: " + loaded.rows + " rows in " + loaded.millis + "ms, raw copy " +
+                rawRestoreMillis + "ms");
+
+        assertEquals(written.rows, loaded.rows);
+        assertEquals(purchases, DatabaseUtils.queryNumEntries(mDb, Purchases.TABLE));
+        assertEquals(payments, DatabaseUtils.queryNumEntries(mDb, Payments.TABLE));
+        assertTrue("Backup of " + written.bytes + " bytes is not smaller than the " +
+                rawCopy.length() + " byte database", written.bytes < rawCopy.length());
+    }
+
+    // Milliseconds taken to copy one file to another
+    private static long copy(File source, File target) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Guards the hot queries against losing their indexes. A database is
+ * populated by LedgerGenerator, and each query below is run through EXPLAIN
+ * QUERY PLAN against it, before and after ANALYZE. A plan fails the test if
+ * it scans a whole table it should search, builds an automatic index or sorts
+ * in a temp B-tree. Queries by primary key are left out.
+ * <p/>
+ * A query added to one of the adapters belongs here too, with the table it is
+ * allowed to scan if it lists a whole table on purpose.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+
+    // "SCAN TABLE purchases" before SQLite 3.36, "SCAN purchases" after
+    private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)(.*)$");
+
+    private static final PlanCheck[] CHECKS = {
+            new PlanCheck("HomeDbAdapter.LEDGERS_QUERY", HomeDbAdapter.LEDGERS_QUERY, "ledgers"),
+            new PlanCheck("HomeDbAdapter.MEMBERS_QUERY", HomeDbAdapter.MEMBERS_QUERY, null),
+            new PlanCheck("HomeDbAdapter.MEMBER_IDS_QUERY", HomeDbAdapter.MEMBER_IDS_QUERY, null),
+            new PlanCheck("LedgerDbAdapter.PURCHASES_QUERY", LedgerDbAdapter.PURCHASES_QUERY, null),
+            new PlanCheck("LedgerDbAdapter.MEMBER_ID_QUERY", LedgerDbAdapter.MEMBER_ID_QUERY, null),
+            new PlanCheck("PaymentsDbAdapter.PAYMENTS_QUERY", PaymentsDbAdapter.PAYMENTS_QUERY,
+                    null),
+            new PlanCheck("BalanceCalculator.LEDGER_ROWS_QUERY",
+                    BalanceCalculator.LEDGER_ROWS_QUERY, null),
+            new PlanCheck("RosterCache.ROSTER_QUERY", RosterCache.ROSTER_QUERY, null),
+            // Recomputes the invalidated totals of any ledger, so looks at every one
+            new PlanCheck("FxRatesDbAdapter.REFRESH_PURCHASE_TOTALS",
+                    FxRatesDbAdapter.REFRESH_PURCHASE_TOTALS, "ledgers")};
+
+    private static class PlanCheck {
+        final String name;
+        final String sql;
+        final String scanAllowed;
+
+        PlanCheck(String name, String sql, String scanAllowed) {
+            this.name = name;
+            this.sql = sql;
+            this.scanAllowed = scanAllowed;
+        }
+    }
+
+    private File mFile;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LedgerGenerator.Config config = new LedgerGenerator.Config();
+        config.purchases = 20000;
+        config.payments = 4000;
+        mFile = new File(getContext().getCacheDir(), "query_plan_test.db");
+        new LedgerGenerator(config).generate(mFile);
+        mDb = SQLiteDatabase.openDatabase(mFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mFile.delete();
+        new File(mFile.getPath() + "-journal").delete();
+        super.tearDown();
+    }
+
+    public void testPlansUseIndexes() {
+        assertPlans();
+    }
+
+    // MaintenanceService runs ANALYZE, which gives the planner other choices
+    public void testPlansUseIndexesAfterAnalyze() {
+        mDb.execSQL("ANALYZE");
+        assertPlans();
+    }
+
+    private void assertPlans() {
+        List<String> problems = new ArrayList<String>();
+        for (PlanCheck check : CHECKS) {
+            // Parameters are left unbound; the plan does not depend on their values
+            Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + check.sql, null);
+            try {
+                while (plan.moveToNext()) {
+                    String problem = checkStep(check, plan.getString(3));
+                    if (problem != null) {
+                        problems.add(check.name + ": " + problem);
+                    }
+                }
+            } finally {
+                plan.close();
+            }
+        }
+        assertTrue("Query plans regressed: " + problems, problems.isEmpty());
+    }
+
+    // Return what is wrong with one step of a plan, or null
+    private static String checkStep(PlanCheck check, String detail) {
+        if (detail.contains("TEMP B-TREE")) {
+            return detail;
+        }
+        if (detail.contains("AUTOMATIC")) {
+            return detail;
+        }
+        Matcher scan = SCAN.matcher(detail);
+        if (scan.matches() && !scan.group(2).contains(" USING ")
+                && !scan.group(1).equals(check.scanAllowed)) {
+            return detail;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+
+/**
+ * Launches Home and fails if its startup goes over the StartupTrace budgets,
+ * so work moved back onto the main thread before the first frame, or a slower
+ * ledger query, breaks the build instead of only logging a warning. Run it
+ * in a fresh process: StartupTrace only times the first launch.
+ */
+public class StartupTraceTest extends ActivityInstrumentationTestCase2<Home> {
+
+    // How long to wait for the ledgers before giving up on the trace
+    private static final long TIMEOUT_MS = 10 * StartupTrace.DATA_BUDGET_MS;
+    private static final long POLL_MS = 50;
+
+    public StartupTraceTest() {
+        super(Home.class);
+    }
+
+    public void testStartupWithinBudget() {
+        getActivity();
+        long[] times = readTimes();
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (times[1] == -1 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(POLL_MS);
+            times = readTimes();
+        }
+
+        assertTrue("First frame was not drawn", times[0] != -1);
+        assertTrue("Ledgers were not shown within " + TIMEOUT_MS + "ms", times[1] != -1);
+        assertTrue("Time to first frame " + times[0] + "ms is over its " +
+                StartupTrace.FIRST_FRAME_BUDGET_MS + "ms budget",
+                times[0] <= StartupTrace.FIRST_FRAME_BUDGET_MS);
+        assertTrue("Time to data " + times[1] + "ms is over its " +
+                StartupTrace.DATA_BUDGET_MS + "ms budget",
+                times[1] <= StartupTrace.DATA_BUDGET_MS);
+    }
+
+    // StartupTrace is written on the main thread, so read it there too
+    private long[] readTimes() {
+        final long[] times = new long[2];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                times[0] = StartupTrace.getTimeToFirstFrame();
+                times[1] = StartupTrace.getTimeToData();
+            }
+        });
+        return times;
+    }
+}
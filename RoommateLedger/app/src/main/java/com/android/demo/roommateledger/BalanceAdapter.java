@@ -84,7 +84,7 @@ public class BalanceAdapter extends BaseAdapter {
 
         viewElement = view.findViewById(R.id.balance_text);
         tv = (TextView)viewElement;
-        tv.setText(String.valueOf(roommate.balance));
+        tv.setText(roommate.balance + " " + roommate.currency);
 
         // return the final view object
         return view;
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes what members owe, for one ledger or for every person across all
+ * ledgers. Balances screens and the net position screen share it, so both
+ * show the same numbers. A ledger's purchases and payments are streamed from
+ * LEDGER_ROWS_QUERY into a BalanceVector by visitLedgerRows(), converted into
+ * the ledger's currency and rounded to cents row by row.
+ * <p/>
+ * A person is identified across ledgers by member name, ignoring case and
+ * surrounding blanks. Ledgers in different currencies are not converted into
+ * each other; a person gets one net position per currency.
+ * <p/>
+ * A ledger's balances are cached with the ledger version they were computed
+ * at, and only recomputed once the version moves on.
+ * <p/>
+ * The net positions run the ledgers' balance queries concurrently, on at most
+ * MAX_WORKERS threads. Each worker opens its own read-only connection, since
+ * the shared connection of DatabaseHelper would run them one at a time.
+ */
+public class BalanceCalculator {
+    static final int MAX_WORKERS = 4;
+    private static final int CACHED_LEDGERS = 32;
+
+    private static final LruCache<Long, VersionedBalances> sCache =
+            new LruCache<Long, VersionedBalances>(CACHED_LEDGERS);
+
+    // Purchases have no payee. ?1 is the ledger, ?2 the cents in one unit
+    static final String LEDGER_ROWS_QUERY =
+            "SELECT p.member_id AS payer, NULL AS payee, CAST(ROUND(" +
+                    FxRatesDbAdapter.convertSql("p.amount", "p.currency", "p.purchase_date",
+                            "l.currency") + " * ?2) AS INTEGER) AS cents " +
+                    "FROM purchases p JOIN ledgers l ON l._id = p.ledger_id " +
+                    "WHERE p.ledger_id = ?1 " +
+                    "UNION ALL " +
+                    "SELECT y.from_member_id, y.to_member_id, CAST(ROUND(" +
+                    FxRatesDbAdapter.convertSql("y.amount", "y.currency", "y.payment_date",
+                            "l.currency") + " * ?2) AS INTEGER) " +
+                    "FROM payments y JOIN ledgers l ON l._id = y.ledger_id " +
+                    "WHERE y.ledger_id = ?1";
+
+    private static final int CENTS = 100;
+
+    /**
+     * Receives the rows of a ledger from visitLedgerRows(), in cents of the
+     * ledger's currency.
+     */
+    public interface LedgerRows {
+        void addPurchase(long memberId, long cents);
+
+        void addPayment(long fromMemberId, long toMemberId, long cents);
+    }
+
+    /**
+     * What one person owes in one currency across the ledgers they are in.
+     */
+    public static class NetPosition extends Roommate {
+        /** The number of ledgers summed into the balance. */
+        public int ledgerCount;
+    }
+
+    private static class VersionedBalances {
+        final long version;
+        final ArrayList<Roommate> balances;
+
+        VersionedBalances(long version, ArrayList<Roommate> balances) {
+            this.version = version;
+            this.balances = balances;
+        }
+    }
+
+    private final Context mCtx;
+
+    public BalanceCalculator(Context ctx) {
+        mCtx = ctx;
+    }
+
+    /**
+     * Return the balance of every member of the given ledger, in the ledger's
+     * currency. Recurring purchases must have been materialized first, see
+     * BalancesDbAdapter.getBalances().
+     */
+    public static ArrayList<Roommate> computeLedger(SQLiteDatabase db, long ledger_id) {
+        RosterCache.Roster roster = RosterCache.getInstance().get(db, ledger_id);
+        String currency = CursorHelper.stringForQuery(db, "SELECT currency FROM ledgers " +
+                "WHERE _id = ?", new String[]{String.valueOf(ledger_id)},
+                FxRatesDbAdapter.DEFAULT_CURRENCY);
+        BalanceVector vector = new BalanceVector(roster);
+        visitLedgerRows(db, ledger_id, vector);
+
+        ArrayList<Roommate> balances = new ArrayList<Roommate>(vector.size());
+        List<String> names = roster.getNames();
+        for (int i = 0; i < vector.size(); i++) {
+            Roommate roommate = new Roommate();
+            roommate.id = (int) roster.getId(i);
+            roommate.name = names.get(i);
+            roommate.currency = currency;
+            roommate.balance = (double) vector.getBalance(i) / CENTS;
+            balances.add(roommate);
+        }
+        return balances;
+    }
+
+    /**
+     * Stream the purchases and payments of the given ledger into rows, without
+     * keeping them in memory.
+     *
+     * @return the number of rows visited
+     */
+    public static int visitLedgerRows(SQLiteDatabase db, long ledger_id, final LedgerRows rows) {
+        Cursor cursor = db.rawQuery(LEDGER_ROWS_QUERY,
+                new String[]{String.valueOf(ledger_id), String.valueOf(CENTS)});
+        return CursorHelper.forEach(cursor, new CursorHelper.RowVisitor() {
+            private int mPayer;
+            private int mPayee;
+            private int mCents;
+
+            @Override
+            protected void columns(Cursor cursor) {
+                mPayer = cursor.getColumnIndexOrThrow("payer");
+                mPayee = cursor.getColumnIndexOrThrow("payee");
+                mCents = cursor.getColumnIndexOrThrow("cents");
+            }
+
+            @Override
+            protected void visit(Cursor cursor) {
+                if (cursor.isNull(mPayee)) {
+                    rows.addPurchase(cursor.getLong(mPayer), cursor.getLong(mCents));
+                } else {
+                    rows.addPayment(cursor.getLong(mPayer), cursor.getLong(mPayee),
+                            cursor.getLong(mCents));
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the balances of the given ledger from the cache, computing them
+     * if the ledger's version changed since they were cached. The same list
+     * may be returned to several callers, so it must not be modified.
+     */
+    public static ArrayList<Roommate> getLedger(SQLiteDatabase db, long ledger_id) {
+        // Read before computing: a write in between leaves the entry with an
+        // older version than its balances, so it is only recomputed once more
+        long version = CursorHelper.longForQuery(db, LedgerDbAdapter.LEDGER_VERSION_QUERY,
+                new String[]{String.valueOf(ledger_id)}, -1);
+        VersionedBalances cached = sCache.get(ledger_id);
+        if (cached != null && cached.version == version) {
+            return cached.balances;
+        }
+        ArrayList<Roommate> balances = computeLedger(db, ledger_id);
+        sCache.put(ledger_id, new VersionedBalances(version, balances));
+        return balances;
+    }
+
+    /**
+     * Return the net position of every person across all ledgers, one entry
+     * per person and currency, sorted by name. Runs queries on several threads
+     * and waits for them, so call it off the main thread.
+     */
+    public List<NetPosition> computeNetPositions() {
+        SQLiteDatabase db = DatabaseHelper.getInstance(mCtx).getWritableDatabase();
+        // The only write; the workers below just read
+        new RecurringDbAdapter(mCtx).open().materialize(ChangeBus.ALL_LEDGERS,
+                RecurringDbAdapter.today());
+
+        List<Long> ledgerIds = CursorHelper.list(db.rawQuery("SELECT _id FROM ledgers", null),
+                new CursorHelper.RowMapper<Long>() {
+                    public Long map(Cursor cursor) {
+                        return cursor.getLong(0);
+                    }
+                });
+        int workers = Math.min(MAX_WORKERS, Math.min(ledgerIds.size(),
+                Runtime.getRuntime().availableProcessors()));
+        if (workers == 0) {
+            return new ArrayList<NetPosition>();
+        }
+
+        Queue<Long> pending = new ConcurrentLinkedQueue<Long>(ledgerIds);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Map<String, NetPosition> positions = new HashMap<String, NetPosition>();
+        try {
+            List<Future<Map<String, NetPosition>>> results =
+                    new ArrayList<Future<Map<String, NetPosition>>>();
+            for (int i = 0; i < workers; i++) {
+                results.add(pool.submit(new Worker(db.getPath(), pending)));
+            }
+            for (Future<Map<String, NetPosition>> result : results) {
+                merge(positions, result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted computing net positions", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<NetPosition> sorted = new ArrayList<NetPosition>(positions.values());
+        Collections.sort(sorted, new Comparator<NetPosition>() {
+            public int compare(NetPosition a, NetPosition b) {
+                int byName = a.name.compareToIgnoreCase(b.name);
+                return byName != 0 ? byName : a.currency.compareTo(b.currency);
+            }
+        });
+        return sorted;
+    }
+
+    // Sums the balances of the ledgers it takes from the queue until it is empty
+    private static class Worker implements Callable<Map<String, NetPosition>> {
+        private final String mPath;
+        private final Queue<Long> mPending;
+
+        Worker(String path, Queue<Long> pending) {
+            mPath = path;
+            mPending = pending;
+        }
+
+        public Map<String, NetPosition> call() {
+            Map<String, NetPosition> positions = new HashMap<String, NetPosition>();
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(mPath, null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                Long ledgerId;
+                while ((ledgerId = mPending.poll()) != null) {
+                    for (Roommate roommate : getLedger(db, ledgerId)) {
+                        add(positions, roommate.name, roommate.currency, roommate.balance, 1);
+                    }
+                }
+            } finally {
+                db.close();
+            }
+            return positions;
+        }
+    }
+
+    private static void merge(Map<String, NetPosition> positions,
+                              Map<String, NetPosition> partial) {
+        for (NetPosition position : partial.values()) {
+            add(positions, position.name, position.currency, position.balance,
+                    position.ledgerCount);
+        }
+    }
+
+    private static void add(Map<String, NetPosition> positions, String name, String currency,
+                            double balance, int ledgers) {
+        String key = name.trim().toLowerCase(Locale.US) + "\n" + currency;
+        NetPosition position = positions.get(key);
+        if (position == null) {
+            position = new NetPosition();
+            position.name = name.trim();
+            position.currency = currency;
+            positions.put(key, position);
+        }
+        position.balance += balance;
+        position.ledgerCount += ledgers;
+    }
+}
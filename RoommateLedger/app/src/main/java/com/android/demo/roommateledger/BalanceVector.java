@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+/**
+ * Accumulates the balances of one ledger's members in whole cents. Members are
+ * mapped to the dense positions of the ledger's Roster, and what each has
+ * spent and what each is owed are kept in primitive long arrays, so the rows
+ * of BalanceCalculator.visitLedgerRows() stream into it without creating an
+ * object per row. Rows of members missing from the roster are skipped.
+ * <p/>
+ * The ledger's spending is split evenly; the cents that do not divide go one
+ * each to the first members, so the balances always sum to zero.
+ */
+public final class BalanceVector implements BalanceCalculator.LedgerRows {
+    private final RosterCache.Roster mRoster;
+    private final long[] mSpent;
+    private final long[] mPayments;
+    private long mTotal;
+    private int mSkipped;
+
+    public BalanceVector(RosterCache.Roster roster) {
+        mRoster = roster;
+        mSpent = new long[roster.size()];
+        mPayments = new long[roster.size()];
+    }
+
+    public void addPurchase(long memberId, long cents) {
+        int position = mRoster.indexOf(memberId);
+        if (position == -1) {
+            mSkipped++;
+            return;
+        }
+        mSpent[position] += cents;
+        mTotal += cents;
+    }
+
+    // The payer owes that much less and the payee that much more
+    public void addPayment(long fromMemberId, long toMemberId, long cents) {
+        int from = mRoster.indexOf(fromMemberId);
+        int to = mRoster.indexOf(toMemberId);
+        if (from == -1 || to == -1) {
+            mSkipped++;
+            return;
+        }
+        mPayments[from] -= cents;
+        mPayments[to] += cents;
+    }
+
+    public int size() {
+        return mSpent.length;
+    }
+
+    /** Return the total spent by the ledger, in cents. */
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /** Return what the member at the given position spent, in cents. */
+    public long getSpent(int position) {
+        return mSpent[position];
+    }
+
+    /**
+     * Return what the member at the given position still owes, in cents;
+     * negative when the member is owed money.
+     */
+    public long getBalance(int position) {
+        int members = mSpent.length;
+        long share = mTotal / members;
+        long remainder = mTotal - share * members;
+        if (position < Math.abs(remainder)) {
+            share += Long.signum(remainder);
+        }
+        return share - mSpent[position] + mPayments[position];
+    }
+
+    /** Return the number of rows skipped for naming members not in the roster. */
+    public int getSkipped() {
+        return mSkipped;
+    }
+}
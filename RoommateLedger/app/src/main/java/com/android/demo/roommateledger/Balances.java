@@ -18,7 +18,6 @@ package com.android.demo.roommateledger;
 
 import android.app.ListActivity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -31,15 +30,10 @@ import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 
 public class Balances extends ListActivity {
     private BalancesDbAdapter mDbHelper;
-    private LedgerDbAdapter mLedgerDbHelper;
     private Long mLedgerId;
-    private Map<Integer, Roommate> mRoommates;
-    private List<Payment> mPayments;
 
     /** Called when the activity is first created. */
     @Override
@@ -55,27 +49,13 @@ public class Balances extends ListActivity {
         setContentView(R.layout.balance_list);
         mDbHelper = new BalancesDbAdapter(this);
         mDbHelper.open();
-        mLedgerDbHelper = new LedgerDbAdapter(this);
-        mLedgerDbHelper.open();
         fillData();
         registerForContextMenu(getListView());
     }
 
     private void fillData() {
-        int numRoommates = mDbHelper.getRoommateCount(mLedgerId);
-        double purchaseTotal = mLedgerDbHelper.fetchTotalOfPurchases(mLedgerId);
-        double expectedContribution = purchaseTotal / numRoommates;
-        mRoommates = mDbHelper.getAllRoommates(mLedgerId);
-        for (int id : mRoommates.keySet()) {
-            mRoommates.get(id).balance = expectedContribution - mDbHelper.getTotalOfPurchases(id);
-        }
-        mPayments = mDbHelper.getAllPayments(mLedgerId);
-        for (Payment payment : mPayments) {
-            mRoommates.get(payment.from).balance = mRoommates.get(payment.from).balance - payment.amount;
-            mRoommates.get(payment.to).balance = mRoommates.get(payment.to).balance + payment.amount;
-        }
-        ArrayList<Roommate> roommates = new ArrayList<Roommate>();
-        roommates.addAll(mRoommates.values());
+        // Balances are summed and converted into the ledger's currency in SQL
+        ArrayList<Roommate> roommates = mDbHelper.getBalances(mLedgerId);
         BalanceAdapter adapter = new BalanceAdapter(this, R.layout.balance_row, roommates);
         setListAdapter(adapter);
     }
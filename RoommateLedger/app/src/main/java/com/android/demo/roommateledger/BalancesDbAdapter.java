@@ -19,13 +19,15 @@ package com.android.demo.roommateledger;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
  * Simple purchases database access helper class. Defines the basic CRUD operations
@@ -38,16 +40,22 @@ import java.util.Map;
  * recommended).
  */
 public class BalancesDbAdapter {
-    private static final String MEMBERS_DATABASE_TABLE = "members";
-    private static final String PURCHASES_DATABASE_TABLE = "purchases";
-    private static final String PAYMENTS_DATABASE_TABLE = "payments";
-    public static final String KEY_AMOUNT = "amount";
-    private static final String KEY_MEMBER_ID = "_id";
-    private static final String KEY_MEMBER_NAME = "member";
-    public static final String KEY_FROM_MEMBER_ID = "from_member_id";
-    public static final String KEY_TO_MEMBER_ID = "to_member_id";
+    private static final String MEMBERS_DATABASE_TABLE = Members.TABLE;
+    private static final String PURCHASES_DATABASE_TABLE = Purchases.TABLE;
+    private static final String PAYMENTS_DATABASE_TABLE = Payments.TABLE;
+    public static final String KEY_AMOUNT = Payments.AMOUNT;
+    private static final String KEY_MEMBER_ID = Members.ID;
+    private static final String KEY_MEMBER_NAME = Members.MEMBER;
+    public static final String KEY_FROM_MEMBER_ID = Payments.FROM_MEMBER_ID;
+    public static final String KEY_TO_MEMBER_ID = Payments.TO_MEMBER_ID;
+    public static final String KEY_BALANCE = "balance";
+    public static final String KEY_CURRENCY = "currency";
+
+    private static final String[] BALANCES_COLUMNS =
+            {KEY_MEMBER_ID, KEY_MEMBER_NAME, KEY_CURRENCY, KEY_BALANCE};
 
     private LedgerDbAdapter mLedgerDbHelper;
+    private RecurringDbAdapter mRecurringDbHelper;
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
     private final Context mCtx;
@@ -76,6 +84,7 @@ public class BalancesDbAdapter {
     public BalancesDbAdapter open() throws SQLException {
         mDbHelper = DatabaseHelper.getInstance(mCtx);
         mDb = mDbHelper.getWritableDatabase();
+        mRecurringDbHelper = new RecurringDbAdapter(mCtx).open();
         return this;
     }
 
@@ -86,57 +95,50 @@ public class BalancesDbAdapter {
 
 
     /**
-     * Return a Cursor over the list of roommates for the given ledger_id in the database
+     * Return the number of members of the given ledger, from the cached roster
      *
-     * @return Cursor over all roommates
+     * @return number of members
      */
     public int getRoommateCount(long ledger_id) {
-        return mLedgerDbHelper.fetchAllRoommates(ledger_id).size();
+        return mLedgerDbHelper.fetchRoster(ledger_id).size();
     }
 
-    public Map<Integer, Roommate> getAllRoommates(long ledger_id) {
-        Cursor mCursor =
-                mDb.query(MEMBERS_DATABASE_TABLE, new String[]{KEY_MEMBER_ID, KEY_MEMBER_NAME},
-                        "ledger_id = ?",
-                        new String[]{String.valueOf(ledger_id)}, null, null, null);
-        Map<Integer, Roommate> roommates = new HashMap<Integer, Roommate>();
-        mCursor.moveToPosition(-1);
-        while (mCursor.moveToNext()) {
-            Roommate roommate = new Roommate();
-            int id = (mCursor.getInt((mCursor.getColumnIndexOrThrow(BalancesDbAdapter.KEY_MEMBER_ID))));
-            roommate.id = id;
-            roommate.name = (mCursor.getString((mCursor.getColumnIndexOrThrow(BalancesDbAdapter.KEY_MEMBER_NAME))));
-            roommates.put(id, roommate);
+    /**
+     * Return a Cursor over every member of the given ledger with the amount that
+     * member still needs to pay. The balances are those of getBalances(), so
+     * they agree to the cent with the Balances screen. Balances are in the
+     * ledger's currency.
+     *
+     * @param ledger_id ID of ledger in which to compute balances
+     * @return Cursor over _id, member, currency and balance
+     */
+    public Cursor fetchBalances(long ledger_id) {
+        ArrayList<Roommate> balances = getBalances(ledger_id);
+        MatrixCursor cursor = new MatrixCursor(BALANCES_COLUMNS, balances.size());
+        for (Roommate roommate : balances) {
+            cursor.addRow(new Object[]{roommate.id, roommate.name, roommate.currency,
+                    roommate.balance});
         }
-        return roommates;
+        return cursor;
     }
 
-    public double getTotalOfPurchases(int member_id) {
-        Cursor mCursor =
-                mDb.query(PURCHASES_DATABASE_TABLE, new String[]{KEY_AMOUNT}, "member_id = ?",
-                        new String[]{String.valueOf(member_id)}, null, null, null);
-        double result = 0;
-        mCursor.moveToPosition(-1);
-        while (mCursor.moveToNext()) {
-            result += (mCursor.getDouble((mCursor.getColumnIndexOrThrow(BalancesDbAdapter.KEY_AMOUNT))));
-        }
-        return result;
+    /**
+     * Return the balance of every member of the given ledger from
+     * BalanceCalculator, which only recomputes them when the ledger's version
+     * changed since. Balances are in the ledger's currency.
+     *
+     * @param ledger_id ID of ledger in which to compute balances
+     * @return the members with their balances, not to be modified
+     */
+    public ArrayList<Roommate> getBalances(long ledger_id) {
+        mRecurringDbHelper.materialize(ledger_id, RecurringDbAdapter.today());
+        return BalanceCalculator.getLedger(mDb, ledger_id);
     }
 
-    public List<Payment> getAllPayments(long ledger_id) {
-        Cursor mCursor =
-                mDb.query(PAYMENTS_DATABASE_TABLE, new String[]{KEY_FROM_MEMBER_ID, KEY_TO_MEMBER_ID, KEY_AMOUNT},
-                        "ledger_id = ?",
-                        new String[]{String.valueOf(ledger_id)}, null, null, null);
-        List<Payment> payments = new ArrayList<Payment>();
-        mCursor.moveToPosition(-1);
-        while (mCursor.moveToNext()) {
-            Payment payment = new Payment();
-            payment.from = (mCursor.getInt((mCursor.getColumnIndexOrThrow(BalancesDbAdapter.KEY_FROM_MEMBER_ID))));
-            payment.to = (mCursor.getInt((mCursor.getColumnIndexOrThrow(BalancesDbAdapter.KEY_TO_MEMBER_ID))));
-            payment.amount = (mCursor.getDouble((mCursor.getColumnIndexOrThrow(BalancesDbAdapter.KEY_AMOUNT))));
-            payments.add(payment);
-        }
-        return payments;
+    /**
+     * Return the version of the given ledger, see LedgerDbAdapter.fetchLedgerVersion().
+     */
+    public long fetchLedgerVersion(long ledger_id) {
+        return mLedgerDbHelper.fetchLedgerVersion(ledger_id);
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.AlertDialog;
+import android.app.ListActivity;
+import android.content.DialogInterface;
+import android.database.Cursor;
+import android.view.ActionMode;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.AbsListView;
+import android.widget.Toast;
+
+import java.util.List;
+
+/**
+ * Multi-select mode of the purchase and payment lists, started by long
+ * pressing a row. The checked rows are deleted or moved to another ledger with
+ * a single adapter call, which runs in one transaction and publishes one
+ * change, so the list is requeried once however many rows were touched.
+ * Actions on a single row are offered while exactly one row is checked.
+ */
+abstract class BulkEditMode implements AbsListView.MultiChoiceModeListener {
+    private static final int DELETE_ID = Menu.FIRST;
+    private static final int MOVE_ID = Menu.FIRST + 1;
+    /** The first menu item id free for single row actions. */
+    static final int FIRST_ROW_ID = Menu.FIRST + 2;
+
+    private final ListActivity mActivity;
+    private final LedgerDbAdapter mLedgers;
+    private final long mLedgerId;
+
+    BulkEditMode(ListActivity activity, LedgerDbAdapter ledgers, long ledgerId) {
+        mActivity = activity;
+        mLedgers = ledgers;
+        mLedgerId = ledgerId;
+    }
+
+    /** Delete the given rows, returning how many were deleted. */
+    protected abstract int delete(long[] ids);
+
+    /** Move the given rows to another ledger, returning how many were moved. */
+    protected abstract int move(long[] ids, long toLedgerId);
+
+    /** Add the actions offered when a single row is checked. */
+    protected void addRowItems(Menu menu) {
+    }
+
+    /** Run a single row action; the mode ends afterwards. */
+    protected void onRowItemClicked(int itemId, long id) {
+    }
+
+    public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+        return true;
+    }
+
+    public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+        menu.clear();
+        menu.add(0, DELETE_ID, 0, R.string.delete_selected);
+        menu.add(0, MOVE_ID, 0, R.string.move_selected);
+        if (mActivity.getListView().getCheckedItemCount() == 1) {
+            addRowItems(menu);
+        }
+        return true;
+    }
+
+    public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                          boolean checked) {
+        mode.setTitle(mActivity.getString(R.string.selected_count,
+                mActivity.getListView().getCheckedItemCount()));
+        mode.invalidate();
+    }
+
+    public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+        long[] ids = mActivity.getListView().getCheckedItemIds();
+        switch (item.getItemId()) {
+            case DELETE_ID:
+                int deleted = delete(ids);
+                Toast.makeText(mActivity, mActivity.getString(R.string.deleted_count, deleted),
+                        Toast.LENGTH_SHORT).show();
+                mode.finish();
+                return true;
+            case MOVE_ID:
+                chooseLedger(mode, ids);
+                return true;
+            default:
+                if (ids.length == 1) {
+                    onRowItemClicked(item.getItemId(), ids[0]);
+                }
+                mode.finish();
+                return true;
+        }
+    }
+
+    public void onDestroyActionMode(ActionMode mode) {
+    }
+
+    // Ask which ledger to move the rows to
+    private void chooseLedger(final ActionMode mode, final long[] ids) {
+        List<Object[]> ledgers = CursorHelper.list(mLedgers.fetchOtherLedgers(mLedgerId),
+                new CursorHelper.RowMapper<Object[]>() {
+                    public Object[] map(Cursor cursor) {
+                        return new Object[]{cursor.getLong(0), cursor.getString(1)};
+                    }
+                });
+        if (ledgers.isEmpty()) {
+            Toast.makeText(mActivity, R.string.no_other_ledgers, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final long[] ledgerIds = new long[ledgers.size()];
+        String[] titles = new String[ledgers.size()];
+        for (int i = 0; i < ledgerIds.length; i++) {
+            ledgerIds[i] = (Long) ledgers.get(i)[0];
+            titles[i] = (String) ledgers.get(i)[1];
+        }
+        new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.move_to)
+                .setItems(titles, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        int moved = move(ids, ledgerIds[which]);
+                        // Rows naming members the other ledger lacks stay behind
+                        String message = moved == ids.length
+                                ? mActivity.getString(R.string.moved_count, moved)
+                                : mActivity.getString(R.string.moved_partial, moved, ids.length);
+                        Toast.makeText(mActivity, message, Toast.LENGTH_LONG).show();
+                        mode.finish();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+}
@@ -0,0 +1,150 @@
+package com.android.demo.roommateledger;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Process wide publisher of fine grained data changes. The database adapters
+ * publish a Change (ledger id, table, row id) after every write that actually
+ * modified something, and screens subscribe to the ledgers and tables they
+ * display instead of refetching everything whenever they regain focus.
+ * <p/>
+ * Changes are delivered on the main thread. All changes published for a
+ * listener before its delivery runs are handed over in one callback, so a
+ * burst of writes results in a single reload.
+ */
+public class ChangeBus {
+    public static final long ALL_LEDGERS = -1;
+    public static final long ANY_ROW = -1;
+
+    public static final String TABLE_LEDGERS = LedgerContract.Ledgers.TABLE;
+    public static final String TABLE_MEMBERS = LedgerContract.Members.TABLE;
+    public static final String TABLE_PURCHASES = LedgerContract.Purchases.TABLE;
+    public static final String TABLE_PAYMENTS = LedgerContract.Payments.TABLE;
+    public static final String TABLE_FX_RATES = LedgerContract.FxRates.TABLE;
+
+    private static ChangeBus sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Subscription> mSubscriptions = new ArrayList<Subscription>();
+
+    /**
+     * A single row level change. rowId is the id of the changed row in table.
+     */
+    public static class Change {
+        public final long ledgerId;
+        public final String table;
+        public final long rowId;
+
+        public Change(long ledgerId, String table, long rowId) {
+            this.ledgerId = ledgerId;
+            this.table = table;
+            this.rowId = rowId;
+        }
+
+        @Override
+        public String toString() {
+            return table + "/" + rowId + " in ledger " + ledgerId;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread with every change published since the last
+         * call that matches this listener's subscription.
+         */
+        void onDataChanged(List<Change> changes);
+    }
+
+    private class Subscription implements Runnable {
+        final Listener listener;
+        final long ledgerId;
+        final Set<String> tables;
+        List<Change> pending = new ArrayList<Change>();
+        boolean scheduled;
+
+        Subscription(Listener listener, long ledgerId, Set<String> tables) {
+            this.listener = listener;
+            this.ledgerId = ledgerId;
+            this.tables = tables;
+        }
+
+        boolean matches(Change change) {
+            return (ledgerId == ALL_LEDGERS || change.ledgerId == ALL_LEDGERS
+                    || ledgerId == change.ledgerId) && tables.contains(change.table);
+        }
+
+        public void run() {
+            List<Change> changes;
+            synchronized (ChangeBus.this) {
+                if (!mSubscriptions.contains(this)) {
+                    return;
+                }
+                changes = pending;
+                pending = new ArrayList<Change>();
+                scheduled = false;
+            }
+            if (!changes.isEmpty()) {
+                listener.onDataChanged(changes);
+            }
+        }
+    }
+
+    public static synchronized ChangeBus getInstance() {
+        if (sInstance == null) {
+            sInstance = new ChangeBus();
+        }
+        return sInstance;
+    }
+
+    private ChangeBus() {
+    }
+
+    /**
+     * Subscribe a listener to changes of the given tables of one ledger.
+     *
+     * @param listener the listener to notify
+     * @param ledgerId the ledger to watch, or ALL_LEDGERS
+     * @param tables   the tables to watch
+     */
+    public synchronized void subscribe(Listener listener, long ledgerId, String... tables) {
+        mSubscriptions.add(new Subscription(listener, ledgerId,
+                new HashSet<String>(Arrays.asList(tables))));
+    }
+
+    public synchronized void unsubscribe(Listener listener) {
+        for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+            Subscription subscription = mSubscriptions.get(i);
+            if (subscription.listener == listener) {
+                mHandler.removeCallbacks(subscription);
+                mSubscriptions.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Publish a change. May be called from any thread.
+     *
+     * @param ledgerId the ledger the changed row belongs to, or ALL_LEDGERS
+     * @param table    the table that was written
+     * @param rowId    the id of the changed row, or ANY_ROW when several rows changed
+     */
+    public synchronized void publish(long ledgerId, String table, long rowId) {
+        Change change = new Change(ledgerId, table, rowId);
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.matches(change)) {
+                subscription.pending.add(change);
+                if (!subscription.scheduled) {
+                    subscription.scheduled = true;
+                    mHandler.post(subscription);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Query helpers that map or visit the rows of a cursor and always close it, so
+ * callers never hold a CursorWindow past the call that needed it.
+ * <p/>
+ * Debug builds open the database with a TrackingFactory, whose cursors remember
+ * where they were created and log that stack if they are finalized unclosed.
+ */
+public final class CursorHelper {
+    private static final String TAG = "CursorHelper";
+
+    /**
+     * Maps the row the cursor is positioned at.
+     */
+    public interface RowMapper<T> {
+        T map(Cursor cursor);
+    }
+
+    /**
+     * Receives the rows of a cursor one at a time, for callers that need a
+     * single pass and should not hold every row in a list.
+     */
+    public abstract static class RowVisitor {
+        /**
+         * Look up the column indexes the visitor reads. Called once, before
+         * the first row, even if the cursor is empty.
+         */
+        protected void columns(Cursor cursor) {
+        }
+
+        /**
+         * Read the row the cursor is positioned at.
+         */
+        protected abstract void visit(Cursor cursor);
+    }
+
+    /**
+     * A RowMapper that looks up its column indexes once per cursor instead of
+     * once per row. It keeps the indexes of the last cursor it mapped, so an
+     * instance must not be shared between threads.
+     */
+    public abstract static class ColumnMapper<T> implements RowMapper<T> {
+        private Cursor mCursor;
+
+        public final T map(Cursor cursor) {
+            if (cursor != mCursor) {
+                columns(cursor);
+                mCursor = cursor;
+            }
+            return read(cursor);
+        }
+
+        /**
+         * Look up the column indexes read() uses.
+         */
+        protected abstract void columns(Cursor cursor);
+
+        /**
+         * Map the row the cursor is positioned at.
+         */
+        protected abstract T read(Cursor cursor);
+    }
+
+    private CursorHelper() {
+    }
+
+    /**
+     * Pass every row of the cursor to the visitor, then close it.
+     *
+     * @return the number of rows visited
+     */
+    public static int forEach(Cursor cursor, RowVisitor visitor) {
+        try {
+            visitor.columns(cursor);
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                visitor.visit(cursor);
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Map every row of the cursor, then close it.
+     */
+    public static <T> List<T> list(Cursor cursor, RowMapper<T> mapper) {
+        try {
+            List<T> rows = new ArrayList<T>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                rows.add(mapper.map(cursor));
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Map the first row of the cursor, then close it.
+     *
+     * @return the mapped row, or defaultValue if the cursor is empty
+     */
+    public static <T> T first(Cursor cursor, RowMapper<T> mapper, T defaultValue) {
+        try {
+            return cursor.moveToFirst() ? mapper.map(cursor) : defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Run the query and return the first column of its first row as a long.
+     *
+     * @return the value, or defaultValue if the query returned no rows
+     */
+    public static long longForQuery(SQLiteDatabase db, String sql, String[] args,
+                                    long defaultValue) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Run the query and return the first column of its first row as a string.
+     *
+     * @return the value, or defaultValue if the query returned no rows
+     */
+    public static String stringForQuery(SQLiteDatabase db, String sql, String[] args,
+                                        String defaultValue) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the number of tracked cursors that are open. Always 0 unless the
+     * database was opened with a TrackingFactory.
+     */
+    public static int getOpenCursorCount() {
+        return TrackingFactory.sOpen.get();
+    }
+
+    /**
+     * Creates cursors that report leaks with the stack that created them.
+     */
+    static class TrackingFactory implements SQLiteDatabase.CursorFactory {
+        static final AtomicInteger sOpen = new AtomicInteger();
+
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+                                SQLiteQuery query) {
+            return new TrackedCursor(driver, editTable, query);
+        }
+    }
+
+    private static class TrackedCursor extends SQLiteCursor {
+        private final Throwable mCreated;
+        private boolean mClosed;
+
+        TrackedCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            super(driver, editTable, query);
+            mCreated = new Throwable("Cursor created here");
+            TrackingFactory.sOpen.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+            TrackingFactory.sOpen.decrementAndGet();
+        }
+
+        @Override
+        protected void finalize() {
+            try {
+                if (!mClosed) {
+                    Log.w(TAG, "Cursor leaked, " + TrackingFactory.sOpen.get() +
+                            " tracked cursors still open", mCreated);
+                    close();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
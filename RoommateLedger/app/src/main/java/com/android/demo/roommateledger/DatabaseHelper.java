@@ -1,10 +1,29 @@
 package com.android.demo.roommateledger;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.demo.roommateledger.LedgerContract.FxRates;
+import com.android.demo.roommateledger.LedgerContract.Ledgers;
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Oplog;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+import com.android.demo.roommateledger.LedgerContract.RecurringPurchases;
+import com.android.demo.roommateledger.LedgerContract.SnapshotRows;
+import com.android.demo.roommateledger.LedgerContract.Snapshots;
+import com.android.demo.roommateledger.LedgerContract.SpendingRollups;
+import com.android.demo.roommateledger.LedgerContract.SyncPeers;
+import com.android.demo.roommateledger.LedgerContract.SyncState;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Derek on 11/13/2014.
  */
@@ -12,32 +31,415 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static DatabaseHelper sInstance;
 
     private static final String DATABASE_NAME = "data";
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 15;
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
     private static final String TAG = "DatabaseHelper";
 
+    // Column definitions shared by several tables
+    private static final String ID_COLUMN = "_id integer primary key autoincrement, ";
+    private static final String GID_DEFAULT =
+            " text not null default (lower(hex(randomblob(16)))), ";
+
     private static final String LEDGERS_TABLE_CREATE =
-            "create table ledgers (_id integer primary key autoincrement, "
-                    + "title text not null, description text not null);";
+            "create table " + Ledgers.TABLE + " (" + ID_COLUMN
+                    + Ledgers.TITLE + " text not null, " + Ledgers.DESCRIPTION + " text not null, "
+                    + Ledgers.GID + GID_DEFAULT
+                    + Ledgers.CURRENCY + " text not null default 'USD', "
+                    + Ledgers.MEMBER_COUNT + " integer not null default 0, "
+                    + Ledgers.ROSTER_VERSION + " integer not null default 0, "
+                    + Ledgers.VERSION + " integer not null default 0, "
+                    + Ledgers.PURCHASE_TOTAL + " decimal (19,4) default 0, "
+                    + Ledgers.LAST_ACTIVITY + " text not null default (datetime('now')));";
 
     private static final String MEMBERS_TABLE_CREATE =
-            "create table members (_id integer primary key autoincrement, "
-                    + "ledger_id integer not null, member text not null, "
-                    + "FOREIGN KEY (ledger_id) REFERENCES ledgers(_id));";
+            "create table " + Members.TABLE + " (" + ID_COLUMN
+                    + Members.LEDGER_ID + " integer not null, "
+                    + Members.MEMBER + " text not null, "
+                    + "FOREIGN KEY (" + Members.LEDGER_ID + ") REFERENCES " + Ledgers.TABLE
+                    + "(_id) ON DELETE CASCADE);";
 
     private static final String PURCHASES_TABLE_CREATE =
-            "create table purchases (_id integer primary key autoincrement, " +
-                    "ledger_id integer not null, member_id integer not null, title text not null, " +
-                    "description text not null, amount decimal (19,4) not null, " +
-                    "FOREIGN KEY (ledger_id) REFERENCES ledgers(_id), " +
-                    "FOREIGN KEY (member_id) REFERENCES ledgers(_id));";
+            "create table " + Purchases.TABLE + " (" + ID_COLUMN +
+                    Purchases.LEDGER_ID + " integer not null, " +
+                    Purchases.MEMBER_ID + " integer not null, " +
+                    Purchases.TITLE + " text not null, " +
+                    Purchases.DESCRIPTION + " text not null, " +
+                    Purchases.AMOUNT + " decimal (19,4) not null, " +
+                    Purchases.CURRENCY + " text not null default 'USD', " +
+                    Purchases.CATEGORY + " text not null default '', " +
+                    Purchases.GID + GID_DEFAULT +
+                    Purchases.PURCHASE_DATE + " text not null default (date('now')), " +
+                    Purchases.RECURRING_ID + " integer, " + Purchases.RECEIPT + " text, " +
+                    "FOREIGN KEY (" + Purchases.LEDGER_ID + ") REFERENCES " + Ledgers.TABLE +
+                    "(_id) ON DELETE CASCADE, " +
+                    "FOREIGN KEY (" + Purchases.MEMBER_ID + ") REFERENCES " + Members.TABLE +
+                    "(_id) ON DELETE CASCADE, " +
+                    "FOREIGN KEY (" + Purchases.RECURRING_ID + ") REFERENCES " +
+                    RecurringPurchases.TABLE + "(_id) ON DELETE SET NULL);";
 
     private static final String PAYMENTS_TABLE_CREATE =
-            "create table payments (_id integer primary key autoincrement, " +
-                    "ledger_id integer not null, title text not null, " +
-                    "description text not null, from_member_id integer not null, " +
-                    "to_member_id integer not null, amount decimal (19,4) not null, " +
-                    "FOREIGN KEY (ledger_id) REFERENCES ledgers(_id), " +
-                    "FOREIGN KEY (from_member_id) REFERENCES members(_id));";
+            "create table " + Payments.TABLE + " (" + ID_COLUMN +
+                    Payments.LEDGER_ID + " integer not null, " +
+                    Payments.TITLE + " text not null, " +
+                    Payments.DESCRIPTION + " text not null, " +
+                    Payments.FROM_MEMBER_ID + " integer not null, " +
+                    Payments.TO_MEMBER_ID + " integer not null, " +
+                    Payments.AMOUNT + " decimal (19,4) not null, " +
+                    Payments.CURRENCY + " text not null default 'USD', " +
+                    Payments.PAYMENT_DATE + " text not null default (date('now')), " +
+                    Payments.GID + GID_DEFAULT +
+                    "FOREIGN KEY (" + Payments.LEDGER_ID + ") REFERENCES " + Ledgers.TABLE +
+                    "(_id) ON DELETE CASCADE, " +
+                    "FOREIGN KEY (" + Payments.FROM_MEMBER_ID + ") REFERENCES " + Members.TABLE +
+                    "(_id) ON DELETE CASCADE, " +
+                    "FOREIGN KEY (" + Payments.TO_MEMBER_ID + ") REFERENCES " + Members.TABLE +
+                    "(_id) ON DELETE CASCADE);";
+
+    /**
+     * Rules for purchases that repeat every period from start_date until end_date
+     * (or forever when end_date is null). Occurrences are only written to purchases
+     * when a read needs them; occurrences counts how many already were and
+     * next_date is the date of the next one.
+     */
+    private static final String RECURRING_PURCHASES_TABLE_CREATE =
+            "create table " + RecurringPurchases.TABLE + " (" + ID_COLUMN +
+                    RecurringPurchases.LEDGER_ID + " integer not null, " +
+                    RecurringPurchases.MEMBER_ID + " integer not null, " +
+                    RecurringPurchases.TITLE + " text not null, " +
+                    RecurringPurchases.DESCRIPTION + " text not null, " +
+                    RecurringPurchases.AMOUNT + " decimal (19,4) not null, " +
+                    RecurringPurchases.CURRENCY + " text not null default 'USD', " +
+                    RecurringPurchases.CATEGORY + " text not null default '', " +
+                    RecurringPurchases.PERIOD + " text not null, " +
+                    RecurringPurchases.START_DATE + " text not null, " +
+                    RecurringPurchases.END_DATE + " text, " +
+                    RecurringPurchases.OCCURRENCES + " integer not null default 0, " +
+                    RecurringPurchases.NEXT_DATE + " text not null, " +
+                    "FOREIGN KEY (" + RecurringPurchases.LEDGER_ID + ") REFERENCES " +
+                    Ledgers.TABLE + "(_id) ON DELETE CASCADE, " +
+                    "FOREIGN KEY (" + RecurringPurchases.MEMBER_ID + ") REFERENCES " +
+                    Members.TABLE + "(_id) ON DELETE CASCADE);";
+
+    /*
+     * The summaries the triggers keep row by row, recomputed in one pass after a
+     * load. Purchase totals are left NULL and refreshed on the next read.
+     */
+    private static final String LEDGER_SUMMARIES_UPDATE =
+            "UPDATE ledgers SET member_count = " +
+                    "(SELECT COUNT(*) FROM members m WHERE m.ledger_id = ledgers._id), " +
+                    "purchase_total = NULL, roster_version = roster_version + 1, " +
+                    "version = version + 1";
+
+    private static final String SPENDING_ROLLUPS_INSERT =
+            "INSERT INTO spending_rollups (ledger_id, member_id, month, category, currency, " +
+                    "total, purchase_count) SELECT ledger_id, member_id, " +
+                    "strftime('%Y-%m', purchase_date), category, currency, SUM(amount), COUNT(*) " +
+                    "FROM purchases GROUP BY 1, 2, 3, 4, 5";
+
+    /*
+     * Rows of a version 2 to 10 database whose ledger or member is gone, left
+     * behind before deletes cascaded. Ordered so each sweep sees the previous ones.
+     */
+    private static final String[] ORPHAN_SWEEPS = {
+            "DELETE FROM members WHERE ledger_id NOT IN (SELECT _id FROM ledgers)",
+            "DELETE FROM recurring_purchases WHERE ledger_id NOT IN (SELECT _id FROM ledgers) " +
+                    "OR member_id NOT IN (SELECT _id FROM members)",
+            "DELETE FROM purchases WHERE ledger_id NOT IN (SELECT _id FROM ledgers) " +
+                    "OR member_id NOT IN (SELECT _id FROM members)",
+            "UPDATE purchases SET recurring_id = NULL " +
+                    "WHERE recurring_id NOT IN (SELECT _id FROM recurring_purchases)",
+            "DELETE FROM payments WHERE ledger_id NOT IN (SELECT _id FROM ledgers) " +
+                    "OR from_member_id NOT IN (SELECT _id FROM members) " +
+                    "OR to_member_id NOT IN (SELECT _id FROM members)"};
+
+    /*
+     * Every ledger, purchase and payment has a random gid that names it on every
+     * device, so operations exchanged by sync can find the row they apply to.
+     */
+    private static final String LEDGERS_GID_INDEX_CREATE =
+            "create unique index ledgers_gid on ledgers (gid);";
+
+    /*
+     * Rows of one ledger, and the rows of one member for balances and cascading
+     * deletes. An index on ledger_id alone also returns members in _id order,
+     * so rosters are read without a sort. QueryPlanTest checks they are used.
+     */
+    private static final String MEMBERS_LEDGER_INDEX_CREATE =
+            "create index members_ledger on members (ledger_id);";
+
+    private static final String PURCHASES_LEDGER_INDEX_CREATE =
+            "create index purchases_ledger on purchases (ledger_id);";
+
+    private static final String PURCHASES_MEMBER_INDEX_CREATE =
+            "create index purchases_member on purchases (member_id);";
+
+    private static final String PURCHASES_RECURRING_INDEX_CREATE =
+            "create index purchases_recurring on purchases (recurring_id);";
+
+    private static final String PAYMENTS_LEDGER_INDEX_CREATE =
+            "create index payments_ledger on payments (ledger_id);";
+
+    private static final String PAYMENTS_FROM_INDEX_CREATE =
+            "create index payments_from on payments (from_member_id);";
+
+    private static final String PAYMENTS_TO_INDEX_CREATE =
+            "create index payments_to on payments (to_member_id);";
+
+    // Added in version 12, when members_ledger also changed
+    private static final String[] VERSION_12_INDEXES = {"members_ledger",
+            "purchases_ledger", "purchases_member", "purchases_recurring", "payments_ledger",
+            "payments_from", "payments_to"};
+
+    private static final String PURCHASES_GID_INDEX_CREATE =
+            "create unique index purchases_gid on purchases (gid);";
+
+    private static final String PAYMENTS_GID_INDEX_CREATE =
+            "create unique index payments_gid on payments (gid);";
+
+    /**
+     * Append-only log of every write made through the adapters, and of the writes
+     * received from other devices. Operations are numbered per device by seq and
+     * ordered across devices by their lamport clock. See OplogDbAdapter.
+     * Purchases and payments are event sourced from this log; see Projector.
+     */
+    private static final String OPLOG_TABLE_CREATE =
+            "create table " + Oplog.TABLE + " (" + Oplog.DEVICE_ID + " text not null, " +
+                    Oplog.SEQ + " integer not null, " + Oplog.LAMPORT + " integer not null, " +
+                    Oplog.ENTITY + " text not null, " + Oplog.GID + " text not null, " +
+                    Oplog.OP + " text not null, " + Oplog.DATA + " text, " +
+                    Oplog.RECORDED_AT + " text not null default (datetime('now')), " +
+                    "PRIMARY KEY (" + Oplog.DEVICE_ID + ", " + Oplog.SEQ + "));";
+
+    private static final String OPLOG_ENTITY_INDEX_CREATE =
+            "create index oplog_entity on oplog (entity, gid, lamport);";
+
+    private static final String OPLOG_LAMPORT_INDEX_CREATE =
+            "create index oplog_lamport on oplog (lamport);";
+
+    /**
+     * Snapshots of the purchase and payment projections. A snapshot holds the
+     * latest event of every live purchase and payment up to its watermark, the
+     * (lamport, device_id) of the last event it covers.
+     */
+    private static final String SNAPSHOTS_TABLE_CREATE =
+            "create table " + Snapshots.TABLE + " (" + ID_COLUMN +
+                    Snapshots.LAMPORT + " integer not null, " +
+                    Snapshots.DEVICE_ID + " text not null, " +
+                    Snapshots.EVENTS + " integer not null, " +
+                    Snapshots.CREATED + " text not null default (datetime('now')));";
+
+    private static final String SNAPSHOT_ROWS_TABLE_CREATE =
+            "create table " + SnapshotRows.TABLE + " (" +
+                    SnapshotRows.SNAPSHOT_ID + " integer not null, " +
+                    SnapshotRows.ENTITY + " text not null, " +
+                    SnapshotRows.GID + " text not null, " + SnapshotRows.DATA + " text not null, " +
+                    "PRIMARY KEY (" + SnapshotRows.SNAPSHOT_ID + ", " + SnapshotRows.ENTITY +
+                    ", " + SnapshotRows.GID + "));";
+
+    /** Local settings of the sync, such as this device's id. */
+    private static final String SYNC_STATE_TABLE_CREATE =
+            "create table " + SyncState.TABLE + " (" + SyncState.NAME + " text primary key, " +
+                    SyncState.VALUE + " text not null);";
+
+    /** The highest seq of each device that a peer has reported having. */
+    private static final String SYNC_PEERS_TABLE_CREATE =
+            "create table " + SyncPeers.TABLE + " (" + SyncPeers.PEER_ID + " text not null, " +
+                    SyncPeers.DEVICE_ID + " text not null, " +
+                    SyncPeers.SEQ + " integer not null, " +
+                    "PRIMARY KEY (" + SyncPeers.PEER_ID + ", " + SyncPeers.DEVICE_ID + "));";
+
+    private static final String RECURRING_NEXT_DATE_INDEX_CREATE =
+            "create index recurring_purchases_next_date on recurring_purchases (next_date);";
+
+    /**
+     * Spending per (ledger, member, month, category). Rows are maintained by the
+     * purchases triggers below so reports never have to scan the purchases table.
+     */
+    private static final String SPENDING_ROLLUPS_TABLE_CREATE =
+            "create table " + SpendingRollups.TABLE + " (" +
+                    SpendingRollups.LEDGER_ID + " integer not null, " +
+                    SpendingRollups.MEMBER_ID + " integer not null, " +
+                    SpendingRollups.MONTH + " text not null, " +
+                    SpendingRollups.CATEGORY + " text not null, " +
+                    SpendingRollups.CURRENCY + " text not null, " +
+                    SpendingRollups.TOTAL + " decimal (19,4) not null default 0, " +
+                    SpendingRollups.PURCHASE_COUNT + " integer not null default 0, " +
+                    "PRIMARY KEY (" + SpendingRollups.LEDGER_ID + ", " + SpendingRollups.MEMBER_ID +
+                    ", " + SpendingRollups.MONTH + ", " + SpendingRollups.CATEGORY + ", " +
+                    SpendingRollups.CURRENCY + "));";
+
+    private static final String ROLLUP_ADD_NEW =
+            "INSERT OR IGNORE INTO spending_rollups (ledger_id, member_id, month, category, currency) " +
+                    "VALUES (NEW.ledger_id, NEW.member_id, strftime('%Y-%m', NEW.purchase_date), " +
+                    "NEW.category, NEW.currency); " +
+                    "UPDATE spending_rollups SET total = total + NEW.amount, " +
+                    "purchase_count = purchase_count + 1 " +
+                    "WHERE ledger_id = NEW.ledger_id AND member_id = NEW.member_id " +
+                    "AND month = strftime('%Y-%m', NEW.purchase_date) AND category = NEW.category " +
+                    "AND currency = NEW.currency; ";
+
+    private static final String ROLLUP_REMOVE_OLD =
+            "UPDATE spending_rollups SET total = total - OLD.amount, " +
+                    "purchase_count = purchase_count - 1 " +
+                    "WHERE ledger_id = OLD.ledger_id AND member_id = OLD.member_id " +
+                    "AND month = strftime('%Y-%m', OLD.purchase_date) AND category = OLD.category " +
+                    "AND currency = OLD.currency; " +
+                    "DELETE FROM spending_rollups WHERE purchase_count <= 0 " +
+                    "AND ledger_id = OLD.ledger_id AND member_id = OLD.member_id " +
+                    "AND month = strftime('%Y-%m', OLD.purchase_date) AND category = OLD.category " +
+                    "AND currency = OLD.currency; ";
+
+    private static final String ROLLUP_INSERT_TRIGGER_CREATE =
+            "create trigger purchases_rollup_insert AFTER INSERT ON purchases BEGIN " +
+                    ROLLUP_ADD_NEW + "END;";
+
+    private static final String ROLLUP_DELETE_TRIGGER_CREATE =
+            "create trigger purchases_rollup_delete AFTER DELETE ON purchases BEGIN " +
+                    ROLLUP_REMOVE_OLD + "END;";
+
+    private static final String ROLLUP_UPDATE_TRIGGER_CREATE =
+            "create trigger purchases_rollup_update AFTER UPDATE OF " +
+                    "ledger_id, member_id, amount, currency, category, purchase_date ON purchases BEGIN " +
+                    ROLLUP_REMOVE_OLD + ROLLUP_ADD_NEW + "END;";
+
+    /*
+     * The member_count, purchase_total and last_activity columns of ledgers are
+     * denormalized summaries kept current by the triggers below, so the Home
+     * screen can list every ledger with its totals from the ledgers table alone.
+     * roster_version changes with every member added or removed, which tells
+     * RosterCache when to reload a roster.
+     *
+     * version goes up with every change to a ledger's members, purchases or
+     * payments, and with every change of the ledger's currency or of a rate
+     * its rows are converted at. Anything computed from a ledger can be cached
+     * with the version it was computed at and checked with one primary key
+     * read; see LedgerDbAdapter.fetchLedgerVersion().
+     */
+    private static final String TOUCH_NEW_LEDGER =
+            "UPDATE ledgers SET last_activity = datetime('now'), version = version + 1 " +
+                    "WHERE _id = NEW.ledger_id; ";
+
+    private static final String TOUCH_OLD_LEDGER =
+            "UPDATE ledgers SET last_activity = datetime('now'), version = version + 1 " +
+                    "WHERE _id = OLD.ledger_id; ";
+
+    private static final String MEMBERS_COUNT_INSERT_TRIGGER_CREATE =
+            "create trigger members_count_insert AFTER INSERT ON members BEGIN " +
+                    "UPDATE ledgers SET member_count = member_count + 1, " +
+                    "roster_version = roster_version + 1, version = version + 1, " +
+                    "last_activity = datetime('now') WHERE _id = NEW.ledger_id; END;";
+
+    private static final String MEMBERS_COUNT_DELETE_TRIGGER_CREATE =
+            "create trigger members_count_delete AFTER DELETE ON members BEGIN " +
+                    "UPDATE ledgers SET member_count = member_count - 1, " +
+                    "roster_version = roster_version + 1, version = version + 1, " +
+                    "last_activity = datetime('now') WHERE _id = OLD.ledger_id; END;";
+
+    private static final String MEMBERS_VERSION_UPDATE_TRIGGER_CREATE =
+            "create trigger members_version_update AFTER UPDATE ON members BEGIN " +
+                    TOUCH_OLD_LEDGER + TOUCH_NEW_LEDGER + "END;";
+
+    private static final String CONVERTED_NEW_AMOUNT = FxRatesDbAdapter.convertSql(
+            "NEW.amount", "NEW.currency", "NEW.purchase_date", "ledgers.currency");
+
+    private static final String CONVERTED_OLD_AMOUNT = FxRatesDbAdapter.convertSql(
+            "OLD.amount", "OLD.currency", "OLD.purchase_date", "ledgers.currency");
+
+    private static final String PURCHASES_TOTAL_INSERT_TRIGGER_CREATE =
+            "create trigger purchases_total_insert AFTER INSERT ON purchases BEGIN " +
+                    "UPDATE ledgers SET purchase_total = purchase_total + " + CONVERTED_NEW_AMOUNT +
+                    ", last_activity = datetime('now'), version = version + 1 " +
+                    "WHERE _id = NEW.ledger_id; END;";
+
+    private static final String PURCHASES_TOTAL_DELETE_TRIGGER_CREATE =
+            "create trigger purchases_total_delete AFTER DELETE ON purchases BEGIN " +
+                    "UPDATE ledgers SET purchase_total = purchase_total - " + CONVERTED_OLD_AMOUNT +
+                    ", last_activity = datetime('now'), version = version + 1 " +
+                    "WHERE _id = OLD.ledger_id; END;";
+
+    private static final String PURCHASES_TOTAL_UPDATE_TRIGGER_CREATE =
+            "create trigger purchases_total_update AFTER UPDATE ON purchases " +
+                    "WHEN OLD.ledger_id IS NOT NEW.ledger_id OR OLD.member_id IS NOT NEW.member_id " +
+                    "OR OLD.title IS NOT NEW.title OR OLD.description IS NOT NEW.description " +
+                    "OR OLD.amount IS NOT NEW.amount OR OLD.currency IS NOT NEW.currency " +
+                    "OR OLD.category IS NOT NEW.category " +
+                    "OR OLD.purchase_date IS NOT NEW.purchase_date BEGIN " +
+                    "UPDATE ledgers SET purchase_total = purchase_total - " + CONVERTED_OLD_AMOUNT +
+                    ", version = version + 1 WHERE _id = OLD.ledger_id; " +
+                    "UPDATE ledgers SET purchase_total = purchase_total + " + CONVERTED_NEW_AMOUNT +
+                    ", last_activity = datetime('now'), version = version + 1 " +
+                    "WHERE _id = NEW.ledger_id; END;";
+
+    private static final String PAYMENTS_ACTIVITY_INSERT_TRIGGER_CREATE =
+            "create trigger payments_activity_insert AFTER INSERT ON payments BEGIN " +
+                    TOUCH_NEW_LEDGER + "END;";
+
+    private static final String PAYMENTS_ACTIVITY_DELETE_TRIGGER_CREATE =
+            "create trigger payments_activity_delete AFTER DELETE ON payments BEGIN " +
+                    TOUCH_OLD_LEDGER + "END;";
+
+    private static final String PAYMENTS_ACTIVITY_UPDATE_TRIGGER_CREATE =
+            "create trigger payments_activity_update AFTER UPDATE ON payments " +
+                    "WHEN OLD.ledger_id IS NOT NEW.ledger_id " +
+                    "OR OLD.title IS NOT NEW.title OR OLD.description IS NOT NEW.description " +
+                    "OR OLD.from_member_id IS NOT NEW.from_member_id " +
+                    "OR OLD.to_member_id IS NOT NEW.to_member_id " +
+                    "OR OLD.amount IS NOT NEW.amount OR OLD.currency IS NOT NEW.currency " +
+                    "OR OLD.payment_date IS NOT NEW.payment_date BEGIN " +
+                    TOUCH_OLD_LEDGER + TOUCH_NEW_LEDGER + "END;";
+
+    /**
+     * Rates keyed by currency and the date they apply from. See FxRatesDbAdapter.
+     */
+    private static final String FX_RATES_TABLE_CREATE =
+            "create table " + FxRates.TABLE + " (" + FxRates.CURRENCY + " text not null, " +
+                    FxRates.RATE_DATE + " text not null, " +
+                    FxRates.RATE + " decimal (19,8) not null, " +
+                    "PRIMARY KEY (" + FxRates.CURRENCY + ", " + FxRates.RATE_DATE + "));";
+
+    /*
+     * A NULL purchase_total marks the cached total of a ledger as stale. Adding to
+     * or subtracting from NULL keeps it NULL, so purchase writes leave a stale
+     * total stale until FxRatesDbAdapter.refreshPurchaseTotals() recomputes it.
+     */
+    private static String invalidateTotalsFor(String currency) {
+        return "UPDATE ledgers SET purchase_total = NULL WHERE purchase_total IS NOT NULL " +
+                "AND (currency = " + currency + " OR _id IN (SELECT ledger_id FROM purchases " +
+                "WHERE currency = " + currency + ")); ";
+    }
+
+    // Balances convert payments too, so every ledger with a row in the currency
+    // gets a new version, whether or not its purchase total was invalidated
+    private static String bumpVersionsFor(String currency) {
+        return "UPDATE ledgers SET version = version + 1 WHERE currency = " + currency +
+                " OR _id IN (SELECT ledger_id FROM purchases WHERE currency = " + currency +
+                ") OR _id IN (SELECT ledger_id FROM payments WHERE currency = " + currency +
+                "); ";
+    }
+
+    private static final String FX_RATES_INSERT_TRIGGER_CREATE =
+            "create trigger fx_rates_invalidate_insert AFTER INSERT ON fx_rates BEGIN " +
+                    invalidateTotalsFor("NEW.currency") + bumpVersionsFor("NEW.currency") +
+                    "END;";
+
+    private static final String FX_RATES_DELETE_TRIGGER_CREATE =
+            "create trigger fx_rates_invalidate_delete AFTER DELETE ON fx_rates BEGIN " +
+                    invalidateTotalsFor("OLD.currency") + bumpVersionsFor("OLD.currency") +
+                    "END;";
+
+    private static final String FX_RATES_UPDATE_TRIGGER_CREATE =
+            "create trigger fx_rates_invalidate_update AFTER UPDATE ON fx_rates BEGIN " +
+                    invalidateTotalsFor("OLD.currency") + invalidateTotalsFor("NEW.currency") +
+                    bumpVersionsFor("OLD.currency") + bumpVersionsFor("NEW.currency") + "END;";
+
+    private static final String LEDGERS_CURRENCY_TRIGGER_CREATE =
+            "create trigger ledgers_currency_update AFTER UPDATE OF currency ON ledgers " +
+                    "WHEN OLD.currency IS NOT NEW.currency BEGIN " +
+                    "UPDATE ledgers SET purchase_total = NULL, version = version + 1 " +
+                    "WHERE _id = NEW._id; END;";
+
+    // Set by onCreate() for onOpen(), which runs outside its transaction
+    private boolean mCreated;
 
     public static DatabaseHelper getInstance(Context context) {
         if (sInstance == null) {
@@ -51,25 +453,278 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * make call to static method "getInstance()" instead.
      */
     private DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Debug builds log every cursor finalized without being closed
+        super(context, DATABASE_NAME,
+                BuildConfig.DEBUG ? new CursorHelper.TrackingFactory() : null, DATABASE_VERSION);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        mCreated = true;
+        createTables(db);
+        createIndexes(db);
+        createTriggers(db);
+    }
+
+    static void createTables(SQLiteDatabase db) {
         db.execSQL(LEDGERS_TABLE_CREATE);
         db.execSQL(MEMBERS_TABLE_CREATE);
         db.execSQL(PURCHASES_TABLE_CREATE);
         db.execSQL(PAYMENTS_TABLE_CREATE);
+        db.execSQL(RECURRING_PURCHASES_TABLE_CREATE);
+        db.execSQL(SPENDING_ROLLUPS_TABLE_CREATE);
+        db.execSQL(FX_RATES_TABLE_CREATE);
+        db.execSQL(OPLOG_TABLE_CREATE);
+        db.execSQL(SYNC_STATE_TABLE_CREATE);
+        db.execSQL(SYNC_PEERS_TABLE_CREATE);
+        db.execSQL(SNAPSHOTS_TABLE_CREATE);
+        db.execSQL(SNAPSHOT_ROWS_TABLE_CREATE);
+    }
+
+    /**
+     * Create the secondary indexes. Kept apart from the tables so a bulk load
+     * can drop them, insert, and build each index once at the end.
+     */
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(RECURRING_NEXT_DATE_INDEX_CREATE);
+        db.execSQL(LEDGERS_GID_INDEX_CREATE);
+        db.execSQL(MEMBERS_LEDGER_INDEX_CREATE);
+        db.execSQL(PURCHASES_GID_INDEX_CREATE);
+        db.execSQL(PURCHASES_LEDGER_INDEX_CREATE);
+        db.execSQL(PURCHASES_MEMBER_INDEX_CREATE);
+        db.execSQL(PURCHASES_RECURRING_INDEX_CREATE);
+        db.execSQL(PAYMENTS_GID_INDEX_CREATE);
+        db.execSQL(PAYMENTS_LEDGER_INDEX_CREATE);
+        db.execSQL(PAYMENTS_FROM_INDEX_CREATE);
+        db.execSQL(PAYMENTS_TO_INDEX_CREATE);
+        db.execSQL(OPLOG_ENTITY_INDEX_CREATE);
+        db.execSQL(OPLOG_LAMPORT_INDEX_CREATE);
+    }
+
+    /**
+     * Create the triggers keeping the denormalized summaries. A bulk load drops
+     * them and recomputes the summaries in one pass instead.
+     */
+    static void createTriggers(SQLiteDatabase db) {
+        db.execSQL(ROLLUP_INSERT_TRIGGER_CREATE);
+        db.execSQL(ROLLUP_DELETE_TRIGGER_CREATE);
+        db.execSQL(ROLLUP_UPDATE_TRIGGER_CREATE);
+        db.execSQL(MEMBERS_COUNT_INSERT_TRIGGER_CREATE);
+        db.execSQL(MEMBERS_COUNT_DELETE_TRIGGER_CREATE);
+        db.execSQL(MEMBERS_VERSION_UPDATE_TRIGGER_CREATE);
+        db.execSQL(PURCHASES_TOTAL_INSERT_TRIGGER_CREATE);
+        db.execSQL(PURCHASES_TOTAL_DELETE_TRIGGER_CREATE);
+        db.execSQL(PURCHASES_TOTAL_UPDATE_TRIGGER_CREATE);
+        db.execSQL(PAYMENTS_ACTIVITY_INSERT_TRIGGER_CREATE);
+        db.execSQL(PAYMENTS_ACTIVITY_DELETE_TRIGGER_CREATE);
+        db.execSQL(PAYMENTS_ACTIVITY_UPDATE_TRIGGER_CREATE);
+        db.execSQL(FX_RATES_INSERT_TRIGGER_CREATE);
+        db.execSQL(FX_RATES_DELETE_TRIGGER_CREATE);
+        db.execSQL(FX_RATES_UPDATE_TRIGGER_CREATE);
+        db.execSQL(LEDGERS_CURRENCY_TRIGGER_CREATE);
+    }
+
+    /**
+     * Drop every index and trigger, so a bulk change can skip maintaining them
+     * row by row. Indexes backing a PRIMARY KEY or UNIQUE constraint stay.
+     */
+    static void dropIndexesAndTriggers(SQLiteDatabase db) {
+        List<String> drops = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master " +
+                "WHERE type IN ('index', 'trigger') AND sql IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                drops.add("DROP " + cursor.getString(0) + " " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String drop : drops) {
+            db.execSQL(drop);
+        }
+    }
+
+    private static void dropTriggers(SQLiteDatabase db) {
+        List<String> triggers = CursorHelper.list(db.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type = 'trigger'", null),
+                new CursorHelper.RowMapper<String>() {
+                    public String map(Cursor cursor) {
+                        return cursor.getString(0);
+                    }
+                });
+        for (String trigger : triggers) {
+            db.execSQL("DROP TRIGGER " + trigger);
+        }
+    }
+
+    /**
+     * Switch the database to incremental auto_vacuum, so MaintenanceService can
+     * return free pages in steps. The mode only changes when the whole file is
+     * rewritten, so this is meant for a database that was just created: it
+     * cannot run in a transaction, which rules out onCreate().
+     */
+    static void useIncrementalVacuum(SQLiteDatabase db) {
+        if (CursorHelper.longForQuery(db, "PRAGMA auto_vacuum", null, 0)
+                != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+    }
+
+    /**
+     * Return an INSERT statement for the given columns of a table, with a
+     * parameter for each column in the same order.
+     */
+    static String insertSql(String table, String... columns) {
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            params.append(i == 0 ? "?" : ", ?");
+        }
+        return "INSERT INTO " + table + " (" + TextUtils.join(", ", columns) + ") VALUES (" +
+                params + ")";
+    }
+
+    /**
+     * Recompute the summaries the triggers maintain, after rows were changed
+     * with the triggers dropped.
+     */
+    static void recomputeSummaries(SQLiteDatabase db) {
+        db.execSQL(LEDGER_SUMMARIES_UPDATE);
+        db.execSQL("DELETE FROM spending_rollups");
+        db.execSQL(SPENDING_ROLLUPS_INSERT);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Off by default in SQLite; deleting a ledger or member cascades to its rows
+            db.execSQL("PRAGMA foreign_keys = ON");
+            if (mCreated) {
+                mCreated = false;
+                useIncrementalVacuum(db);
+            }
+        }
+        if (BuildConfig.DEBUG && Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "Database opened on the main thread", new Throwable());
+        }
+        if (!db.isReadOnly()) {
+            new Projector(db).rebuildIfStale();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                + newVersion + ", which will destroy all old data");
-        db.execSQL("DROP TABLE IF EXISTS ledgers");
-        db.execSQL("DROP TABLE IF EXISTS members");
-        db.execSQL("DROP TABLE IF EXISTS payments");
-        db.execSQL("DROP TABLE IF EXISTS purchases");
-        onCreate(db);
+        Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        if (oldVersion < 10) {
+            upgradeFromVersion2(db);
+        }
+        if (oldVersion >= 10 && oldVersion < 15) {
+            // Added first: the version 11 step already recomputes the summaries
+            // and creates the triggers, which bump it. upgradeFromVersion2
+            // already copied ledgers into a table with it
+            db.execSQL("ALTER TABLE " + Ledgers.TABLE + " ADD COLUMN " + Ledgers.VERSION +
+                    " integer not null default 0");
+        }
+        if (oldVersion < 11) {
+            upgradeForeignKeys(db);
+        }
+        if (oldVersion < 12) {
+            upgradeIndexes(db);
+        }
+        if (oldVersion < 13) {
+            // Moving a payment to another ledger touches both ledgers
+            db.execSQL("DROP TRIGGER IF EXISTS payments_activity_update");
+            db.execSQL(PAYMENTS_ACTIVITY_UPDATE_TRIGGER_CREATE);
+        }
+        if (oldVersion >= 11 && oldVersion < 14) {
+            // The file name of the purchase's receipt photo, see ReceiptStore.
+            // upgradeForeignKeys already copied purchases into a table with it
+            db.execSQL("ALTER TABLE " + Purchases.TABLE + " ADD COLUMN " + Purchases.RECEIPT +
+                    " text");
+        }
+        if (oldVersion < 15) {
+            // Most triggers now bump ledgers.version as well
+            dropTriggers(db);
+            createTriggers(db);
+        }
+    }
+
+    /*
+     * Version 2 is the released schema: ledgers, members, purchases and payments
+     * with none of the columns added since. Ledgers, purchases and payments are
+     * copied into tables with the current columns, which take their defaults,
+     * and the tables added since are created empty. The version 11 step then
+     * sweeps the orphans, adds the foreign keys and recomputes the summaries.
+     * Versions 3 to 9 were never released and take the same path, keeping the
+     * tables they already have.
+     */
+    private static void upgradeFromVersion2(SQLiteDatabase db) {
+        dropIndexesAndTriggers(db);
+        copyTable(db, Ledgers.TABLE, LEDGERS_TABLE_CREATE);
+        copyTable(db, Purchases.TABLE, PURCHASES_TABLE_CREATE);
+        copyTable(db, Payments.TABLE, PAYMENTS_TABLE_CREATE);
+        String[] creates = {RECURRING_PURCHASES_TABLE_CREATE, SPENDING_ROLLUPS_TABLE_CREATE,
+                FX_RATES_TABLE_CREATE, OPLOG_TABLE_CREATE, SYNC_STATE_TABLE_CREATE,
+                SYNC_PEERS_TABLE_CREATE, SNAPSHOTS_TABLE_CREATE, SNAPSHOT_ROWS_TABLE_CREATE};
+        for (String create : creates) {
+            db.execSQL(create.replaceFirst("create table ", "create table if not exists "));
+        }
+    }
+
+    // Version 12 indexes the ledger and member columns of purchases and payments
+    private static void upgradeIndexes(SQLiteDatabase db) {
+        // upgradeForeignKeys may have created them already
+        for (String index : VERSION_12_INDEXES) {
+            db.execSQL("DROP INDEX IF EXISTS " + index);
+        }
+        db.execSQL(MEMBERS_LEDGER_INDEX_CREATE);
+        db.execSQL(PURCHASES_LEDGER_INDEX_CREATE);
+        db.execSQL(PURCHASES_MEMBER_INDEX_CREATE);
+        db.execSQL(PURCHASES_RECURRING_INDEX_CREATE);
+        db.execSQL(PAYMENTS_LEDGER_INDEX_CREATE);
+        db.execSQL(PAYMENTS_FROM_INDEX_CREATE);
+        db.execSQL(PAYMENTS_TO_INDEX_CREATE);
+    }
+
+    /*
+     * Version 11 adds ON DELETE CASCADE and fixes the purchases member_id key.
+     * SQLite cannot alter constraints, so each table is copied into a new one
+     * with the new definition after its orphans are swept. Foreign keys are not
+     * enforced yet while onUpgrade runs.
+     */
+    private static void upgradeForeignKeys(SQLiteDatabase db) {
+        dropIndexesAndTriggers(db);
+        for (String sweep : ORPHAN_SWEEPS) {
+            db.execSQL(sweep);
+        }
+        copyTable(db, Members.TABLE, MEMBERS_TABLE_CREATE);
+        copyTable(db, RecurringPurchases.TABLE, RECURRING_PURCHASES_TABLE_CREATE);
+        copyTable(db, Purchases.TABLE, PURCHASES_TABLE_CREATE);
+        copyTable(db, Payments.TABLE, PAYMENTS_TABLE_CREATE);
+        recomputeSummaries(db);
+        createIndexes(db);
+        createTriggers(db);
+    }
+
+    // Replace table with one created by the given statement, keeping its rows
+    private static void copyTable(SQLiteDatabase db, String table, String create) {
+        db.execSQL(create.replaceFirst("create table " + table + " ",
+                "create table " + table + "_new "));
+        // Name the old columns, so columns added since are left to their defaults
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        String list = TextUtils.join(", ", columns);
+        db.execSQL("INSERT INTO " + table + "_new (" + list + ") SELECT " + list + " FROM " +
+                table);
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + table + "_new RENAME TO " + table);
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.database.Cursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the events recorded for one purchase or payment, oldest first.
+ */
+public class EventHistory {
+
+    private EventHistory() {
+    }
+
+    /**
+     * @param entity OplogDbAdapter.ENTITY_PURCHASE or ENTITY_PAYMENT
+     * @param table  the table holding the row, purchases or payments
+     */
+    public static void show(Activity activity, String entity, String table, long rowId) {
+        List<String> lines = new ArrayList<String>();
+        Cursor events = new OplogDbAdapter(activity).open().fetchHistory(entity, table, rowId);
+        try {
+            while (events.moveToNext()) {
+                StringBuilder line = new StringBuilder(events.getString(2));
+                line.append("  ").append(activity.getString(opLabel(events.getString(1))));
+                if (!events.isNull(3)) {
+                    JSONObject data = new JSONObject(events.getString(3));
+                    line.append("  ").append(data.getString("title"))
+                            .append("  ").append(data.getDouble("amount"))
+                            .append(' ').append(data.getString("currency"));
+                }
+                lines.add(line.toString());
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            events.close();
+        }
+        new AlertDialog.Builder(activity)
+                .setTitle(R.string.history)
+                .setItems(lines.toArray(new String[lines.size()]), null)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    private static int opLabel(String op) {
+        if (OplogDbAdapter.OP_AMEND.equals(op)) {
+            return R.string.event_amend;
+        } else if (OplogDbAdapter.OP_VOID.equals(op)) {
+            return R.string.event_void;
+        }
+        return R.string.event_create;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.AlertDialog;
+import android.app.ListActivity;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.view.ContextMenu;
+import android.view.ContextMenu.ContextMenuInfo;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.EditText;
+import android.widget.SimpleCursorAdapter;
+
+import java.util.List;
+
+public class FxRates extends ListActivity implements ChangeBus.Listener {
+    private static final int INSERT_ID = Menu.FIRST;
+    private static final int DELETE_ID = Menu.FIRST + 1;
+
+    private FxRatesDbAdapter mDbHelper;
+    private SimpleCursorAdapter mRates;
+
+    /** Called when the activity is first created. */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.fx_rate_list);
+        setTitle(R.string.fx_rates);
+        mDbHelper = new FxRatesDbAdapter(this);
+        mDbHelper.open();
+
+        String[] from = new String[]{FxRatesDbAdapter.KEY_CURRENCY,
+                FxRatesDbAdapter.KEY_RATE_DATE, FxRatesDbAdapter.KEY_RATE};
+        int[] to = new int[]{R.id.rate_currency, R.id.rate_date, R.id.rate_value};
+        mRates = new SimpleCursorAdapter(this, R.layout.fx_rate_row, null, from, to, 0);
+        setListAdapter(mRates);
+        fillData();
+        ChangeBus.getInstance().subscribe(this, ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_FX_RATES);
+        registerForContextMenu(getListView());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ChangeBus.getInstance().unsubscribe(this);
+        mRates.changeCursor(null);
+    }
+
+    public void onDataChanged(List<ChangeBus.Change> changes) {
+        fillData();
+    }
+
+    private void fillData() {
+        mRates.changeCursor(mDbHelper.fetchAllRates());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        menu.add(0, INSERT_ID, 0, R.string.fx_rate_insert);
+        return true;
+    }
+
+    @Override
+    public boolean onMenuItemSelected(int featureId, MenuItem item) {
+        switch (item.getItemId()) {
+            case INSERT_ID:
+                showRateDialog();
+                return true;
+        }
+        return super.onMenuItemSelected(featureId, item);
+    }
+
+    @Override
+    public void onCreateContextMenu(ContextMenu menu, View v,
+                                    ContextMenuInfo menuInfo) {
+        super.onCreateContextMenu(menu, v, menuInfo);
+        menu.add(0, DELETE_ID, 0, R.string.fx_rate_delete);
+    }
+
+    @Override
+    public boolean onContextItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case DELETE_ID:
+                AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+                mDbHelper.deleteRate(info.id);
+                return true;
+        }
+        return super.onContextItemSelected(item);
+    }
+
+    // Ask for a currency, date and rate; the date defaults to today
+    private void showRateDialog() {
+        final View view = getLayoutInflater().inflate(R.layout.fx_rate_edit, null);
+        final EditText currencyText = (EditText) view.findViewById(R.id.currency);
+        final EditText dateText = (EditText) view.findViewById(R.id.rate_date);
+        final EditText rateText = (EditText) view.findViewById(R.id.rate);
+        dateText.setText(RecurringDbAdapter.today());
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.edit_fx_rate)
+                .setView(view)
+                .setPositiveButton(R.string.confirm, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        String rate = rateText.getText().toString();
+                        if (rate.length() == 0) {
+                            return;
+                        }
+                        mDbHelper.setRate(currencyText.getText().toString(),
+                                dateText.getText().toString(), Double.parseDouble(rate));
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.demo.roommateledger.LedgerContract.FxRates;
+
+import java.util.Locale;
+
+/**
+ * Exchange rate database access helper class. Rates are entered by hand and kept
+ * locally so conversion works offline. Each rate is the value of one unit of a
+ * currency in DEFAULT_CURRENCY on a given date; a currency without a rate is
+ * taken at 1. Amounts are converted inside the SQL aggregates with convertSql(),
+ * using the latest rate on or before the purchase or payment date.
+ * <p/>
+ * The converted purchase total of every ledger is cached in ledgers.purchase_total.
+ * Triggers set the cache to NULL for the affected ledgers when a rate changes,
+ * and refreshPurchaseTotals() recomputes those ledgers on the next read.
+ */
+public class FxRatesDbAdapter {
+
+    // fx_rates has no _id column; lists of rates alias its rowid
+    public static final String KEY_ROWID = "_id";
+    public static final String KEY_CURRENCY = FxRates.CURRENCY;
+    public static final String KEY_RATE_DATE = FxRates.RATE_DATE;
+    public static final String KEY_RATE = FxRates.RATE;
+
+    public static final String DEFAULT_CURRENCY = "USD";
+
+    private static final String TAG = "FxRatesDbAdapter";
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private OplogDbAdapter mOplogDbHelper;
+
+    private static final String FX_RATES_DATABASE_TABLE = FxRates.TABLE;
+
+    /** Recomputes every invalidated ledger total in the ledger's own currency. */
+    static final String REFRESH_PURCHASE_TOTALS =
+            "UPDATE ledgers SET purchase_total = (SELECT IFNULL(SUM(" +
+                    convertSql("p.amount", "p.currency", "p.purchase_date", "ledgers.currency") +
+                    "), 0) FROM purchases p WHERE p.ledger_id = ledgers._id) " +
+                    "WHERE purchase_total IS NULL";
+
+    private final Context mCtx;
+
+    /**
+     * Constructor - takes the context to allow the database to be
+     * opened/created
+     *
+     * @param ctx the Context within which to work
+     */
+    public FxRatesDbAdapter(Context ctx) {
+        this.mCtx = ctx;
+    }
+
+    /**
+     * Open the database using DatabaseHelper static instance
+     *
+     * @return this (self reference, allowing this to be chained in an
+     * initialization call)
+     * @throws android.database.SQLException if the database could be neither opened or created
+     */
+    public FxRatesDbAdapter open() throws SQLException {
+        mDbHelper = DatabaseHelper.getInstance(mCtx);
+        mDb = mDbHelper.getWritableDatabase();
+        mOplogDbHelper = new OplogDbAdapter(mCtx).open();
+        return this;
+    }
+
+    public void close() {
+        mDbHelper.close();
+    }
+
+    /**
+     * Return a SQL expression for the rate of a currency on a date. Both arguments
+     * are SQL expressions and must be qualified when used inside a join.
+     */
+    static String rateSql(String currency, String date) {
+        return "IFNULL((SELECT r.rate FROM fx_rates r WHERE r.currency = " + currency +
+                " AND r.rate_date <= " + date + " ORDER BY r.rate_date DESC LIMIT 1), 1)";
+    }
+
+    /**
+     * Return a SQL expression converting amount from currency into toCurrency at
+     * the rates of the given date. Amounts already in toCurrency are not looked up.
+     */
+    static String convertSql(String amount, String currency, String date, String toCurrency) {
+        return "(CASE WHEN " + currency + " = " + toCurrency + " THEN " + amount +
+                " ELSE " + amount + " * " + rateSql(currency, date) + " / " +
+                rateSql(toCurrency, date) + " END)";
+    }
+
+    /**
+     * Normalize a currency code typed by the user, falling back to the default.
+     */
+    public static String normalizeCurrency(String currency) {
+        if (currency == null || currency.trim().length() == 0) {
+            return DEFAULT_CURRENCY;
+        }
+        return currency.trim().toUpperCase(Locale.US);
+    }
+
+    /**
+     * Store the rate of a currency on a date, replacing any rate already stored
+     * for that date. The cached totals of every ledger using the currency are
+     * invalidated by trigger.
+     *
+     * @param currency  ISO code of the currency
+     * @param rate_date date the rate applies from, yyyy-MM-dd
+     * @param rate      value of one unit of currency in DEFAULT_CURRENCY
+     * @return rowId or -1 if failed
+     */
+    public long setRate(String currency, String rate_date, double rate) {
+        currency = normalizeCurrency(currency);
+        ContentValues initialValues = new ContentValues();
+        initialValues.put(KEY_CURRENCY, currency);
+        initialValues.put(KEY_RATE_DATE, rate_date);
+        initialValues.put(KEY_RATE, rate);
+
+        long rowId;
+        mDb.beginTransaction();
+        try {
+            rowId = mDb.insertWithOnConflict(FX_RATES_DATABASE_TABLE, null, initialValues,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            if (rowId != -1) {
+                mOplogDbHelper.recordFxRate(currency, rate_date);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (rowId != -1) {
+            ChangeBus.getInstance().publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_FX_RATES, rowId);
+        }
+        return rowId;
+    }
+
+    /**
+     * Delete the rate with the given rowId
+     *
+     * @param rowId id of rate to delete
+     * @return true if deleted, false otherwise
+     */
+    public boolean deleteRate(long rowId) {
+        boolean deleted = false;
+        mDb.beginTransaction();
+        try {
+            Cursor rate = mDb.query(FX_RATES_DATABASE_TABLE, new String[]{KEY_CURRENCY,
+                    KEY_RATE_DATE}, "rowid=" + rowId, null, null, null, null);
+            try {
+                if (rate.moveToFirst()) {
+                    deleted = mDb.delete(FX_RATES_DATABASE_TABLE, "rowid=" + rowId, null) > 0;
+                    mOplogDbHelper.recordFxRate(rate.getString(0), rate.getString(1));
+                }
+            } finally {
+                rate.close();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted) {
+            ChangeBus.getInstance().publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_FX_RATES, rowId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Return a Cursor over every stored rate, newest first within each currency.
+     */
+    public Cursor fetchAllRates() {
+        return mDb.rawQuery("SELECT rowid AS _id, currency, rate_date, rate FROM fx_rates " +
+                "ORDER BY currency, rate_date DESC", null);
+    }
+
+    /**
+     * Recompute the cached purchase total of every ledger whose cache was
+     * invalidated. Does nothing when every cache is current.
+     */
+    public void refreshPurchaseTotals() {
+        mDb.execSQL(REFRESH_PURCHASE_TOTALS);
+    }
+}
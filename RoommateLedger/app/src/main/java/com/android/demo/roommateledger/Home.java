@@ -16,10 +16,15 @@
 
 package com.android.demo.roommateledger;
 
+import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
@@ -29,48 +34,121 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
-public class Home extends ListActivity {
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class Home extends ListActivity implements ChangeBus.Listener {
     private static final int ACTIVITY_CREATE=0;
 
     private static final int INSERT_ID = Menu.FIRST;
     private static final int DELETE_ID = Menu.FIRST + 1;
     private static final int EDIT_ID = Menu.FIRST + 2;
+    private static final int FX_RATES_ID = Menu.FIRST + 3;
+    private static final int SYNC_ID = Menu.FIRST + 4;
+    private static final int BACKUP_ID = Menu.FIRST + 5;
+    private static final int RESTORE_ID = Menu.FIRST + 6;
+    private static final int NET_POSITIONS_ID = Menu.FIRST + 7;
+    private static final int GENERATE_ID = Menu.FIRST + 8;
+    private static final String TAG = "Home";
+    private static final String GENERATED_FILE = "generated.db";
 
     private HomeDbAdapter mDbHelper;
+    private SimpleCursorAdapter mLedgers;
+    private boolean mResumed;
+    private boolean mStale;
+    private boolean mOpened;
+    private boolean mDestroyed;
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.ledger_list);
         mDbHelper = new HomeDbAdapter(this);
-        mDbHelper.open();
-        fillData();
+        createAdapter();
+        // Ledger rows summarize members, purchases and payments of every ledger,
+        // with totals converted at the stored exchange rates
+        ChangeBus.getInstance().subscribe(this, ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_LEDGERS,
+                ChangeBus.TABLE_MEMBERS, ChangeBus.TABLE_PURCHASES, ChangeBus.TABLE_PAYMENTS,
+                ChangeBus.TABLE_FX_RATES);
         registerForContextMenu(getListView());
+        StartupTrace.watchFirstFrame(getListView());
+        // Opening may create, upgrade or rebuild the database; keep it off the
+        // main thread so the first frame does not wait for it
+        new OpenTask().execute();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if (mStale) {
+            fillData();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        ChangeBus.getInstance().unsubscribe(this);
+        mLedgers.changeCursor(null);
+    }
+
+    public void onDataChanged(List<ChangeBus.Change> changes) {
+        // Defer the reload while another screen is on top; it runs once in onResume()
+        mStale = true;
+        if (mResumed) {
+            fillData();
+        }
     }
 
     // Get data from the database and put it into the layout
     private void fillData() {
-        Cursor ledgersCursor = mDbHelper.fetchAllLedgers();
-        startManagingCursor(ledgersCursor);
+        if (!mOpened) {
+            return;
+        }
+        mStale = false;
+        mLedgers.changeCursor(mDbHelper.fetchAllLedgers());
+    }
 
-        // Create an array to specify the fields we want to display in the list (only TITLE)
-        String[] from = new String[]{HomeDbAdapter.KEY_TITLE, HomeDbAdapter.KEY_DESCRIPTION};
+    private void createAdapter() {
+        // Create an array to specify the fields we want to display in the list
+        String[] from = new String[]{HomeDbAdapter.KEY_TITLE, HomeDbAdapter.KEY_DESCRIPTION,
+                HomeDbAdapter.KEY_MEMBER_COUNT, HomeDbAdapter.KEY_PURCHASE_TOTAL,
+                HomeDbAdapter.KEY_CURRENCY, HomeDbAdapter.KEY_LAST_ACTIVITY};
 
-        // and an array of the fields we want to bind those fields to (in this case just text1)
-        int[] to = new int[]{R.id.text3, R.id.text4};
+        // and an array of the fields we want to bind those fields to
+        int[] to = new int[]{R.id.text3, R.id.text4, R.id.member_count_text,
+                R.id.purchase_total_text, R.id.currency_text, R.id.last_activity_text};
 
         // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter ledgers =
-            new SimpleCursorAdapter(this, R.layout.ledger_row, ledgersCursor, from, to);
-        setListAdapter(ledgers);
+        mLedgers = new SimpleCursorAdapter(this, R.layout.ledger_row, null, from, to, 0);
+        setListAdapter(mLedgers);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
         menu.add(0, INSERT_ID, 0, R.string.home_insert);
+        menu.add(0, NET_POSITIONS_ID, 0, R.string.net_positions);
+        menu.add(0, FX_RATES_ID, 0, R.string.fx_rates);
+        menu.add(0, SYNC_ID, 0, R.string.sync);
+        menu.add(0, BACKUP_ID, 0, R.string.backup);
+        menu.add(0, RESTORE_ID, 0, R.string.restore);
+        if (BuildConfig.DEBUG) {
+            menu.add(0, GENERATE_ID, 0, R.string.generate);
+        }
         return true;
     }
 
@@ -80,6 +158,24 @@ public class Home extends ListActivity {
             case INSERT_ID:
                 createLedger();
                 return true;
+            case NET_POSITIONS_ID:
+                startActivity(new Intent(this, NetPositions.class));
+                return true;
+            case FX_RATES_ID:
+                startActivity(new Intent(this, FxRates.class));
+                return true;
+            case SYNC_ID:
+                new SyncTask().execute();
+                return true;
+            case BACKUP_ID:
+                new BackupTask(false).execute();
+                return true;
+            case RESTORE_ID:
+                confirmRestore();
+                return true;
+            case GENERATE_ID:
+                new GenerateTask().execute();
+                return true;
         }
 
         return super.onMenuItemSelected(featureId, item);
@@ -100,7 +196,6 @@ public class Home extends ListActivity {
             case DELETE_ID:
                 info = (AdapterContextMenuInfo) item.getMenuInfo();
                 mDbHelper.deleteLedger(info.id);
-                fillData();
                 return true;
             case EDIT_ID:
                 info = (AdapterContextMenuInfo) item.getMenuInfo();
@@ -120,15 +215,140 @@ public class Home extends ListActivity {
         startActivity(i);
     }
 
+    // Opens the database and runs the first ledger query in the background
+    private class OpenTask extends AsyncTask<Void, Void, Cursor> {
+        @Override
+        protected void onPreExecute() {
+            mStale = false;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            mDbHelper.open();
+            MaintenanceService.schedule(Home.this);
+            Cursor ledgers = mDbHelper.fetchAllLedgers();
+            // Fill the cursor window here rather than on the first bind
+            ledgers.getCount();
+            return ledgers;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor ledgers) {
+            if (mDestroyed) {
+                ledgers.close();
+                return;
+            }
+            mOpened = true;
+            mLedgers.changeCursor(ledgers);
+            StartupTrace.dataShown();
+            // Something was written while the query ran
+            if (mStale && mResumed) {
+                fillData();
+            }
+        }
+    }
+
+    // Exchanges operation logs with other devices off the main thread; the lists
+    // reload through the ChangeBus when anything was merged
+    private class SyncTask extends AsyncTask<Void, Void, LedgerSync.Result> {
+        @Override
+        protected LedgerSync.Result doInBackground(Void... params) {
+            try {
+                return new LedgerSync(Home.this).sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Sync failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(LedgerSync.Result result) {
+            if (result == null) {
+                Toast.makeText(Home.this, R.string.sync_failed, Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(Home.this, getString(R.string.sync_done, result.received,
+                        result.sent), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    // A restore replaces every ledger, so ask first
+    private void confirmRestore() {
+        new AlertDialog.Builder(this)
+                .setMessage(R.string.restore_confirm)
+                .setPositiveButton(R.string.restore, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        new BackupTask(true).execute();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // Writes or restores the backup file off the main thread
+    private class BackupTask extends AsyncTask<Void, Void, LedgerBackup.Result> {
+        private final boolean mRestore;
+
+        BackupTask(boolean restore) {
+            mRestore = restore;
+        }
+
+        @Override
+        protected LedgerBackup.Result doInBackground(Void... params) {
+            try {
+                LedgerBackup backup = new LedgerBackup(Home.this);
+                return mRestore ? backup.restore(LedgerBackup.getBackupFile())
+                        : backup.backup(LedgerBackup.getBackupFile());
+            } catch (IOException e) {
+                Log.e(TAG, mRestore ? "Restore failed" : "Backup failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(LedgerBackup.Result result) {
+            if (result == null) {
+                Toast.makeText(Home.this, mRestore ? R.string.restore_failed
+                        : R.string.backup_failed, Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(Home.this, getString(mRestore ? R.string.restore_done
+                        : R.string.backup_done, result.rows), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    // Writes a load testing database next to the backup, see LedgerGenerator
+    private class GenerateTask extends AsyncTask<Void, Void, LedgerGenerator.Result> {
+        @Override
+        protected LedgerGenerator.Result doInBackground(Void... params) {
+            File directory = LedgerSync.getSyncDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Cannot create " + directory);
+                return null;
+            }
+            try {
+                return new LedgerGenerator(new LedgerGenerator.Config()).generate(
+                        new File(directory, GENERATED_FILE));
+            } catch (SQLException e) {
+                Log.e(TAG, "Generating failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(LedgerGenerator.Result result) {
+            if (result == null) {
+                Toast.makeText(Home.this, R.string.generate_failed, Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(Home.this, getString(R.string.generate_done, result.rows,
+                        result.millis), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
     // Upon clicking "add ledger" on the menu, start the LedgerEdit activity
     private void createLedger() {
         Intent i = new Intent(this, LedgerEdit.class);
         startActivityForResult(i, ACTIVITY_CREATE);
     }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        super.onActivityResult(requestCode, resultCode, intent);
-        fillData();
-    }
 }
@@ -24,7 +24,18 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import com.android.demo.roommateledger.LedgerContract.Ledgers;
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Simple ledgers database access helper class. Defines the basic CRUD operations
@@ -38,22 +49,44 @@ import java.util.List;
  */
 public class HomeDbAdapter {
 
-    public static final String KEY_TITLE = "title";
-    public static final String KEY_DESCRIPTION = "description";
-    public static final String KEY_MEMBER = "member";
-    public static final String KEY_LEDGER_ID = "ledger_id";
-    public static final String KEY_ROWID = "_id";
-    public static final String KEY_MEMBER_ID = "member_id";
-    public static final String KEY_BALANCE = "balance";
-    public static final String KEY_SPEND = "spend";
+    public static final String KEY_TITLE = Ledgers.TITLE;
+    public static final String KEY_DESCRIPTION = Ledgers.DESCRIPTION;
+    public static final String KEY_MEMBER = Members.MEMBER;
+    public static final String KEY_LEDGER_ID = Members.LEDGER_ID;
+    public static final String KEY_ROWID = Ledgers.ID;
+    public static final String KEY_MEMBER_COUNT = Ledgers.MEMBER_COUNT;
+    public static final String KEY_PURCHASE_TOTAL = Ledgers.PURCHASE_TOTAL;
+    public static final String KEY_LAST_ACTIVITY = Ledgers.LAST_ACTIVITY;
+    public static final String KEY_CURRENCY = Ledgers.CURRENCY;
 
     private static final String TAG = "HomeDbAdapter";
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
+    private RecurringDbAdapter mRecurringDbHelper;
+    private FxRatesDbAdapter mFxRatesDbHelper;
+    private OplogDbAdapter mOplogDbHelper;
+
+    private static final String DATABASE_TABLE = Ledgers.TABLE;
+    private static final String MEMBERS_DATABASE_TABLE = Members.TABLE;
+
+    // The ledger list, read straight from the summaries on the ledgers rows
+    static final String LEDGERS_QUERY = "SELECT " + KEY_ROWID + ", " + KEY_TITLE + ", " +
+            KEY_DESCRIPTION + ", " + KEY_MEMBER_COUNT + ", " + KEY_PURCHASE_TOTAL + ", " +
+            KEY_CURRENCY + ", datetime(" + KEY_LAST_ACTIVITY + ", 'localtime') AS " +
+            KEY_LAST_ACTIVITY + " FROM " + DATABASE_TABLE;
+
+    static final String MEMBERS_QUERY = "SELECT " + KEY_MEMBER + " FROM " +
+            MEMBERS_DATABASE_TABLE + " WHERE ledger_id = ? ORDER BY " + KEY_ROWID;
 
-    private static final String DATABASE_TABLE = "ledgers";
-    private static final String MEMBERS_DATABASE_TABLE = "members";
-    private static final String BALANCES_DATABASE_TABLE = "balances";
+    static final String MEMBER_IDS_QUERY = "SELECT " + KEY_MEMBER + ", " + KEY_ROWID + " FROM " +
+            MEMBERS_DATABASE_TABLE + " WHERE ledger_id = ? ORDER BY " + KEY_ROWID;
+
+    static final String MEMBER_PURCHASES_QUERY = "SELECT " + Purchases.ID + ", " +
+            Purchases.GID + " FROM " + Purchases.TABLE + " WHERE " + Purchases.MEMBER_ID + " = ?";
+
+    static final String MEMBER_PAYMENTS_QUERY = "SELECT " + Payments.ID + ", " + Payments.GID +
+            " FROM " + Payments.TABLE + " WHERE " + Payments.FROM_MEMBER_ID + " = ?1 OR " +
+            Payments.TO_MEMBER_ID + " = ?1";
 
     private final Context mCtx;
 
@@ -77,6 +110,9 @@ public class HomeDbAdapter {
     public HomeDbAdapter open() throws SQLException {
         mDbHelper = DatabaseHelper.getInstance(mCtx);
         mDb = mDbHelper.getWritableDatabase();
+        mRecurringDbHelper = new RecurringDbAdapter(mCtx).open();
+        mFxRatesDbHelper = new FxRatesDbAdapter(mCtx).open();
+        mOplogDbHelper = new OplogDbAdapter(mCtx).open();
         return this;
     }
 
@@ -91,28 +127,56 @@ public class HomeDbAdapter {
      *
      * @param title       the title of the ledger
      * @param description the description of the ledger
+     * @param currency    the currency totals and balances are shown in
      * @param members     the members of the ledger
      * @return rowId or -1 if failed
      */
-    public long createLedger(String title, String description, List<String> members) {
+    public long createLedger(String title, String description, String currency,
+                             List<String> members) {
         ContentValues initialValues = new ContentValues();
         initialValues.put(KEY_TITLE, title);
         initialValues.put(KEY_DESCRIPTION, description);
-        long ledger_id = mDb.insert(DATABASE_TABLE, null, initialValues);
-        if (ledger_id == -1)
-            return -1;
-        updateMembers(ledger_id, members);
+        initialValues.put(KEY_CURRENCY, FxRatesDbAdapter.normalizeCurrency(currency));
+        long ledger_id;
+        mDb.beginTransaction();
+        try {
+            ledger_id = mDb.insert(DATABASE_TABLE, null, initialValues);
+            if (ledger_id == -1)
+                return -1;
+            updateMembers(ledger_id, members, Collections.<String, String>emptyMap());
+            mOplogDbHelper.recordLedger(ledger_id);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_LEDGERS, ledger_id);
         return ledger_id;
     }
 
     /**
-     * Delete the ledger with the given rowId
+     * Delete the ledger with the given rowId. Its members, purchases, payments
+     * and recurring purchases are deleted with it by the foreign keys.
      *
      * @param rowId id of ledger to delete
      * @return true if deleted, false otherwise
      */
     public boolean deleteLedger(long rowId) {
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        boolean deleted;
+        mDb.beginTransaction();
+        try {
+            String gid = mOplogDbHelper.getGid(DATABASE_TABLE, rowId);
+            deleted = mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+            if (deleted) {
+                mOplogDbHelper.recordDelete(OplogDbAdapter.ENTITY_LEDGER, gid);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted) {
+            ChangeBus.getInstance().publish(rowId, ChangeBus.TABLE_LEDGERS, rowId);
+        }
+        return deleted;
     }
 
     public boolean deleteMembers(long ledger_id) {
@@ -120,13 +184,19 @@ public class HomeDbAdapter {
     }
 
     /**
-     * Return a Cursor over the list of all ledgers in the database
+     * Return a Cursor over the list of all ledgers in the database, together with
+     * each ledger's member count, purchase total and last activity time. These
+     * summaries are kept on the ledgers row by triggers, so this stays a single
+     * query over the ledgers table no matter how many ledgers there are. The
+     * purchase total is in the ledger's currency.
      *
      * @return Cursor over all ledgers
      */
     public Cursor fetchAllLedgers() {
-        return mDb.query(DATABASE_TABLE, new String[]{KEY_ROWID, KEY_TITLE,
-                KEY_DESCRIPTION}, null, null, null, null, null);
+        // Bring the purchase totals up to date with any recurring purchases now due
+        mRecurringDbHelper.materialize(ChangeBus.ALL_LEDGERS, RecurringDbAdapter.today());
+        mFxRatesDbHelper.refreshPurchaseTotals();
+        return mDb.rawQuery(LEDGERS_QUERY, null);
     }
 
     /**
@@ -135,8 +205,7 @@ public class HomeDbAdapter {
      * @return Cursor over all ledgers
      */
     public Cursor fetchAllMembers(long ledger_id) {
-        Cursor mCursor = mDb.rawQuery("SELECT member FROM " + MEMBERS_DATABASE_TABLE + " WHERE ledger_id = ?",
-                new String[]{String.valueOf(ledger_id)});
+        Cursor mCursor = mDb.rawQuery(MEMBERS_QUERY, new String[]{String.valueOf(ledger_id)});
         if (mCursor != null) {
             mCursor.moveToFirst();
         }
@@ -153,7 +222,7 @@ public class HomeDbAdapter {
     public Cursor fetchLedger(long rowId) throws SQLException {
         Cursor mCursor =
                 mDb.query(true, DATABASE_TABLE, new String[]{KEY_ROWID,
-                                KEY_TITLE, KEY_DESCRIPTION}, KEY_ROWID + "=" + rowId, null,
+                                KEY_TITLE, KEY_DESCRIPTION, KEY_CURRENCY}, KEY_ROWID + "=" + rowId, null,
                         null, null, null, null);
         if (mCursor != null) {
             mCursor.moveToFirst();
@@ -169,45 +238,146 @@ public class HomeDbAdapter {
      * @param rowId       id of ledger to update
      * @param title       value to set ledger title to
      * @param description value to set ledger body to
-     * @return true if the ledger was successfully updated, false otherwise
+     * @param currency    value to set ledger currency to
+     * @param members     the members of the ledger
+     * @param renames     old names of renamed members mapped to their new names
+     * @return true if the ledger or its members were changed, false otherwise
      */
-    public boolean updateLedger(long rowId, String title, String description,
-                                List<String> members) {
+    public boolean updateLedger(long rowId, String title, String description, String currency,
+                                List<String> members, Map<String, String> renames) {
+        currency = FxRatesDbAdapter.normalizeCurrency(currency);
         ContentValues args = new ContentValues();
         args.put(KEY_TITLE, title);
         args.put(KEY_DESCRIPTION, description);
+        args.put(KEY_CURRENCY, currency);
 
-        boolean updated = mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
-        if (!updated)
-            return false;
-
-        updateMembers(rowId, members);
-
-        return updated;
+        boolean updated;
+        boolean membersChanged;
+        mDb.beginTransaction();
+        try {
+            // Only touch the row when a value differs, so saving an unchanged form is a no-op
+            updated = mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId +
+                            " AND (" + KEY_TITLE + " IS NOT ? OR " + KEY_DESCRIPTION + " IS NOT ? OR " +
+                            KEY_CURRENCY + " IS NOT ?)",
+                    new String[]{title, description, currency}) > 0;
+            membersChanged = updateMembers(rowId, members, renames);
+            if (updated || membersChanged) {
+                mOplogDbHelper.recordLedger(rowId, renames);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (updated) {
+            ChangeBus.getInstance().publish(rowId, ChangeBus.TABLE_LEDGERS, rowId);
+        }
+        return updated || membersChanged;
     }
 
-    public boolean updateMembers(long ledger_id, List<String> members) {
-        ContentValues initialValues;
+    /**
+     * Replace the members of the given ledger. Members in both the old and the
+     * new roster keep their rows, so only the members added, renamed or removed
+     * are written, however large the roster. A renamed member keeps their row
+     * and with it their purchases and payments. Removing a member deletes their
+     * purchases, payments and recurring purchases too, and the purchases and
+     * payments are voided in the oplog so that a rebuild or sync does not bring
+     * them back. Nothing is written when the ledger already has exactly these
+     * members.
+     *
+     * @param members the new member names in roster order
+     * @param renames old names of renamed members mapped to their new names
+     * @return true if the members were changed, false otherwise
+     */
+    public boolean updateMembers(long ledger_id, List<String> members,
+                                 Map<String, String> renames) {
+        Map<String, Long> current = getMemberIds(ledger_id);
+        if (members.equals(new ArrayList<String>(current.keySet())))
+            return false;
+        boolean purchasesChanged = false;
+        boolean paymentsChanged = false;
+        mDb.beginTransaction();
         try {
-            mDb.beginTransaction();
-            deleteMembers(ledger_id);
+            Set<String> kept = new HashSet<String>(members);
+            Set<String> existing = new HashSet<String>(current.keySet());
+            ContentValues values = new ContentValues();
+            for (Map.Entry<String, Long> member : current.entrySet()) {
+                String name = renames.get(member.getKey());
+                long member_id = member.getValue();
+                if (name != null && kept.contains(name) && !current.containsKey(name)) {
+                    values.put(KEY_MEMBER, name);
+                    mDb.update(MEMBERS_DATABASE_TABLE, values, KEY_ROWID + "=" + member_id, null);
+                    existing.remove(member.getKey());
+                    existing.add(name);
+                    // Their logged rows still carry the old name
+                    purchasesChanged |= recordRows(OplogDbAdapter.ENTITY_PURCHASE,
+                            OplogDbAdapter.OP_AMEND, MEMBER_PURCHASES_QUERY, member_id);
+                    paymentsChanged |= recordRows(OplogDbAdapter.ENTITY_PAYMENT,
+                            OplogDbAdapter.OP_AMEND, MEMBER_PAYMENTS_QUERY, member_id);
+                } else if (!kept.contains(member.getKey())) {
+                    purchasesChanged |= recordRows(OplogDbAdapter.ENTITY_PURCHASE,
+                            OplogDbAdapter.OP_VOID, MEMBER_PURCHASES_QUERY, member_id);
+                    paymentsChanged |= recordRows(OplogDbAdapter.ENTITY_PAYMENT,
+                            OplogDbAdapter.OP_VOID, MEMBER_PAYMENTS_QUERY, member_id);
+                    mDb.delete(MEMBERS_DATABASE_TABLE, KEY_ROWID + "=" + member_id, null);
+                    existing.remove(member.getKey());
+                }
+            }
+            ContentValues initialValues = new ContentValues();
+            initialValues.put(KEY_LEDGER_ID, ledger_id);
             for (String member : members) {
-                initialValues = new ContentValues();
-                initialValues.put(KEY_MEMBER, member);
-                initialValues.put(KEY_LEDGER_ID, ledger_id);
-                Long member_id = mDb.insert(MEMBERS_DATABASE_TABLE, null, initialValues);
-                initialValues = new ContentValues();
-                initialValues.put(KEY_LEDGER_ID, ledger_id);
-                initialValues.put(KEY_BALANCE, 0);
-                initialValues.put(KEY_SPEND, 0);
-                initialValues.put(KEY_MEMBER_ID, member_id);
-                mDb.insert(BALANCES_DATABASE_TABLE, null, initialValues);
+                if (!existing.contains(member)) {
+                    initialValues.put(KEY_MEMBER, member);
+                    mDb.insert(MEMBERS_DATABASE_TABLE, null, initialValues);
+                }
             }
             mDb.setTransactionSuccessful();
-        } catch (SQLException e) {
         } finally {
             mDb.endTransaction();
         }
+        ChangeBus bus = ChangeBus.getInstance();
+        bus.publish(ledger_id, ChangeBus.TABLE_MEMBERS, ledger_id);
+        if (purchasesChanged) {
+            bus.publish(ledger_id, ChangeBus.TABLE_PURCHASES, ChangeBus.ANY_ROW);
+        }
+        if (paymentsChanged) {
+            bus.publish(ledger_id, ChangeBus.TABLE_PAYMENTS, ChangeBus.ANY_ROW);
+        }
         return true;
     }
+
+    // Record an amend or void event for each purchase or payment of a member,
+    // voids before the foreign keys delete the rows
+    private boolean recordRows(String entity, String op, String query, long member_id) {
+        Cursor cursor = mDb.rawQuery(query, new String[]{String.valueOf(member_id)});
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                if (OplogDbAdapter.OP_VOID.equals(op)) {
+                    mOplogDbHelper.recordVoid(entity, cursor.getString(1));
+                } else if (OplogDbAdapter.ENTITY_PURCHASE.equals(entity)) {
+                    mOplogDbHelper.recordPurchase(cursor.getLong(0), op);
+                } else {
+                    mOplogDbHelper.recordPayment(cursor.getLong(0), op);
+                }
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count > 0;
+    }
+
+    // Member names of the ledger mapped to their row ids, in roster order
+    private Map<String, Long> getMemberIds(long ledger_id) {
+        Cursor cursor = mDb.rawQuery(MEMBER_IDS_QUERY, new String[]{String.valueOf(ledger_id)});
+        Map<String, Long> members = new LinkedHashMap<String, Long>();
+        try {
+            while (cursor.moveToNext()) {
+                members.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return members;
+    }
 }
@@ -22,29 +22,32 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.os.Bundle;
 import android.util.Log;
-import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
-import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.TextView;
 
 import java.util.List;
 
-public class Ledger extends ListActivity {
+public class Ledger extends ListActivity implements ChangeBus.Listener {
     private static final int ACTIVITY_CREATE=0;
     private static final int ACTIVITY_EDIT=1;
 
     private static final int INSERT_ID = Menu.FIRST;
     private static final int PAYMENT_ID = Menu.FIRST + 1;
     private static final int BALANCE_ID = Menu.FIRST + 2;
-    private static final int DELETE_ID = Menu.FIRST;
+    private static final int REPORT_ID = Menu.FIRST + 3;
+    private static final int STOP_REPEAT_ID = BulkEditMode.FIRST_ROW_ID;
+    private static final int HISTORY_ID = BulkEditMode.FIRST_ROW_ID + 1;
 
     private LedgerDbAdapter mDbHelper;
     private Long mLedgerId;
+    private SimpleCursorAdapter mPurchases;
+    private boolean mResumed;
+    private boolean mStale;
 
     /** Called when the activity is first created. */
     @Override
@@ -60,31 +63,110 @@ public class Ledger extends ListActivity {
         setContentView(R.layout.purchase_list);
         mDbHelper = new LedgerDbAdapter(this);
         mDbHelper.open();
+
+        // Create an array to specify the fields we want to display in the list (only TITLE)
+        String[] from = new String[]{LedgerDbAdapter.KEY_TITLE, LedgerDbAdapter.KEY_AMOUNT,
+                LedgerDbAdapter.KEY_CURRENCY, LedgerDbAdapter.KEY_RECEIPT};
+
+        // and an array of the fields we want to bind those fields to (in this case just text1)
+        int[] to = new int[]{R.id.text1, R.id.text2, R.id.currency_text,
+                R.id.receipt_thumbnail};
+
+        // The cursor is swapped in by fillData() and only requeried when the ChangeBus
+        // reports a purchase change in this ledger
+        mPurchases = new SimpleCursorAdapter(this, R.layout.purchase_row, null, from, to, 0);
+        // Thumbnails come from the ReceiptStore caches, never decoded while binding
+        final ReceiptStore receipts = ReceiptStore.getInstance(this);
+        mPurchases.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (view.getId() != R.id.receipt_thumbnail) {
+                    return false;
+                }
+                receipts.loadThumbnail(cursor.getString(columnIndex), (ImageView) view);
+                return true;
+            }
+        });
+        setListAdapter(mPurchases);
         fillData();
         updateTotal();
-        registerForContextMenu(getListView());
+        // The total is converted into the ledger's currency, so rates and the
+        // ledger's own currency affect it too
+        ChangeBus.getInstance().subscribe(this, mLedgerId, ChangeBus.TABLE_PURCHASES,
+                ChangeBus.TABLE_LEDGERS, ChangeBus.TABLE_FX_RATES);
+        // Long pressing a purchase starts selecting purchases to delete or move
+        getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        getListView().setMultiChoiceModeListener(new BulkEditMode(this, mDbHelper, mLedgerId) {
+            @Override
+            protected int delete(long[] ids) {
+                return mDbHelper.deletePurchases(ids, mLedgerId);
+            }
+
+            @Override
+            protected int move(long[] ids, long toLedgerId) {
+                return mDbHelper.movePurchases(ids, mLedgerId, toLedgerId);
+            }
+
+            @Override
+            protected void addRowItems(Menu menu) {
+                menu.add(0, STOP_REPEAT_ID, 0, R.string.menu_stop_repeat);
+                menu.add(0, HISTORY_ID, 0, R.string.history);
+            }
+
+            @Override
+            protected void onRowItemClicked(int itemId, long id) {
+                if (itemId == STOP_REPEAT_ID) {
+                    mDbHelper.endRecurrence(id);
+                } else if (itemId == HISTORY_ID) {
+                    EventHistory.show(Ledger.this, OplogDbAdapter.ENTITY_PURCHASE, "purchases", id);
+                }
+            }
+        });
     }
 
-    private void fillData() {
-        Cursor purchasesCursor = mDbHelper.fetchAllPurchases(mLedgerId);
-        startManagingCursor(purchasesCursor);
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if (mStale) {
+            refresh();
+        }
+    }
 
-        // Create an array to specify the fields we want to display in the list (only TITLE)
-        String[] from = new String[]{LedgerDbAdapter.KEY_TITLE, LedgerDbAdapter.KEY_AMOUNT};
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+    }
 
-        // and an array of the fields we want to bind those fields to (in this case just text1)
-        int[] to = new int[]{R.id.text1, R.id.text2};
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ChangeBus.getInstance().unsubscribe(this);
+        mPurchases.changeCursor(null);
+    }
+
+    public void onDataChanged(List<ChangeBus.Change> changes) {
+        // Defer the reload while an editor is on top; it runs once in onResume()
+        mStale = true;
+        if (mResumed) {
+            refresh();
+        }
+    }
+
+    private void refresh() {
+        mStale = false;
+        fillData();
+        updateTotal();
+    }
 
-        // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter purchases =
-                new SimpleCursorAdapter(this, R.layout.purchase_row, purchasesCursor, from, to);
-        setListAdapter(purchases);
+    private void fillData() {
+        mPurchases.changeCursor(mDbHelper.fetchAllPurchases(mLedgerId));
     }
 
     private void updateTotal() {
         double total = mDbHelper.fetchTotalOfPurchases(mLedgerId);
         TextView t = (TextView)findViewById(R.id.textViewFooter2);
-        t.setText("$" + String.valueOf(total));
+        t.setText(String.valueOf(total) + " " + mDbHelper.fetchLedgerCurrency(mLedgerId));
     }
 
     @Override
@@ -93,6 +175,7 @@ public class Ledger extends ListActivity {
         menu.add(0, INSERT_ID, 0, R.string.menu_insert);
         menu.add(0, PAYMENT_ID, 0, R.string.manage_payments);
         menu.add(0, BALANCE_ID, 0, R.string.view_balances);
+        menu.add(0, REPORT_ID, 0, R.string.view_reports);
         return true;
     }
 
@@ -106,34 +189,22 @@ public class Ledger extends ListActivity {
                 Intent i = new Intent(this, Payments.class);
                 i.putExtra(HomeDbAdapter.KEY_ROWID, mLedgerId);
                 startActivity(i);
+                return true;
             case BALANCE_ID:
                 Intent j = new Intent(this, Balances.class);
                 j.putExtra(HomeDbAdapter.KEY_ROWID, mLedgerId);
                 startActivity(j);
+                return true;
+            case REPORT_ID:
+                Intent k = new Intent(this, Reports.class);
+                k.putExtra(HomeDbAdapter.KEY_ROWID, mLedgerId);
+                startActivity(k);
+                return true;
         }
 
         return super.onMenuItemSelected(featureId, item);
     }
 
-    @Override
-    public void onCreateContextMenu(ContextMenu menu, View v,
-            ContextMenuInfo menuInfo) {
-        super.onCreateContextMenu(menu, v, menuInfo);
-        menu.add(0, DELETE_ID, 0, R.string.menu_delete);
-    }
-
-    @Override
-    public boolean onContextItemSelected(MenuItem item) {
-        switch(item.getItemId()) {
-            case DELETE_ID:
-                AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-                mDbHelper.deletePurchase(info.id);
-                fillData();
-                return true;
-        }
-        return super.onContextItemSelected(item);
-    }
-
     private void createPurchase() {
         Intent i = new Intent(this, PurchaseEdit.class);
         i.putExtra(LedgerDbAdapter.KEY_LEDGER_ID, mLedgerId);
@@ -149,11 +220,4 @@ public class Ledger extends ListActivity {
         i.putExtra(LedgerDbAdapter.KEY_ROWID, id);
         startActivityForResult(i, ACTIVITY_EDIT);
     }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        super.onActivityResult(requestCode, resultCode, intent);
-        fillData();
-        updateTotal();
-    }
 }
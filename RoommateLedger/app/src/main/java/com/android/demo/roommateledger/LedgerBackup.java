@@ -0,0 +1,864 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.android.demo.roommateledger.LedgerContract.FxRates;
+import com.android.demo.roommateledger.LedgerContract.Ledgers;
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Oplog;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+import com.android.demo.roommateledger.LedgerContract.RecurringPurchases;
+import com.android.demo.roommateledger.LedgerContract.SnapshotRows;
+import com.android.demo.roommateledger.LedgerContract.Snapshots;
+import com.android.demo.roommateledger.LedgerContract.SpendingRollups;
+import com.android.demo.roommateledger.LedgerContract.SyncPeers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary backup of the whole database. Unlike a copy of the database
+ * file, a backup holds no free pages, indexes or derived summaries: the rows of
+ * each ledger are streamed one ledger after the other, with numbers written as
+ * varints, amounts as integer cents, gids as 16 raw bytes and repeated strings
+ * (members, categories, currencies, dates) as references into a dictionary
+ * built while writing. The file ends with a CRC32 of everything before it.
+ * <p/>
+ * The oplog is backed up too, since purchases and payments are projections of
+ * its events. Restore replaces every row in one transaction: it drops the
+ * triggers and secondary indexes, bulk-loads the rows through compiled
+ * statements, builds each index once, recomputes the summaries the triggers
+ * would have kept, and only commits if the checksum matches.
+ */
+public class LedgerBackup {
+
+    public static final String BACKUP_FILE = "backup.rlb";
+
+    private static final String TAG = "LedgerBackup";
+
+    private static final int MAGIC = 0x524c4231; // "RLB1"
+    // Version 2 added the receipt of each purchase
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int SECTION_END = 0;
+    private static final int SECTION_FX_RATES = 1;
+    private static final int SECTION_LEDGER = 2;
+    private static final int SECTION_OPLOG = 3;
+
+    /** Every table a restore replaces; sync_state keeps the projection version. */
+    private static final String[] RESTORED_TABLES = {Ledgers.TABLE, Members.TABLE,
+            Purchases.TABLE, Payments.TABLE, RecurringPurchases.TABLE, SpendingRollups.TABLE,
+            FxRates.TABLE, Oplog.TABLE, SyncPeers.TABLE, Snapshots.TABLE, SnapshotRows.TABLE};
+
+    private static final String LEDGERS_QUERY =
+            "SELECT " + Ledgers.ID + ", " + Ledgers.GID + ", " + Ledgers.TITLE + ", " +
+                    Ledgers.DESCRIPTION + ", " + Ledgers.CURRENCY + ", " + Ledgers.LAST_ACTIVITY +
+                    " FROM " + Ledgers.TABLE + " ORDER BY " + Ledgers.ID;
+
+    // Purchases and payments whose members no longer exist are not shown anywhere
+    // and are left out
+    private static final String PURCHASES_QUERY =
+            "SELECT p." + Purchases.MEMBER_ID + ", p." + Purchases.TITLE + ", p." +
+                    Purchases.DESCRIPTION + ", p." + Purchases.AMOUNT + ", p." +
+                    Purchases.CURRENCY + ", p." + Purchases.CATEGORY + ", p." +
+                    Purchases.PURCHASE_DATE + ", p." + Purchases.GID + ", p." +
+                    Purchases.RECURRING_ID + ", p." + Purchases.RECEIPT + " FROM " +
+                    Purchases.TABLE +
+                    " p JOIN " + Members.TABLE + " m ON m." + Members.ID + " = p." +
+                    Purchases.MEMBER_ID + " AND m." + Members.LEDGER_ID + " = p." +
+                    Purchases.LEDGER_ID + " WHERE p." + Purchases.LEDGER_ID + " = ? ORDER BY p." +
+                    Purchases.ID;
+
+    private static final String PAYMENTS_QUERY =
+            "SELECT y." + Payments.FROM_MEMBER_ID + ", y." + Payments.TO_MEMBER_ID + ", y." +
+                    Payments.TITLE + ", y." + Payments.DESCRIPTION + ", y." + Payments.AMOUNT +
+                    ", y." + Payments.CURRENCY + ", y." + Payments.PAYMENT_DATE + ", y." +
+                    Payments.GID + " FROM " + Payments.TABLE + " y JOIN " + Members.TABLE +
+                    " f ON f." + Members.ID + " = y." + Payments.FROM_MEMBER_ID + " AND f." +
+                    Members.LEDGER_ID + " = y." + Payments.LEDGER_ID + " JOIN " + Members.TABLE +
+                    " t ON t." + Members.ID + " = y." + Payments.TO_MEMBER_ID + " AND t." +
+                    Members.LEDGER_ID + " = y." + Payments.LEDGER_ID + " WHERE y." +
+                    Payments.LEDGER_ID + " = ? ORDER BY y." + Payments.ID;
+
+    private static final String RULES_QUERY =
+            "SELECT " + RecurringPurchases.ID + ", " + RecurringPurchases.MEMBER_ID + ", " +
+                    RecurringPurchases.TITLE + ", " + RecurringPurchases.DESCRIPTION + ", " +
+                    RecurringPurchases.AMOUNT + ", " + RecurringPurchases.CURRENCY + ", " +
+                    RecurringPurchases.CATEGORY + ", " + RecurringPurchases.PERIOD + ", " +
+                    RecurringPurchases.START_DATE + ", " + RecurringPurchases.END_DATE + ", " +
+                    RecurringPurchases.OCCURRENCES + ", " + RecurringPurchases.NEXT_DATE +
+                    " FROM " + RecurringPurchases.TABLE + " WHERE " +
+                    RecurringPurchases.LEDGER_ID + " = ? AND " + RecurringPurchases.MEMBER_ID +
+                    " IN (SELECT " + Members.ID + " FROM " + Members.TABLE + " WHERE " +
+                    Members.LEDGER_ID + " = ?) ORDER BY " + RecurringPurchases.ID;
+
+    private static final String MEMBERS_QUERY =
+            "SELECT " + Members.ID + ", " + Members.MEMBER + " FROM " + Members.TABLE +
+                    " WHERE " + Members.LEDGER_ID + " = ? ORDER BY " + Members.ID;
+
+    private static final String FX_RATES_QUERY =
+            "SELECT " + FxRates.CURRENCY + ", " + FxRates.RATE_DATE + ", " + FxRates.RATE +
+                    " FROM " + FxRates.TABLE;
+
+    private static final String OPLOG_QUERY =
+            "SELECT " + Oplog.DEVICE_ID + ", " + Oplog.SEQ + ", " + Oplog.LAMPORT + ", " +
+                    Oplog.ENTITY + ", " + Oplog.GID + ", " + Oplog.OP + ", " + Oplog.DATA + ", " +
+                    Oplog.RECORDED_AT + " FROM " + Oplog.TABLE + " ORDER BY " + Oplog.DEVICE_ID +
+                    ", " + Oplog.SEQ;
+
+    private static final String LEDGER_INSERT = DatabaseHelper.insertSql(Ledgers.TABLE,
+            Ledgers.GID, Ledgers.TITLE, Ledgers.DESCRIPTION, Ledgers.CURRENCY,
+            Ledgers.LAST_ACTIVITY);
+
+    private static final String MEMBER_INSERT = DatabaseHelper.insertSql(Members.TABLE,
+            Members.LEDGER_ID, Members.MEMBER);
+
+    private static final String RULE_INSERT = DatabaseHelper.insertSql(RecurringPurchases.TABLE,
+            RecurringPurchases.LEDGER_ID, RecurringPurchases.MEMBER_ID, RecurringPurchases.TITLE,
+            RecurringPurchases.DESCRIPTION, RecurringPurchases.AMOUNT,
+            RecurringPurchases.CURRENCY, RecurringPurchases.CATEGORY, RecurringPurchases.PERIOD,
+            RecurringPurchases.START_DATE, RecurringPurchases.END_DATE,
+            RecurringPurchases.OCCURRENCES, RecurringPurchases.NEXT_DATE);
+
+    private static final String PURCHASE_INSERT = DatabaseHelper.insertSql(Purchases.TABLE,
+            Purchases.LEDGER_ID, Purchases.MEMBER_ID, Purchases.TITLE, Purchases.DESCRIPTION,
+            Purchases.AMOUNT, Purchases.CURRENCY, Purchases.CATEGORY, Purchases.PURCHASE_DATE,
+            Purchases.GID, Purchases.RECURRING_ID, Purchases.RECEIPT);
+
+    private static final String PAYMENT_INSERT = DatabaseHelper.insertSql(Payments.TABLE,
+            Payments.LEDGER_ID, Payments.FROM_MEMBER_ID, Payments.TO_MEMBER_ID, Payments.TITLE,
+            Payments.DESCRIPTION, Payments.AMOUNT, Payments.CURRENCY, Payments.PAYMENT_DATE,
+            Payments.GID);
+
+    private static final String FX_RATE_INSERT = DatabaseHelper.insertSql(FxRates.TABLE,
+            FxRates.CURRENCY, FxRates.RATE_DATE, FxRates.RATE);
+
+    private static final String OPLOG_INSERT = DatabaseHelper.insertSql(Oplog.TABLE,
+            Oplog.DEVICE_ID, Oplog.SEQ, Oplog.LAMPORT, Oplog.ENTITY, Oplog.GID, Oplog.OP,
+            Oplog.DATA, Oplog.RECORDED_AT);
+
+    private final Context mCtx;
+    private SQLiteDatabase mDb;
+    private OplogDbAdapter mOplogDbHelper;
+
+    /**
+     * The number of rows written or loaded, the size of the backup and the time
+     * it took.
+     */
+    public static class Result {
+        public long rows;
+        public long bytes;
+        public long millis;
+    }
+
+    public LedgerBackup(Context ctx) {
+        this(ctx, DatabaseHelper.getInstance(ctx).getWritableDatabase());
+    }
+
+    /**
+     * Back up and restore the given database instead of the app's, such as one
+     * written by LedgerGenerator.
+     */
+    LedgerBackup(Context ctx, SQLiteDatabase db) {
+        mCtx = ctx;
+        mDb = db;
+        mOplogDbHelper = new OplogDbAdapter(db);
+    }
+
+    public static File getBackupFile() {
+        return new File(LedgerSync.getSyncDirectory(), BACKUP_FILE);
+    }
+
+    /**
+     * Write a backup of the whole database. The file is replaced atomically.
+     */
+    public Result backup(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Result result = new Result();
+        BackupWriter out = new BackupWriter(new FileOutputStream(temp));
+        // Hold off writers so every table is read at the same point
+        mDb.beginTransactionNonExclusive();
+        try {
+            out.writeInt(MAGIC);
+            out.writeVarint(FORMAT_VERSION);
+            result.rows += writeFxRates(out);
+            Cursor ledgers = mDb.rawQuery(LEDGERS_QUERY, null);
+            try {
+                while (ledgers.moveToNext()) {
+                    result.rows += writeLedger(out, ledgers);
+                }
+            } finally {
+                ledgers.close();
+            }
+            result.rows += writeOplog(out);
+            out.finish();
+        } finally {
+            mDb.endTransaction();
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        result.bytes = file.length();
+        result.millis = System.currentTimeMillis() - start;
+        Log.i(TAG, "Backed up " + result.rows + " rows, " + result.bytes + " bytes in " +
+                result.millis + "ms");
+        return result;
+    }
+
+    /**
+     * Replace every row of the database with the rows of a backup. Nothing is
+     * changed if the file is damaged.
+     */
+    public Result restore(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        BackupReader in = new BackupReader(new FileInputStream(file));
+        mDb.beginTransaction();
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a backup");
+            }
+            long version = in.readVarint();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("Unsupported backup version in " + file);
+            }
+            // Backups from before receipts were written keep the receipts this
+            // device has for the same purchases
+            List<Object[]> receipts = version < 2 ? fetchReceipts() : null;
+            DatabaseHelper.dropIndexesAndTriggers(mDb);
+            for (String table : RESTORED_TABLES) {
+                mDb.delete(table, null, null);
+            }
+            Loader loader = new Loader(version);
+            try {
+                int section;
+                while ((section = in.readByte()) != SECTION_END) {
+                    switch (section) {
+                        case SECTION_FX_RATES:
+                            result.rows += loader.readFxRates(in);
+                            break;
+                        case SECTION_LEDGER:
+                            result.rows += loader.readLedger(in);
+                            break;
+                        case SECTION_OPLOG:
+                            result.rows += loader.readOplog(in);
+                            break;
+                        default:
+                            throw new IOException("Bad section " + section + " in " + file);
+                    }
+                }
+            } finally {
+                loader.close();
+            }
+            in.finish();
+            if (receipts != null) {
+                for (Object[] row : receipts) {
+                    mDb.execSQL("UPDATE " + Purchases.TABLE + " SET " + Purchases.RECEIPT +
+                            " = ? WHERE " + Purchases.GID + " = ?", row);
+                }
+            }
+
+            DatabaseHelper.createIndexes(mDb);
+            DatabaseHelper.recomputeSummaries(mDb);
+            DatabaseHelper.createTriggers(mDb);
+            mOplogDbHelper.newDeviceId();
+            mDb.setTransactionSuccessful();
+        } catch (SQLException e) {
+            throw new IOException("Cannot restore " + file, e);
+        } finally {
+            mDb.endTransaction();
+            in.close();
+        }
+        result.bytes = file.length();
+        result.millis = System.currentTimeMillis() - start;
+        Log.i(TAG, "Restored " + result.rows + " rows from " + result.bytes + " bytes in " +
+                result.millis + "ms");
+
+        // Restored ledgers start their roster versions over
+        RosterCache.getInstance().clear();
+        ChangeBus bus = ChangeBus.getInstance();
+        bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_LEDGERS, ChangeBus.ANY_ROW);
+        bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_MEMBERS, ChangeBus.ANY_ROW);
+        bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_PURCHASES, ChangeBus.ANY_ROW);
+        bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_PAYMENTS, ChangeBus.ANY_ROW);
+        bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_FX_RATES, ChangeBus.ANY_ROW);
+        return result;
+    }
+
+    private List<Object[]> fetchReceipts() {
+        Cursor cursor = mDb.query(Purchases.TABLE, new String[]{Purchases.RECEIPT,
+                Purchases.GID}, Purchases.RECEIPT + " IS NOT NULL", null, null, null, null);
+        return CursorHelper.list(cursor, new CursorHelper.RowMapper<Object[]>() {
+            public Object[] map(Cursor cursor) {
+                return new Object[]{cursor.getString(0), cursor.getString(1)};
+            }
+        });
+    }
+
+    private int writeFxRates(BackupWriter out) throws IOException {
+        Cursor rates = mDb.rawQuery(FX_RATES_QUERY, null);
+        try {
+            out.writeByte(SECTION_FX_RATES);
+            out.writeVarint(rates.getCount());
+            while (rates.moveToNext()) {
+                out.writeString(rates.getString(0));
+                out.writeString(rates.getString(1));
+                out.writeDouble(rates.getDouble(2));
+            }
+            return rates.getCount();
+        } finally {
+            rates.close();
+        }
+    }
+
+    // Members are written once per ledger and referenced by their position
+    private int writeLedger(BackupWriter out, Cursor ledger) throws IOException {
+        String ledger_id = ledger.getString(0);
+        String[] args = new String[]{ledger_id};
+        int rows = 1;
+        out.writeByte(SECTION_LEDGER);
+        out.writeGid(ledger.getString(1));
+        out.writeString(ledger.getString(2));
+        out.writeText(ledger.getString(3));
+        out.writeString(ledger.getString(4));
+        out.writeString(ledger.getString(5));
+
+        Map<Long, Integer> members = new HashMap<Long, Integer>();
+        Cursor cursor = mDb.rawQuery(MEMBERS_QUERY, args);
+        try {
+            out.writeVarint(cursor.getCount());
+            while (cursor.moveToNext()) {
+                members.put(cursor.getLong(0), members.size());
+                out.writeString(cursor.getString(1));
+            }
+            rows += cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+
+        Map<Long, Integer> rules = new HashMap<Long, Integer>();
+        cursor = mDb.rawQuery(RULES_QUERY, new String[]{ledger_id, ledger_id});
+        try {
+            out.writeVarint(cursor.getCount());
+            while (cursor.moveToNext()) {
+                rules.put(cursor.getLong(0), rules.size());
+                out.writeVarint(members.get(cursor.getLong(1)));
+                out.writeString(cursor.getString(2));
+                out.writeText(cursor.getString(3));
+                out.writeAmount(cursor.getDouble(4));
+                out.writeString(cursor.getString(5));
+                out.writeString(cursor.getString(6));
+                out.writeString(cursor.getString(7));
+                out.writeString(cursor.getString(8));
+                out.writeString(cursor.isNull(9) ? null : cursor.getString(9));
+                out.writeVarint(cursor.getLong(10));
+                out.writeString(cursor.getString(11));
+            }
+            rows += cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mDb.rawQuery(PURCHASES_QUERY, args);
+        try {
+            out.writeVarint(cursor.getCount());
+            while (cursor.moveToNext()) {
+                out.writeVarint(members.get(cursor.getLong(0)));
+                out.writeString(cursor.getString(1));
+                out.writeText(cursor.getString(2));
+                out.writeAmount(cursor.getDouble(3));
+                out.writeString(cursor.getString(4));
+                out.writeString(cursor.getString(5));
+                out.writeString(cursor.getString(6));
+                out.writeGid(cursor.getString(7));
+                Integer rule = cursor.isNull(8) ? null : rules.get(cursor.getLong(8));
+                out.writeVarint(rule == null ? 0 : rule + 1);
+                out.writeText(cursor.getString(9));
+            }
+            rows += cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mDb.rawQuery(PAYMENTS_QUERY, args);
+        try {
+            out.writeVarint(cursor.getCount());
+            while (cursor.moveToNext()) {
+                out.writeVarint(members.get(cursor.getLong(0)));
+                out.writeVarint(members.get(cursor.getLong(1)));
+                out.writeString(cursor.getString(2));
+                out.writeText(cursor.getString(3));
+                out.writeAmount(cursor.getDouble(4));
+                out.writeString(cursor.getString(5));
+                out.writeString(cursor.getString(6));
+                out.writeGid(cursor.getString(7));
+            }
+            rows += cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    // Ordered by device and seq, so a seq is written as the step from the last one
+    private int writeOplog(BackupWriter out) throws IOException {
+        Cursor ops = mDb.rawQuery(OPLOG_QUERY, null);
+        try {
+            out.writeByte(SECTION_OPLOG);
+            out.writeVarint(ops.getCount());
+            String device_id = null;
+            long seq = 0;
+            while (ops.moveToNext()) {
+                if (!ops.getString(0).equals(device_id)) {
+                    device_id = ops.getString(0);
+                    seq = 0;
+                }
+                out.writeString(device_id);
+                out.writeVarint(ops.getLong(1) - seq);
+                seq = ops.getLong(1);
+                out.writeVarint(ops.getLong(2));
+                out.writeString(ops.getString(3));
+                out.writeGid(ops.getString(4));
+                out.writeString(ops.getString(5));
+                out.writeText(ops.isNull(6) ? null : ops.getString(6));
+                out.writeText(ops.getString(7));
+            }
+            return ops.getCount();
+        } finally {
+            ops.close();
+        }
+    }
+
+    /**
+     * Inserts the rows of a backup through compiled statements.
+     */
+    private class Loader {
+        private final SQLiteStatement mLedger = mDb.compileStatement(LEDGER_INSERT);
+        private final SQLiteStatement mMember = mDb.compileStatement(MEMBER_INSERT);
+        private final SQLiteStatement mRule = mDb.compileStatement(RULE_INSERT);
+        private final SQLiteStatement mPurchase = mDb.compileStatement(PURCHASE_INSERT);
+        private final SQLiteStatement mPayment = mDb.compileStatement(PAYMENT_INSERT);
+        private final SQLiteStatement mFxRate = mDb.compileStatement(FX_RATE_INSERT);
+        private final SQLiteStatement mOp = mDb.compileStatement(OPLOG_INSERT);
+        private final long mVersion;
+
+        Loader(long version) {
+            mVersion = version;
+        }
+
+        int readFxRates(BackupReader in) throws IOException {
+            long count = in.readVarint();
+            for (long i = 0; i < count; i++) {
+                bindText(mFxRate, 1, in.readString());
+                bindText(mFxRate, 2, in.readString());
+                mFxRate.bindDouble(3, in.readDouble());
+                mFxRate.executeInsert();
+            }
+            return (int) count;
+        }
+
+        int readLedger(BackupReader in) throws IOException {
+            int rows = 1;
+            bindText(mLedger, 1, in.readGid());
+            bindText(mLedger, 2, in.readString());
+            bindText(mLedger, 3, in.readText());
+            bindText(mLedger, 4, in.readString());
+            bindText(mLedger, 5, in.readString());
+            long ledger_id = mLedger.executeInsert();
+
+            long[] members = new long[(int) in.readVarint()];
+            for (int i = 0; i < members.length; i++) {
+                mMember.bindLong(1, ledger_id);
+                bindText(mMember, 2, in.readString());
+                members[i] = mMember.executeInsert();
+            }
+            rows += members.length;
+
+            long[] rules = new long[(int) in.readVarint()];
+            for (int i = 0; i < rules.length; i++) {
+                mRule.bindLong(1, ledger_id);
+                mRule.bindLong(2, member(members, in.readVarint()));
+                bindText(mRule, 3, in.readString());
+                bindText(mRule, 4, in.readText());
+                mRule.bindDouble(5, in.readAmount());
+                bindText(mRule, 6, in.readString());
+                bindText(mRule, 7, in.readString());
+                bindText(mRule, 8, in.readString());
+                bindText(mRule, 9, in.readString());
+                bindText(mRule, 10, in.readString());
+                mRule.bindLong(11, in.readVarint());
+                bindText(mRule, 12, in.readString());
+                rules[i] = mRule.executeInsert();
+            }
+            rows += rules.length;
+
+            long count = in.readVarint();
+            for (long i = 0; i < count; i++) {
+                mPurchase.bindLong(1, ledger_id);
+                mPurchase.bindLong(2, member(members, in.readVarint()));
+                bindText(mPurchase, 3, in.readString());
+                bindText(mPurchase, 4, in.readText());
+                mPurchase.bindDouble(5, in.readAmount());
+                bindText(mPurchase, 6, in.readString());
+                bindText(mPurchase, 7, in.readString());
+                bindText(mPurchase, 8, in.readString());
+                bindText(mPurchase, 9, in.readGid());
+                long rule = in.readVarint();
+                if (rule == 0) {
+                    mPurchase.bindNull(10);
+                } else if (rule <= rules.length) {
+                    mPurchase.bindLong(10, rules[(int) rule - 1]);
+                } else {
+                    throw new IOException("Bad recurring purchase reference " + rule);
+                }
+                bindText(mPurchase, 11, mVersion < 2 ? null : in.readText());
+                mPurchase.executeInsert();
+            }
+            rows += count;
+
+            count = in.readVarint();
+            for (long i = 0; i < count; i++) {
+                mPayment.bindLong(1, ledger_id);
+                mPayment.bindLong(2, member(members, in.readVarint()));
+                mPayment.bindLong(3, member(members, in.readVarint()));
+                bindText(mPayment, 4, in.readString());
+                bindText(mPayment, 5, in.readText());
+                mPayment.bindDouble(6, in.readAmount());
+                bindText(mPayment, 7, in.readString());
+                bindText(mPayment, 8, in.readString());
+                bindText(mPayment, 9, in.readGid());
+                mPayment.executeInsert();
+            }
+            rows += count;
+            return rows;
+        }
+
+        int readOplog(BackupReader in) throws IOException {
+            long count = in.readVarint();
+            String device_id = null;
+            long seq = 0;
+            for (long i = 0; i < count; i++) {
+                String device = in.readString();
+                if (!device.equals(device_id)) {
+                    device_id = device;
+                    seq = 0;
+                }
+                seq += in.readVarint();
+                bindText(mOp, 1, device_id);
+                mOp.bindLong(2, seq);
+                mOp.bindLong(3, in.readVarint());
+                bindText(mOp, 4, in.readString());
+                bindText(mOp, 5, in.readGid());
+                bindText(mOp, 6, in.readString());
+                bindText(mOp, 7, in.readText());
+                bindText(mOp, 8, in.readText());
+                mOp.executeInsert();
+            }
+            return (int) count;
+        }
+
+        void close() {
+            mLedger.close();
+            mMember.close();
+            mRule.close();
+            mPurchase.close();
+            mPayment.close();
+            mFxRate.close();
+            mOp.close();
+        }
+
+        private long member(long[] members, long index) throws IOException {
+            if (index >= members.length) {
+                throw new IOException("Bad member reference " + index);
+            }
+            return members[(int) index];
+        }
+
+        // bindString() does not take null
+        private void bindText(SQLiteStatement statement, int index, String value) {
+            if (value == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, value);
+            }
+        }
+    }
+
+    /**
+     * Writes the primitive values of the backup format and keeps its checksum.
+     */
+    private static class BackupWriter {
+        private final CRC32 mCrc = new CRC32();
+        private final OutputStream mFile;
+        private final OutputStream mOut;
+        private final Map<String, Integer> mStrings = new HashMap<String, Integer>();
+
+        BackupWriter(OutputStream out) {
+            mFile = new BufferedOutputStream(out, 64 * 1024);
+            mOut = new CheckedOutputStream(mFile, mCrc);
+        }
+
+        void writeByte(int value) throws IOException {
+            mOut.write(value);
+        }
+
+        void writeInt(int value) throws IOException {
+            mOut.write(value >>> 24);
+            mOut.write(value >>> 16);
+            mOut.write(value >>> 8);
+            mOut.write(value);
+        }
+
+        void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                mOut.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mOut.write((int) value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            long bits = Double.doubleToLongBits(value);
+            writeInt((int) (bits >>> 32));
+            writeInt((int) bits);
+        }
+
+        /**
+         * Amounts are written as zigzag encoded cents shifted left by one. An
+         * amount with a fraction of a cent sets the low bit and follows as a
+         * double.
+         */
+        void writeAmount(double amount) throws IOException {
+            long cents = Math.round(amount * 100);
+            if (cents / 100.0 == amount) {
+                writeVarint(((cents << 1) ^ (cents >> 63)) << 1);
+            } else {
+                writeVarint(1);
+                writeDouble(amount);
+            }
+        }
+
+        /** A string that may repeat: 0 for null, n for the dictionary entry n - 1. */
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer index = mStrings.get(value);
+            if (index != null) {
+                writeVarint(index + 1);
+            } else {
+                writeVarint(mStrings.size() + 1);
+                writeBytes(value);
+                mStrings.put(value, mStrings.size());
+            }
+        }
+
+        /** A string unlikely to repeat, kept out of the dictionary. */
+        void writeText(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+            } else {
+                byte[] bytes = value.getBytes("UTF-8");
+                writeVarint(bytes.length + 1);
+                mOut.write(bytes);
+            }
+        }
+
+        /** Random gids are 32 hex digits and are written as 16 bytes. */
+        void writeGid(String gid) throws IOException {
+            if (gid.length() == 32 && gid.matches("[0-9a-f]+")) {
+                writeByte(16);
+                for (int i = 0; i < 32; i += 2) {
+                    mOut.write(Integer.parseInt(gid.substring(i, i + 2), 16));
+                }
+            } else {
+                writeByte(0);
+                writeText(gid);
+            }
+        }
+
+        // Ends the stream with its checksum, which is not itself checksummed
+        void finish() throws IOException {
+            writeByte(SECTION_END);
+            long crc = mCrc.getValue();
+            mFile.write((int) (crc >>> 24));
+            mFile.write((int) (crc >>> 16));
+            mFile.write((int) (crc >>> 8));
+            mFile.write((int) crc);
+        }
+
+        void close() throws IOException {
+            mFile.close();
+        }
+
+        private void writeBytes(String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarint(bytes.length);
+            mOut.write(bytes);
+        }
+    }
+
+    /**
+     * Reads the primitive values written by BackupWriter and checks the checksum.
+     */
+    private static class BackupReader {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final CRC32 mCrc = new CRC32();
+        private final InputStream mFile;
+        private final InputStream mIn;
+        private final List<String> mStrings = new ArrayList<String>();
+
+        BackupReader(InputStream in) {
+            mFile = new BufferedInputStream(in, 64 * 1024);
+            mIn = new CheckedInputStream(mFile, mCrc);
+        }
+
+        int readByte() throws IOException {
+            int value = mIn.read();
+            if (value == -1) {
+                throw new EOFException("Truncated backup");
+            }
+            return value;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Bad varint");
+        }
+
+        double readDouble() throws IOException {
+            long high = readInt() & 0xFFFFFFFFL;
+            long low = readInt() & 0xFFFFFFFFL;
+            return Double.longBitsToDouble((high << 32) | low);
+        }
+
+        double readAmount() throws IOException {
+            long value = readVarint();
+            if ((value & 1) != 0) {
+                return readDouble();
+            }
+            long zigzag = value >>> 1;
+            return ((zigzag >>> 1) ^ -(zigzag & 1)) / 100.0;
+        }
+
+        String readString() throws IOException {
+            long code = readVarint();
+            if (code == 0) {
+                return null;
+            } else if (code <= mStrings.size()) {
+                return mStrings.get((int) code - 1);
+            } else if (code == mStrings.size() + 1) {
+                String value = new String(readBytes((int) readVarint()), "UTF-8");
+                mStrings.add(value);
+                return value;
+            }
+            throw new IOException("Bad string reference " + code);
+        }
+
+        String readText() throws IOException {
+            long length = readVarint();
+            return length == 0 ? null : new String(readBytes((int) length - 1), "UTF-8");
+        }
+
+        String readGid() throws IOException {
+            if (readByte() == 0) {
+                return readText();
+            }
+            char[] gid = new char[32];
+            for (int i = 0; i < 32; i += 2) {
+                int b = readByte();
+                gid[i] = HEX[b >> 4];
+                gid[i + 1] = HEX[b & 0x0F];
+            }
+            return new String(gid);
+        }
+
+        // Call after SECTION_END: the four bytes left are the checksum
+        void finish() throws IOException {
+            long expected = mCrc.getValue();
+            long crc = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = mFile.read();
+                if (b == -1) {
+                    throw new EOFException("Truncated backup");
+                }
+                crc = (crc << 8) | b;
+            }
+            if (crc != expected || mFile.read() != -1) {
+                throw new IOException("Backup checksum mismatch");
+            }
+        }
+
+        void close() throws IOException {
+            mFile.close();
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int read = mIn.read(bytes, offset, length - offset);
+                if (read == -1) {
+                    throw new EOFException("Truncated backup");
+                }
+                offset += read;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+/**
+ * Table and column names of the whole schema. DatabaseHelper builds its CREATE
+ * statements from these, the adapters' KEY_* and table constants are aliases
+ * of them, and ContentValues keys, selections and the bulk statements of
+ * LedgerBackup and LedgerGenerator use them. Purchases and payments also have
+ * the projections read by the row mappers of Purchase and Payment.
+ * <p/>
+ * Oplog payloads carry a row's columns under their column names, so Projector
+ * reads them with these constants too.
+ */
+public final class LedgerContract {
+
+    private LedgerContract() {
+    }
+
+    /** Columns every table with a row id has. */
+    public interface BaseColumns {
+        String ID = "_id";
+    }
+
+    public static final class Ledgers implements BaseColumns {
+        public static final String TABLE = "ledgers";
+        public static final String TITLE = "title";
+        public static final String DESCRIPTION = "description";
+        public static final String GID = "gid";
+        public static final String CURRENCY = "currency";
+        public static final String MEMBER_COUNT = "member_count";
+        public static final String ROSTER_VERSION = "roster_version";
+        public static final String VERSION = "version";
+        public static final String PURCHASE_TOTAL = "purchase_total";
+        public static final String LAST_ACTIVITY = "last_activity";
+
+        private Ledgers() {
+        }
+    }
+
+    public static final class Members implements BaseColumns {
+        public static final String TABLE = "members";
+        public static final String LEDGER_ID = "ledger_id";
+        public static final String MEMBER = "member";
+
+        private Members() {
+        }
+    }
+
+    public static final class Purchases implements BaseColumns {
+        public static final String TABLE = "purchases";
+        public static final String LEDGER_ID = "ledger_id";
+        public static final String MEMBER_ID = "member_id";
+        public static final String TITLE = "title";
+        public static final String DESCRIPTION = "description";
+        public static final String AMOUNT = "amount";
+        public static final String CURRENCY = "currency";
+        public static final String CATEGORY = "category";
+        public static final String GID = "gid";
+        public static final String PURCHASE_DATE = "purchase_date";
+        public static final String RECURRING_ID = "recurring_id";
+        public static final String RECEIPT = "receipt";
+
+        /** The columns read by Purchase.mapper(). */
+        public static final String[] PROJECTION = new String[]{ID, MEMBER_ID, TITLE,
+                DESCRIPTION, AMOUNT, CURRENCY, CATEGORY, RECEIPT};
+
+        private Purchases() {
+        }
+    }
+
+    public static final class Payments implements BaseColumns {
+        public static final String TABLE = "payments";
+        public static final String LEDGER_ID = "ledger_id";
+        public static final String TITLE = "title";
+        public static final String DESCRIPTION = "description";
+        public static final String FROM_MEMBER_ID = "from_member_id";
+        public static final String TO_MEMBER_ID = "to_member_id";
+        public static final String AMOUNT = "amount";
+        public static final String CURRENCY = "currency";
+        public static final String PAYMENT_DATE = "payment_date";
+        public static final String GID = "gid";
+
+        /** The columns read by Payment.mapper(). */
+        public static final String[] PROJECTION = new String[]{ID, FROM_MEMBER_ID, TO_MEMBER_ID,
+                TITLE, DESCRIPTION, AMOUNT, CURRENCY};
+
+        private Payments() {
+        }
+    }
+
+    public static final class RecurringPurchases implements BaseColumns {
+        public static final String TABLE = "recurring_purchases";
+        public static final String LEDGER_ID = "ledger_id";
+        public static final String MEMBER_ID = "member_id";
+        public static final String TITLE = "title";
+        public static final String DESCRIPTION = "description";
+        public static final String AMOUNT = "amount";
+        public static final String CURRENCY = "currency";
+        public static final String CATEGORY = "category";
+        public static final String PERIOD = "period";
+        public static final String START_DATE = "start_date";
+        public static final String END_DATE = "end_date";
+        public static final String OCCURRENCES = "occurrences";
+        public static final String NEXT_DATE = "next_date";
+
+        private RecurringPurchases() {
+        }
+    }
+
+    public static final class SpendingRollups {
+        public static final String TABLE = "spending_rollups";
+        public static final String LEDGER_ID = "ledger_id";
+        public static final String MEMBER_ID = "member_id";
+        public static final String MONTH = "month";
+        public static final String CATEGORY = "category";
+        public static final String CURRENCY = "currency";
+        public static final String TOTAL = "total";
+        public static final String PURCHASE_COUNT = "purchase_count";
+
+        private SpendingRollups() {
+        }
+    }
+
+    public static final class FxRates {
+        public static final String TABLE = "fx_rates";
+        public static final String CURRENCY = "currency";
+        public static final String RATE_DATE = "rate_date";
+        public static final String RATE = "rate";
+
+        private FxRates() {
+        }
+    }
+
+    public static final class Oplog {
+        public static final String TABLE = "oplog";
+        public static final String DEVICE_ID = "device_id";
+        public static final String SEQ = "seq";
+        public static final String LAMPORT = "lamport";
+        public static final String ENTITY = "entity";
+        public static final String GID = "gid";
+        public static final String OP = "op";
+        public static final String DATA = "data";
+        public static final String RECORDED_AT = "recorded_at";
+
+        private Oplog() {
+        }
+    }
+
+    public static final class Snapshots implements BaseColumns {
+        public static final String TABLE = "snapshots";
+        public static final String LAMPORT = "lamport";
+        public static final String DEVICE_ID = "device_id";
+        public static final String EVENTS = "events";
+        public static final String CREATED = "created";
+
+        private Snapshots() {
+        }
+    }
+
+    public static final class SnapshotRows {
+        public static final String TABLE = "snapshot_rows";
+        public static final String SNAPSHOT_ID = "snapshot_id";
+        public static final String ENTITY = "entity";
+        public static final String GID = "gid";
+        public static final String DATA = "data";
+
+        private SnapshotRows() {
+        }
+    }
+
+    public static final class SyncState {
+        public static final String TABLE = "sync_state";
+        public static final String NAME = "name";
+        public static final String VALUE = "value";
+
+        private SyncState() {
+        }
+    }
+
+    public static final class SyncPeers {
+        public static final String TABLE = "sync_peers";
+        public static final String PEER_ID = "peer_id";
+        public static final String DEVICE_ID = "device_id";
+        public static final String SEQ = "seq";
+
+        private SyncPeers() {
+        }
+    }
+}
@@ -22,10 +22,12 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
 
 /**
  * Simple purchases database access helper class. Defines the basic CRUD operations
@@ -39,21 +41,47 @@ import java.util.List;
  */
 public class LedgerDbAdapter {
 
-    public static final String KEY_TITLE = "title";
-    public static final String KEY_DESCRIPTION = "description";
-    public static final String KEY_AMOUNT = "amount";
-    public static final String KEY_LEDGER_ID = "ledger_id";
-    public static final String KEY_MEMBER = "member_id";
-    public static final String KEY_MEMBER_ID = "_id";
-    public static final String KEY_ROWID = "_id";
+    public static final String KEY_TITLE = Purchases.TITLE;
+    public static final String KEY_DESCRIPTION = Purchases.DESCRIPTION;
+    public static final String KEY_AMOUNT = Purchases.AMOUNT;
+    public static final String KEY_CATEGORY = Purchases.CATEGORY;
+    public static final String KEY_CURRENCY = Purchases.CURRENCY;
+    public static final String KEY_RECEIPT = Purchases.RECEIPT;
+    public static final String KEY_LEDGER_ID = Purchases.LEDGER_ID;
+    public static final String KEY_MEMBER = Purchases.MEMBER_ID;
+    public static final String KEY_MEMBER_ID = Members.ID;
+    public static final String KEY_ROWID = Purchases.ID;
 
     private static final String TAG = "LedgerDbAdapter";
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
+    private RecurringDbAdapter mRecurringDbHelper;
+    private FxRatesDbAdapter mFxRatesDbHelper;
+    private OplogDbAdapter mOplogDbHelper;
 
-    private static final String PURCHASES_DATABASE_TABLE = "purchases";
-    private static final String PAYMENTS_DATABASE_TABLE = "payments";
-    private static final String MEMBERS_DATABASE_TABLE = "members";
+    private static final String PURCHASES_DATABASE_TABLE = Purchases.TABLE;
+    private static final String PAYMENTS_DATABASE_TABLE = Payments.TABLE;
+    private static final String MEMBERS_DATABASE_TABLE = Members.TABLE;
+
+    static final String PURCHASES_QUERY =
+            "SELECT _id, title, amount, currency, receipt FROM purchases WHERE ledger_id = ?";
+
+    static final String LEDGER_VERSION_QUERY = "SELECT version FROM ledgers WHERE _id = ?";
+
+    static final String MEMBER_ID_QUERY = "SELECT " + KEY_MEMBER_ID + " FROM " +
+            MEMBERS_DATABASE_TABLE + " WHERE ledger_id = ? AND member = ?";
+
+    // The member of the target ledger with the same name as the purchase's member
+    private static final String TARGET_MEMBER = "(SELECT t._id FROM members f " +
+            "JOIN members t ON t.member = f.member WHERE f._id = purchases.member_id " +
+            "AND t.ledger_id = ?1)";
+
+    // Moved purchases leave their recurring series, which stays in the old ledger.
+    // Purchases whose member is not in the target ledger are not moved.
+    private static final String MOVE_PURCHASE =
+            "UPDATE purchases SET ledger_id = ?1, member_id = " + TARGET_MEMBER + ", " +
+                    "recurring_id = NULL WHERE _id = ?2 AND ledger_id = ?3 AND " +
+                    TARGET_MEMBER + " IS NOT NULL";
 
     private final Context mCtx;
     /**
@@ -78,6 +106,9 @@ public class LedgerDbAdapter {
     public LedgerDbAdapter open() throws SQLException {
         mDbHelper = DatabaseHelper.getInstance(mCtx);
         mDb = mDbHelper.getWritableDatabase();
+        mRecurringDbHelper = new RecurringDbAdapter(mCtx).open();
+        mFxRatesDbHelper = new FxRatesDbAdapter(mCtx).open();
+        mOplogDbHelper = new OplogDbAdapter(mCtx).open();
         return this;
     }
 
@@ -94,39 +125,189 @@ public class LedgerDbAdapter {
      * @param title       the title of the purchase
      * @param description the description of the purchase
      * @param amount      the amount of the purchase
+     * @param currency    the currency the amount was paid in
+     * @param category    the spending category of the purchase
      * @return rowId or -1 if failed
      */
-    public long createPurchase(String title, String member, String description, double amount, long ledger_id) {
+    public long createPurchase(String title, String member, String description, double amount,
+                               String currency, String category, long ledger_id) {
         long member_id = getMemberId(member, ledger_id);
         ContentValues initialValues = new ContentValues();
         initialValues.put(KEY_TITLE, title);
         initialValues.put(KEY_MEMBER, member_id);
         initialValues.put(KEY_DESCRIPTION, description);
         initialValues.put(KEY_AMOUNT, amount);
+        initialValues.put(KEY_CURRENCY, FxRatesDbAdapter.normalizeCurrency(currency));
+        initialValues.put(KEY_CATEGORY, category);
         initialValues.put(KEY_LEDGER_ID, ledger_id);
 
-        return mDb.insert(PURCHASES_DATABASE_TABLE, null, initialValues);
+        long rowId;
+        mDb.beginTransaction();
+        try {
+            rowId = mDb.insert(PURCHASES_DATABASE_TABLE, null, initialValues);
+            if (rowId != -1) {
+                mOplogDbHelper.recordPurchase(rowId, OplogDbAdapter.OP_CREATE);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (rowId != -1) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PURCHASES, rowId);
+        }
+        return rowId;
+    }
+
+    /**
+     * Create a purchase that repeats every period starting today. The rule is
+     * stored once and its occurrences are written as they come due; the
+     * occurrence for today is written immediately.
+     *
+     * @param period RecurringDbAdapter.PERIOD_WEEKLY or PERIOD_MONTHLY
+     * @return rowId of today's occurrence or -1 if failed
+     */
+    public long createRecurringPurchase(String title, String member, String description,
+                                        double amount, String currency, String category,
+                                        String period, long ledger_id) {
+        long member_id = getMemberId(member, ledger_id);
+        String today = RecurringDbAdapter.today();
+        long rule_id = mRecurringDbHelper.createRule(ledger_id, member_id, title, description,
+                amount, FxRatesDbAdapter.normalizeCurrency(currency), category, period, today,
+                null);
+        if (rule_id == -1)
+            return -1;
+        mRecurringDbHelper.materialize(ledger_id, today);
+        return mRecurringDbHelper.getFirstOccurrenceId(rule_id);
+    }
+
+    /**
+     * Stop the purchase with the given rowId from recurring after today.
+     *
+     * @return true if the purchase was recurring, false otherwise
+     */
+    public boolean endRecurrence(long rowId) {
+        return mRecurringDbHelper.endRuleOfPurchase(rowId);
     }
 
-    public long getMemberId(String member, long ledger_id) {
-        Cursor mCursor =
-                mDb.query(MEMBERS_DATABASE_TABLE, new String[]{KEY_MEMBER_ID},
-                        "ledger_id = ? AND member = ?",
-                        new String[]{String.valueOf(ledger_id), member}, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+    /**
+     * Return the row id of the named member of the given ledger
+     *
+     * @throws android.database.SQLException if the ledger has no such member
+     */
+    public long getMemberId(String member, long ledger_id) throws SQLException {
+        long member_id = CursorHelper.longForQuery(mDb, MEMBER_ID_QUERY,
+                new String[]{String.valueOf(ledger_id), member}, -1);
+        if (member_id == -1) {
+            throw new SQLException("No member " + member + " in ledger " + ledger_id);
         }
-        return mCursor.getLong(0);
+        return member_id;
     }
 
     /**
-     * Delete the purchase with the given rowId
+     * Delete the purchase with the given rowId. The purchase is voided: its
+     * events stay in the oplog and its history can still be read.
      *
-     * @param rowId id of purchase to delete
+     * @param rowId     id of purchase to delete
+     * @param ledger_id id of the ledger the purchase belongs to
      * @return true if deleted, false otherwise
      */
-    public boolean deletePurchase(long rowId) {
-        return mDb.delete(PURCHASES_DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+    public boolean deletePurchase(long rowId, long ledger_id) {
+        boolean deleted;
+        mDb.beginTransaction();
+        try {
+            deleted = deletePurchaseRow(rowId);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PURCHASES, rowId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the purchases with the given rowIds in one transaction, voiding
+     * each, and publish a single change for the ledger.
+     *
+     * @param rowIds    ids of the purchases to delete
+     * @param ledger_id id of the ledger the purchases belong to
+     * @return the number of purchases deleted
+     */
+    public int deletePurchases(long[] rowIds, long ledger_id) {
+        int deleted = 0;
+        mDb.beginTransaction();
+        try {
+            for (long rowId : rowIds) {
+                if (deletePurchaseRow(rowId)) {
+                    deleted++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted > 0) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PURCHASES,
+                    ChangeBus.ANY_ROW);
+        }
+        return deleted;
+    }
+
+    private boolean deletePurchaseRow(long rowId) {
+        String gid = mOplogDbHelper.getGid(PURCHASES_DATABASE_TABLE, rowId);
+        boolean deleted = mDb.delete(PURCHASES_DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        if (deleted) {
+            mOplogDbHelper.recordVoid(OplogDbAdapter.ENTITY_PURCHASE, gid);
+        }
+        return deleted;
+    }
+
+    /**
+     * Move the purchases with the given rowIds to another ledger in one
+     * transaction. Each purchase is assigned to the member of the same name in
+     * the target ledger; purchases whose member the target ledger does not have
+     * stay where they are.
+     *
+     * @param rowIds       ids of the purchases to move
+     * @param ledger_id    id of the ledger the purchases belong to
+     * @param to_ledger_id id of the ledger to move them to
+     * @return the number of purchases moved
+     */
+    public int movePurchases(long[] rowIds, long ledger_id, long to_ledger_id) {
+        int moved = 0;
+        mDb.beginTransaction();
+        SQLiteStatement move = mDb.compileStatement(MOVE_PURCHASE);
+        try {
+            move.bindLong(1, to_ledger_id);
+            move.bindLong(3, ledger_id);
+            for (long rowId : rowIds) {
+                move.bindLong(2, rowId);
+                if (move.executeUpdateDelete() > 0) {
+                    mOplogDbHelper.recordPurchase(rowId, OplogDbAdapter.OP_AMEND);
+                    moved++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            move.close();
+            mDb.endTransaction();
+        }
+        if (moved > 0) {
+            ChangeBus bus = ChangeBus.getInstance();
+            bus.publish(ledger_id, ChangeBus.TABLE_PURCHASES, ChangeBus.ANY_ROW);
+            bus.publish(to_ledger_id, ChangeBus.TABLE_PURCHASES, ChangeBus.ANY_ROW);
+        }
+        return moved;
+    }
+
+    /**
+     * Return a Cursor over the id and title of every ledger but the given one,
+     * the ledgers rows can be moved to.
+     */
+    public Cursor fetchOtherLedgers(long ledger_id) {
+        return mDb.rawQuery("SELECT _id, title FROM ledgers WHERE _id != ? ORDER BY title",
+                new String[]{String.valueOf(ledger_id)});
     }
 
     /**
@@ -135,54 +316,32 @@ public class LedgerDbAdapter {
      * @return Cursor over all purchases
      */
     public Cursor fetchAllPurchases(long ledger_id) {
-        Cursor mCursor = mDb.rawQuery("SELECT _id, title, amount FROM purchases WHERE ledger_id = ?",
-                new String[] {String.valueOf(ledger_id)});
+        mRecurringDbHelper.materialize(ledger_id, RecurringDbAdapter.today());
+        Cursor mCursor = mDb.rawQuery(PURCHASES_QUERY, new String[] {String.valueOf(ledger_id)});
         return mCursor;
     }
 
     /**
-     * Return a Cursor over the list of roommates for the given ledger_id in the database
+     * Return the roster of the given ledger. The roster is shared through
+     * RosterCache and stays the same instance until the members change.
      *
-     * @return Cursor over all roommates
-     */
-    public List<String> fetchAllRoommates(long ledger_id) {
-        Cursor mCursor = mDb.rawQuery("SELECT member FROM members WHERE ledger_id = ?",
-                new String[] {String.valueOf(ledger_id)});
-        List<String> members = new ArrayList<String>();
-        mCursor.moveToPosition(-1);
-        while (mCursor.moveToNext()) {
-            members.add(mCursor.getString((mCursor.getColumnIndexOrThrow(HomeDbAdapter.KEY_MEMBER))));
-        }
-        return members;
+     * @return the immutable roster of the ledger
+     */
+    public RosterCache.Roster fetchRoster(long ledger_id) {
+        return RosterCache.getInstance().get(mDb, ledger_id);
     }
 
     /**
-     * Return a Cursor positioned at the purchase that matches the given rowId
+     * Return the purchase that matches the given rowId
      *
      * @param rowId id of purchase to retrieve
-     * @return Cursor positioned to matching purchase, if found
-     * @throws android.database.SQLException if purchase could not be found/retrieved
-     */
-    public Cursor fetchPurchase(long rowId) throws SQLException {
-        Cursor mCursor =
-                mDb.query(true, PURCHASES_DATABASE_TABLE, new String[]{KEY_ROWID, KEY_MEMBER,
-                                KEY_TITLE, KEY_DESCRIPTION, KEY_AMOUNT}, KEY_ROWID + "=" + rowId, null,
-                        null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
-        }
-        return mCursor;
-    }
-
-    public int getCountBefore(long ledger_id) {
-        if (ledger_id > 1) {
-            String sql = "SELECT COUNT(*) FROM members WHERE ledger_id < ?";
-            Cursor cursor = mDb.rawQuery(sql, new String[]{String.valueOf(ledger_id)});
-            if (cursor.moveToFirst()) {
-                return cursor.getInt(0);
-            }
-        }
-        return 0;
+     * @return the purchase, or null if there is none with that id
+     * @throws android.database.SQLException if purchase could not be retrieved
+     */
+    public Purchase getPurchase(long rowId) throws SQLException {
+        Cursor cursor = mDb.query(PURCHASES_DATABASE_TABLE, Purchases.PROJECTION,
+                KEY_ROWID + "=" + rowId, null, null, null, null);
+        return CursorHelper.first(cursor, Purchase.mapper(), null);
     }
 
     /**
@@ -193,28 +352,102 @@ public class LedgerDbAdapter {
      * @param rowId id of purchase to update
      * @param title value to set purchase title to
      * @param description  value to set purchase body to
-     * @return true if the purchase was successfully updated, false otherwise
+     * @param currency value to set purchase currency to
+     * @param category value to set purchase category to
+     * @return true if the purchase was changed, false if it was not found or
+     * already held these values
      */
-    public boolean updatePurchase(String title, String member, String description, double amount, long rowId, long ledger_id) {
+    public boolean updatePurchase(String title, String member, String description, double amount,
+                                  String currency, String category, long rowId, long ledger_id) {
         long member_id = getMemberId(member, ledger_id);
+        currency = FxRatesDbAdapter.normalizeCurrency(currency);
         ContentValues args = new ContentValues();
         args.put(KEY_TITLE, title);
         args.put(KEY_MEMBER, member_id);
         args.put(KEY_DESCRIPTION, description);
         args.put(KEY_AMOUNT, amount);
+        args.put(KEY_CURRENCY, currency);
+        args.put(KEY_CATEGORY, category);
         args.put(KEY_LEDGER_ID, ledger_id);
 
-        return mDb.update(PURCHASES_DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+        boolean updated;
+        mDb.beginTransaction();
+        try {
+            // Only touch the row when a value differs, so saving an unchanged form is a no-op
+            updated = mDb.update(PURCHASES_DATABASE_TABLE, args, KEY_ROWID + "=" + rowId +
+                            " AND (" + KEY_TITLE + " IS NOT ? OR " + KEY_MEMBER + " IS NOT ? OR " +
+                            KEY_DESCRIPTION + " IS NOT ? OR " + KEY_AMOUNT + " IS NOT ? OR " +
+                            KEY_CURRENCY + " IS NOT ? OR " + KEY_CATEGORY + " IS NOT ?)",
+                    new String[]{title, String.valueOf(member_id), description,
+                            String.valueOf(amount), currency, category}) > 0;
+            if (updated) {
+                mOplogDbHelper.recordPurchase(rowId, OplogDbAdapter.OP_AMEND);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (updated) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PURCHASES, rowId);
+        }
+        return updated;
     }
 
-    public double fetchTotalOfPurchases(long ledger_id) {
-        String sql = "SELECT SUM(" + KEY_AMOUNT + ") FROM " + PURCHASES_DATABASE_TABLE +
-                " WHERE ledger_id=" + ledger_id;
-        Cursor cursor = mDb.rawQuery(sql, null);
-        if(cursor.moveToFirst()) {
-            return cursor.getDouble(0);
+    /**
+     * Attach a receipt to the purchase, replacing any it had. Receipts are
+     * files on this device only, so this is not logged or synced.
+     *
+     * @param rowId     id of purchase to attach the receipt to
+     * @param receipt   file name returned by ReceiptStore.importReceipt()
+     * @param ledger_id id of the ledger the purchase belongs to
+     * @return true if the purchase was found
+     */
+    public boolean setReceipt(long rowId, String receipt, long ledger_id) {
+        ContentValues args = new ContentValues();
+        args.put(KEY_RECEIPT, receipt);
+        boolean updated = mDb.update(PURCHASES_DATABASE_TABLE, args, KEY_ROWID + "=" + rowId,
+                null) > 0;
+        if (updated) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PURCHASES, rowId);
         }
-        return 0;
+        return updated;
+    }
+
+    /**
+     * Return the total of the ledger's purchases converted into the ledger's
+     * currency. The total is read from the ledger's cached purchase_total, which
+     * is recomputed first if a rate change invalidated it.
+     */
+    public double fetchTotalOfPurchases(long ledger_id) {
+        mRecurringDbHelper.materialize(ledger_id, RecurringDbAdapter.today());
+        mFxRatesDbHelper.refreshPurchaseTotals();
+        return CursorHelper.first(mDb.rawQuery("SELECT purchase_total FROM ledgers WHERE _id = ?",
+                new String[]{String.valueOf(ledger_id)}), new CursorHelper.RowMapper<Double>() {
+            public Double map(Cursor cursor) {
+                return cursor.getDouble(0);
+            }
+        }, 0.0);
+    }
+
+    /**
+     * Return the currency of the given ledger, in which its totals are shown.
+     */
+    public String fetchLedgerCurrency(long ledger_id) {
+        return CursorHelper.stringForQuery(mDb, "SELECT currency FROM ledgers WHERE _id = ?",
+                new String[]{String.valueOf(ledger_id)}, FxRatesDbAdapter.DEFAULT_CURRENCY);
+    }
+
+    /**
+     * Return the version of the given ledger. It only goes up, and does with
+     * every change to the ledger's members, purchases, payments, currency or
+     * the rates its rows are converted at, so a value computed from the ledger
+     * is current as long as the version it was computed at is.
+     *
+     * @return the version, or -1 if there is no such ledger
+     */
+    public long fetchLedgerVersion(long ledger_id) {
+        return CursorHelper.longForQuery(mDb, LEDGER_VERSION_QUERY,
+                new String[]{String.valueOf(ledger_id)}, -1);
     }
 
 }
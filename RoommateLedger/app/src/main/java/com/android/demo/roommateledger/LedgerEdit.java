@@ -17,11 +17,18 @@
 package com.android.demo.roommateledger;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.view.View;
+import android.view.KeyEvent;
+import android.view.inputmethod.EditorInfo;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -30,13 +37,9 @@ public class LedgerEdit extends Activity {
 
     private EditText mTitleText;
     private EditText mDescriptionText;
-    private EditText mRoommateText1;
-    private EditText mRoommateText2;
-    private EditText mRoommateText3;
-    private EditText mRoommateText4;
-    private EditText mRoommateText5;
-    private EditText mRoommateText6;
-    private List<EditText> roommates;
+    private EditText mCurrencyText;
+    private EditText mNewMemberText;
+    private RosterAdapter mRoster;
     private Long mRowId;
     private HomeDbAdapter mDbHelper;
 
@@ -51,20 +54,31 @@ public class LedgerEdit extends Activity {
 
         mTitleText = (EditText) findViewById(R.id.title);
         mDescriptionText = (EditText) findViewById(R.id.description);
-        mRoommateText1 = (EditText) findViewById(R.id.roommate1);
-        mRoommateText2 = (EditText) findViewById(R.id.roommate2);
-        mRoommateText3 = (EditText) findViewById(R.id.roommate3);
-        mRoommateText4 = (EditText) findViewById(R.id.roommate4);
-        mRoommateText5 = (EditText) findViewById(R.id.roommate5);
-        mRoommateText6 = (EditText) findViewById(R.id.roommate6);
-
-        roommates = new ArrayList<EditText>();
-        roommates.add(mRoommateText1);
-        roommates.add(mRoommateText2);
-        roommates.add(mRoommateText3);
-        roommates.add(mRoommateText4);
-        roommates.add(mRoommateText5);
-        roommates.add(mRoommateText6);
+        mCurrencyText = (EditText) findViewById(R.id.currency);
+        mNewMemberText = (EditText) findViewById(R.id.new_member);
+        mRoster = new RosterAdapter(this);
+        ListView roster = (ListView) findViewById(R.id.members);
+        roster.setAdapter(mRoster);
+        roster.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                renameMember(position);
+            }
+        });
+
+        findViewById(R.id.add_member).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View view) {
+                addMember();
+            }
+        });
+        mNewMemberText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            public boolean onEditorAction(TextView view, int actionId, KeyEvent event) {
+                if (actionId == EditorInfo.IME_ACTION_DONE) {
+                    addMember();
+                    return true;
+                }
+                return false;
+            }
+        });
 
         Button confirmButton = (Button) findViewById(R.id.confirm);
 
@@ -98,15 +112,40 @@ public class LedgerEdit extends Activity {
                     ledger.getColumnIndexOrThrow(HomeDbAdapter.KEY_TITLE)));
             mDescriptionText.setText(ledger.getString(
                     ledger.getColumnIndexOrThrow(HomeDbAdapter.KEY_DESCRIPTION)));
-            int index = 0;
+            mCurrencyText.setText(ledger.getString(
+                    ledger.getColumnIndexOrThrow(HomeDbAdapter.KEY_CURRENCY)));
+            List<String> names = new ArrayList<String>(members.getCount());
+            int column = members.getColumnIndexOrThrow(HomeDbAdapter.KEY_MEMBER);
             members.moveToPosition(-1);
             while (members.moveToNext()) {
-                roommates.get(index).setText(members.getString(members.getColumnIndexOrThrow(HomeDbAdapter.KEY_MEMBER)));
-                index++;
+                names.add(members.getString(column));
             }
+            mRoster.setMembers(names);
         }
     }
 
+    private void addMember() {
+        if (mRoster.add(mNewMemberText.getText().toString())) {
+            mNewMemberText.setText("");
+        }
+    }
+
+    // Renaming keeps the member's row, so their purchases and payments follow the new name
+    private void renameMember(final int position) {
+        final EditText name = new EditText(this);
+        name.setText((String) mRoster.getItem(position));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.rename_member)
+                .setView(name)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        mRoster.rename(position, name.getText().toString());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -129,21 +168,19 @@ public class LedgerEdit extends Activity {
     private void saveState() {
         String title = mTitleText.getText().toString();
         String description = mDescriptionText.getText().toString();
-        List<String> members = new ArrayList<String>();
-        for (EditText roommate : roommates) {
-            String member = roommate.getText().toString();
-            if (!member.equals("")) {
-                members.add(roommate.getText().toString());
-            }
-        }
+        String currency = mCurrencyText.getText().toString();
+        // A name typed but not yet added still counts
+        addMember();
+        List<String> members = mRoster.getMembers();
 
         if (mRowId == null) {
-            long id = mDbHelper.createLedger(title, description, members);
+            long id = mDbHelper.createLedger(title, description, currency, members);
             if (id > 0) {
                 mRowId = id;
             }
         } else {
-            mDbHelper.updateLedger(mRowId, title, description, members);
+            mDbHelper.updateLedger(mRowId, title, description, currency, members,
+                    mRoster.getRenames());
         }
     }
 
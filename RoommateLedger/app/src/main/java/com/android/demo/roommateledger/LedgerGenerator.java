@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.android.demo.roommateledger.LedgerContract.FxRates;
+import com.android.demo.roommateledger.LedgerContract.Ledgers;
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+import com.android.demo.roommateledger.LedgerContract.SyncState;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Writes a synthetic database in the DatabaseHelper schema for load testing,
+ * with as many ledgers, members, purchases and payments as configured. The
+ * same Config always produces the same rows: every value, gids included, comes
+ * from one Random seeded with Config.seed, and dates count back from
+ * Config.lastDate rather than today.
+ * <p/>
+ * The values follow the shape of real ledgers: a few busy ledgers hold most
+ * of the purchases, amounts are log-normal around a typical bill, categories
+ * are weighted, and a share of purchases is in a foreign currency with
+ * monthly rates for it.
+ * <p/>
+ * Rows are inserted with compiled statements in transactions of BATCH_ROWS,
+ * before any index or trigger exists; the indexes and summaries are then built
+ * once at the end, as LedgerBackup.restore() does. The file is a scratch
+ * database, so it is written without a journal.
+ * <p/>
+ * The rows are written directly rather than as oplog events, so they are not
+ * synced until a projection rebuild records them, see
+ * OplogDbAdapter.recordUnlogged(). The projection version is marked current,
+ * which keeps the app from doing that on first open.
+ */
+public class LedgerGenerator {
+    private static final String TAG = "LedgerGenerator";
+
+    static final int BATCH_ROWS = 50000;
+
+    private static final String[] CATEGORIES = {"Groceries", "Dining", "Household",
+            "Utilities", "Travel", "Rent"};
+    // Relative frequency and typical amount of each category
+    private static final int[] CATEGORY_WEIGHTS = {35, 25, 15, 10, 10, 5};
+    private static final double[] CATEGORY_AMOUNTS = {40, 30, 20, 60, 120, 800};
+    private static final String[][] TITLES = {
+            {"Supermarket", "Farmers market", "Corner shop"},
+            {"Pizza", "Takeaway", "Brunch", "Coffee"},
+            {"Cleaning supplies", "Toilet paper", "Light bulbs"},
+            {"Electricity", "Internet", "Water", "Gas"},
+            {"Train tickets", "Car rental", "Fuel"},
+            {"Rent"}};
+    private static final String[] NAMES = {"Alex", "Sam", "Jordan", "Taylor", "Casey", "Riley",
+            "Morgan", "Jamie", "Avery", "Quinn", "Drew", "Parker"};
+    private static final String[] FOREIGN_CURRENCIES = {"EUR", "GBP", "JPY", "CAD"};
+    private static final double[] FOREIGN_RATES = {1.1, 1.3, 0.007, 0.75};
+
+    /** What to generate. The defaults make a ledger set like a heavy user's. */
+    public static class Config {
+        public long seed = 1;
+        public int ledgers = 50;
+        public int membersPerLedger = 4;
+        public int purchases = 200000;
+        public int payments = 40000;
+        /** Dates are spread over this many days up to lastDate. */
+        public int days = 730;
+        public String lastDate = "2024-12-31";
+        /** Share of purchases in a foreign currency. */
+        public double foreignShare = 0.05;
+    }
+
+    /** The number of rows written and the time it took. */
+    public static class Result {
+        public long rows;
+        public long millis;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+    private final String[] mDates;
+    private SQLiteDatabase mDb;
+    private long mRows;
+    private int mBatchRows;
+
+    public LedgerGenerator(Config config) {
+        if (config.ledgers < 1 || config.days < 1) {
+            throw new IllegalArgumentException("Need at least one ledger and one day");
+        }
+        mConfig = config;
+        mRandom = new Random(config.seed);
+        mDates = buildDates(config.lastDate, config.days);
+    }
+
+    /**
+     * Write a new database to the given file, replacing any file there.
+     */
+    public Result generate(File file) {
+        long start = System.currentTimeMillis();
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("Cannot replace " + file);
+        }
+        mDb = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            CursorHelper.stringForQuery(mDb, "PRAGMA journal_mode = OFF", null, null);
+            mDb.execSQL("PRAGMA synchronous = OFF");
+            DatabaseHelper.useIncrementalVacuum(mDb);
+            DatabaseHelper.createTables(mDb);
+
+            mDb.beginTransaction();
+            long[][] members = writeLedgers();
+            writeFxRates();
+            writePurchases(members);
+            writePayments(members);
+
+            DatabaseHelper.createIndexes(mDb);
+            DatabaseHelper.recomputeSummaries(mDb);
+            DatabaseHelper.createTriggers(mDb);
+            mDb.execSQL(DatabaseHelper.insertSql(SyncState.TABLE, SyncState.NAME,
+                    SyncState.VALUE), new Object[]{Projector.PROJECTION_VERSION_NAME,
+                    String.valueOf(Projector.PROJECTION_VERSION)});
+            mDb.setTransactionSuccessful();
+            mDb.endTransaction();
+            mDb.setVersion(DatabaseHelper.DATABASE_VERSION);
+        } finally {
+            if (mDb.inTransaction()) {
+                mDb.endTransaction();
+            }
+            mDb.close();
+        }
+        Result result = new Result();
+        result.rows = mRows;
+        result.millis = System.currentTimeMillis() - start;
+        Log.i(TAG, "Generated " + result.rows + " rows in " + result.millis + "ms into " + file);
+        return result;
+    }
+
+    // Commit every BATCH_ROWS rows, so the transaction stays bounded
+    private void wrote() {
+        mRows++;
+        if (++mBatchRows >= BATCH_ROWS) {
+            mBatchRows = 0;
+            mDb.setTransactionSuccessful();
+            mDb.endTransaction();
+            mDb.beginTransaction();
+        }
+    }
+
+    // Returns the member ids of each ledger
+    private long[][] writeLedgers() {
+        long[][] members = new long[mConfig.ledgers][];
+        SQLiteStatement ledger = mDb.compileStatement(DatabaseHelper.insertSql(Ledgers.TABLE,
+                Ledgers.TITLE, Ledgers.DESCRIPTION, Ledgers.GID, Ledgers.CURRENCY));
+        SQLiteStatement member = mDb.compileStatement(DatabaseHelper.insertSql(Members.TABLE,
+                Members.LEDGER_ID, Members.MEMBER));
+        try {
+            for (int i = 0; i < mConfig.ledgers; i++) {
+                ledger.bindString(1, "Ledger " + (i + 1));
+                ledger.bindString(2, "Generated from seed " + mConfig.seed);
+                ledger.bindString(3, nextGid());
+                ledger.bindString(4, FxRatesDbAdapter.DEFAULT_CURRENCY);
+                long ledgerId = ledger.executeInsert();
+                wrote();
+
+                // Between two and twice the configured size
+                int count = Math.max(2, 2 + mRandom.nextInt(
+                        Math.max(1, 2 * mConfig.membersPerLedger - 1)));
+                members[i] = new long[count];
+                for (int m = 0; m < count; m++) {
+                    String name = NAMES[m % NAMES.length];
+                    member.bindLong(1, ledgerId);
+                    member.bindString(2, m < NAMES.length ? name : name + " " + (m / NAMES.length));
+                    members[i][m] = member.executeInsert();
+                    wrote();
+                }
+            }
+        } finally {
+            ledger.close();
+            member.close();
+        }
+        return members;
+    }
+
+    // A rate for each foreign currency on the first of every month, drifting a little
+    private void writeFxRates() {
+        SQLiteStatement rate = mDb.compileStatement(DatabaseHelper.insertSql(FxRates.TABLE,
+                FxRates.CURRENCY, FxRates.RATE_DATE, FxRates.RATE));
+        try {
+            for (int c = 0; c < FOREIGN_CURRENCIES.length; c++) {
+                double value = FOREIGN_RATES[c];
+                for (String date : mDates) {
+                    if (!date.endsWith("-01")) {
+                        continue;
+                    }
+                    value *= 1 + (mRandom.nextGaussian() * 0.02);
+                    rate.bindString(1, FOREIGN_CURRENCIES[c]);
+                    rate.bindString(2, date);
+                    rate.bindDouble(3, Math.round(value * 1e6) / 1e6);
+                    rate.executeInsert();
+                    wrote();
+                }
+            }
+        } finally {
+            rate.close();
+        }
+    }
+
+    private void writePurchases(long[][] members) {
+        SQLiteStatement purchase = mDb.compileStatement(DatabaseHelper.insertSql(Purchases.TABLE,
+                Purchases.LEDGER_ID, Purchases.MEMBER_ID, Purchases.TITLE, Purchases.DESCRIPTION,
+                Purchases.AMOUNT, Purchases.CURRENCY, Purchases.CATEGORY, Purchases.GID,
+                Purchases.PURCHASE_DATE));
+        try {
+            for (int i = 0; i < mConfig.purchases; i++) {
+                int ledger = nextLedger();
+                int category = nextCategory();
+                String[] titles = TITLES[category];
+                boolean foreign = mRandom.nextDouble() < mConfig.foreignShare;
+                int currency = mRandom.nextInt(FOREIGN_CURRENCIES.length);
+                double amount = nextAmount(CATEGORY_AMOUNTS[category]);
+                if (foreign) {
+                    amount = Math.round(amount / FOREIGN_RATES[currency] * 100) / 100.0;
+                }
+                purchase.bindLong(1, ledger + 1);
+                purchase.bindLong(2, nextMember(members[ledger]));
+                purchase.bindString(3, titles[mRandom.nextInt(titles.length)]);
+                purchase.bindString(4, "");
+                purchase.bindDouble(5, amount);
+                purchase.bindString(6, foreign ? FOREIGN_CURRENCIES[currency]
+                        : FxRatesDbAdapter.DEFAULT_CURRENCY);
+                purchase.bindString(7, CATEGORIES[category]);
+                purchase.bindString(8, nextGid());
+                purchase.bindString(9, mDates[mRandom.nextInt(mDates.length)]);
+                purchase.executeInsert();
+                wrote();
+            }
+        } finally {
+            purchase.close();
+        }
+    }
+
+    // Settling up: smaller amounts between two different members of a ledger
+    private void writePayments(long[][] members) {
+        SQLiteStatement payment = mDb.compileStatement(DatabaseHelper.insertSql(Payments.TABLE,
+                Payments.LEDGER_ID, Payments.TITLE, Payments.DESCRIPTION, Payments.FROM_MEMBER_ID,
+                Payments.TO_MEMBER_ID, Payments.AMOUNT, Payments.CURRENCY, Payments.GID,
+                Payments.PAYMENT_DATE));
+        try {
+            for (int i = 0; i < mConfig.payments; i++) {
+                int ledger = nextLedger();
+                long[] ids = members[ledger];
+                int from = mRandom.nextInt(ids.length);
+                int to = (from + 1 + mRandom.nextInt(ids.length - 1)) % ids.length;
+                payment.bindLong(1, ledger + 1);
+                payment.bindString(2, "Settle up");
+                payment.bindString(3, "");
+                payment.bindLong(4, ids[from]);
+                payment.bindLong(5, ids[to]);
+                payment.bindDouble(6, nextAmount(50));
+                payment.bindString(7, FxRatesDbAdapter.DEFAULT_CURRENCY);
+                payment.bindString(8, nextGid());
+                payment.bindString(9, mDates[mRandom.nextInt(mDates.length)]);
+                payment.executeInsert();
+                wrote();
+            }
+        } finally {
+            payment.close();
+        }
+    }
+
+    // Skewed towards the first ledgers: the square of a uniform value
+    private int nextLedger() {
+        double u = mRandom.nextDouble();
+        return (int) (u * u * mConfig.ledgers);
+    }
+
+    // Some members pay for much more than others
+    private long nextMember(long[] ids) {
+        double u = mRandom.nextDouble();
+        return ids[(int) (u * u * ids.length)];
+    }
+
+    private int nextCategory() {
+        int total = 0;
+        for (int weight : CATEGORY_WEIGHTS) {
+            total += weight;
+        }
+        int pick = mRandom.nextInt(total);
+        for (int i = 0; i < CATEGORY_WEIGHTS.length; i++) {
+            pick -= CATEGORY_WEIGHTS[i];
+            if (pick < 0) {
+                return i;
+            }
+        }
+        return CATEGORY_WEIGHTS.length - 1;
+    }
+
+    // Log-normal around the typical amount, rounded to cents and at least 1
+    private double nextAmount(double typical) {
+        double amount = typical * Math.exp(mRandom.nextGaussian() * 0.6);
+        return Math.max(100, Math.round(amount * 100)) / 100.0;
+    }
+
+    private String nextGid() {
+        return String.format(Locale.US, "%016x%016x", mRandom.nextLong(), mRandom.nextLong());
+    }
+
+    // The days counting back from lastDate, oldest first
+    private static String[] buildDates(String lastDate, int days) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        try {
+            calendar.setTime(format.parse(lastDate));
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Bad date " + lastDate, e);
+        }
+        String[] dates = new String[days];
+        for (int i = days - 1; i >= 0; i--) {
+            dates[i] = format.format(calendar.getTime());
+            calendar.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        return dates;
+    }
+}
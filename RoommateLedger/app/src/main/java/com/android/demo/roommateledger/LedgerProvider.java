@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Exposes ledgers, members, purchases, payments and computed balances to other
+ * components through content URIs:
+ * <pre>
+ *   ledgers                     ledgers/#
+ *   ledgers/#/members
+ *   ledgers/#/purchases         ledgers/#/purchases/#
+ *   ledgers/#/payments          ledgers/#/payments/#
+ *   ledgers/#/balances          (read only)
+ * </pre>
+ * Every write, whether it comes through this provider or through one of the
+ * database adapters, is published on the ChangeBus. The provider listens to the
+ * bus and turns each change into a notifyChange() on the most precise URI, so
+ * observers of one ledger's purchases are not woken up by another ledger's
+ * payments. applyBatch() runs all operations in one transaction.
+ * <p/>
+ * Writes are recorded in the oplog like the adapters' own, in the same
+ * transaction, so they are synced and survive a rebuild of the projections.
+ */
+public class LedgerProvider extends ContentProvider implements ChangeBus.Listener {
+    public static final String AUTHORITY = "com.android.demo.roommateledger";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    public static final Uri LEDGERS_URI = Uri.withAppendedPath(CONTENT_URI, "ledgers");
+
+    public static final String PATH_MEMBERS = "members";
+    public static final String PATH_PURCHASES = "purchases";
+    public static final String PATH_PAYMENTS = "payments";
+    public static final String PATH_BALANCES = "balances";
+
+    private static final String TYPE_PREFIX = "/vnd." + AUTHORITY + ".";
+
+    private static final int LEDGERS = 1;
+    private static final int LEDGER_ID = 2;
+    private static final int MEMBERS = 3;
+    private static final int PURCHASES = 4;
+    private static final int PURCHASE_ID = 5;
+    private static final int PAYMENTS = 6;
+    private static final int PAYMENT_ID = 7;
+    private static final int BALANCES = 8;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sUriMatcher.addURI(AUTHORITY, "ledgers", LEDGERS);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#", LEDGER_ID);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#/members", MEMBERS);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#/purchases", PURCHASES);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#/purchases/#", PURCHASE_ID);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#/payments", PAYMENTS);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#/payments/#", PAYMENT_ID);
+        sUriMatcher.addURI(AUTHORITY, "ledgers/#/balances", BALANCES);
+    }
+
+    private BalancesDbAdapter mBalancesDbHelper;
+    private FxRatesDbAdapter mFxRatesDbHelper;
+    private OplogDbAdapter mOplogDbHelper;
+
+    /**
+     * Return the URI of the given table of a ledger, e.g. ledgers/3/purchases.
+     */
+    public static Uri ledgerUri(long ledger_id, String path) {
+        return Uri.withAppendedPath(ContentUris.withAppendedId(LEDGERS_URI, ledger_id), path);
+    }
+
+    @Override
+    public boolean onCreate() {
+        ChangeBus.getInstance().subscribe(this, ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_LEDGERS,
+                ChangeBus.TABLE_MEMBERS, ChangeBus.TABLE_PURCHASES, ChangeBus.TABLE_PAYMENTS,
+                ChangeBus.TABLE_FX_RATES);
+        return true;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return DatabaseHelper.getInstance(getContext()).getWritableDatabase();
+    }
+
+    private OplogDbAdapter getOplog() {
+        if (mOplogDbHelper == null) {
+            mOplogDbHelper = new OplogDbAdapter(getContext()).open();
+        }
+        return mOplogDbHelper;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case LEDGERS:
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + TYPE_PREFIX + "ledger";
+            case LEDGER_ID:
+                return ContentResolver.CURSOR_ITEM_BASE_TYPE + TYPE_PREFIX + "ledger";
+            case MEMBERS:
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + TYPE_PREFIX + "member";
+            case PURCHASES:
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + TYPE_PREFIX + "purchase";
+            case PURCHASE_ID:
+                return ContentResolver.CURSOR_ITEM_BASE_TYPE + TYPE_PREFIX + "purchase";
+            case PAYMENTS:
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + TYPE_PREFIX + "payment";
+            case PAYMENT_ID:
+                return ContentResolver.CURSOR_ITEM_BASE_TYPE + TYPE_PREFIX + "payment";
+            case BALANCES:
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + TYPE_PREFIX + "balance";
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        int match = sUriMatcher.match(uri);
+        Cursor cursor;
+        if (match == BALANCES) {
+            if (mBalancesDbHelper == null) {
+                mBalancesDbHelper = new BalancesDbAdapter(getContext()).open();
+            }
+            cursor = mBalancesDbHelper.fetchBalances(getLedgerId(uri));
+        } else {
+            if (match == LEDGERS || match == LEDGER_ID) {
+                // purchase_total is a cache that a rate change may have invalidated
+                if (mFxRatesDbHelper == null) {
+                    mFxRatesDbHelper = new FxRatesDbAdapter(getContext()).open();
+                }
+                mFxRatesDbHelper.refreshPurchaseTotals();
+            }
+            Target target = new Target(uri, match, selection, selectionArgs);
+            cursor = getDatabase().query(target.table, projection, target.selection,
+                    target.selectionArgs, null, null, sortOrder);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        int match = sUriMatcher.match(uri);
+        String table;
+        switch (match) {
+            case LEDGERS:
+                table = ChangeBus.TABLE_LEDGERS;
+                break;
+            case MEMBERS:
+                table = ChangeBus.TABLE_MEMBERS;
+                break;
+            case PURCHASES:
+                table = ChangeBus.TABLE_PURCHASES;
+                break;
+            case PAYMENTS:
+                table = ChangeBus.TABLE_PAYMENTS;
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot insert into URI " + uri);
+        }
+        ContentValues row = values;
+        long ledger_id = ChangeBus.ALL_LEDGERS;
+        if (match != LEDGERS) {
+            ledger_id = getLedgerId(uri);
+            row = new ContentValues(values);
+            row.put(LedgerDbAdapter.KEY_LEDGER_ID, ledger_id);
+        }
+        SQLiteDatabase db = getDatabase();
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(table, null, row);
+            if (rowId != -1) {
+                recordWrite(table, match == LEDGERS ? rowId : ledger_id, rowId,
+                        OplogDbAdapter.OP_CREATE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowId == -1) {
+            return null;
+        }
+        if (match == LEDGERS) {
+            ChangeBus.getInstance().publish(rowId, ChangeBus.TABLE_LEDGERS, rowId);
+            return ContentUris.withAppendedId(LEDGERS_URI, rowId);
+        }
+        ChangeBus.getInstance().publish(ledger_id, table, rowId);
+        return ContentUris.withAppendedId(uri, rowId);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        Target target = new Target(uri, sUriMatcher.match(uri), selection, selectionArgs);
+        ContentValues row = values;
+        if (target.ledgerScoped) {
+            // Rows can't be moved between ledgers through a ledger scoped URI
+            row = new ContentValues(values);
+            row.remove(LedgerDbAdapter.KEY_LEDGER_ID);
+        }
+        SQLiteDatabase db = getDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            List<Long> rows = target.fetchRowIds(db);
+            count = db.update(target.table, row, target.selection, target.selectionArgs);
+            if (count > 0 && ChangeBus.TABLE_MEMBERS.equals(target.table)) {
+                getOplog().recordLedger(target.ledgerId);
+            } else if (count > 0) {
+                for (long rowId : rows) {
+                    recordWrite(target.table, target.ledgerScoped ? target.ledgerId : rowId,
+                            rowId, OplogDbAdapter.OP_AMEND);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            target.publish();
+        }
+        return count;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        Target target = new Target(uri, sUriMatcher.match(uri), selection, selectionArgs);
+        SQLiteDatabase db = getDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            List<String> gids = target.fetchGids(db);
+            count = db.delete(target.table, target.selection, target.selectionArgs);
+            if (count > 0) {
+                recordDeletes(target, gids);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            target.publish();
+        }
+        return count;
+    }
+
+    // Members are part of their ledger's state, so they record the ledger
+    private void recordWrite(String table, long ledger_id, long rowId, String op) {
+        OplogDbAdapter oplog = getOplog();
+        if (ChangeBus.TABLE_PURCHASES.equals(table)) {
+            oplog.recordPurchase(rowId, op);
+        } else if (ChangeBus.TABLE_PAYMENTS.equals(table)) {
+            oplog.recordPayment(rowId, op);
+        } else {
+            oplog.recordLedger(ledger_id);
+        }
+    }
+
+    private void recordDeletes(Target target, List<String> gids) {
+        OplogDbAdapter oplog = getOplog();
+        if (ChangeBus.TABLE_MEMBERS.equals(target.table)) {
+            oplog.recordLedger(target.ledgerId);
+            return;
+        }
+        for (String gid : gids) {
+            if (ChangeBus.TABLE_PURCHASES.equals(target.table)) {
+                oplog.recordVoid(OplogDbAdapter.ENTITY_PURCHASE, gid);
+            } else if (ChangeBus.TABLE_PAYMENTS.equals(target.table)) {
+                oplog.recordVoid(OplogDbAdapter.ENTITY_PAYMENT, gid);
+            } else {
+                oplog.recordDelete(OplogDbAdapter.ENTITY_LEDGER, gid);
+            }
+        }
+    }
+
+    /**
+     * Apply all operations in a single transaction: either every operation
+     * commits or none does.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Translate published changes into notifications on the narrowest URIs.
+     * Purchases, payments and members also change the ledger's balances.
+     */
+    public void onDataChanged(List<ChangeBus.Change> changes) {
+        Set<Uri> uris = new LinkedHashSet<Uri>();
+        for (ChangeBus.Change change : changes) {
+            if (change.ledgerId == ChangeBus.ALL_LEDGERS
+                    || ChangeBus.TABLE_LEDGERS.equals(change.table)) {
+                uris.add(change.ledgerId == ChangeBus.ALL_LEDGERS ? LEDGERS_URI
+                        : ContentUris.withAppendedId(LEDGERS_URI, change.ledgerId));
+                continue;
+            }
+            Uri tableUri = ledgerUri(change.ledgerId, change.table);
+            uris.add(change.rowId == ChangeBus.ANY_ROW
+                    || ChangeBus.TABLE_MEMBERS.equals(change.table) ? tableUri
+                    : ContentUris.withAppendedId(tableUri, change.rowId));
+            uris.add(ledgerUri(change.ledgerId, PATH_BALANCES));
+        }
+        ContentResolver resolver = getContext().getContentResolver();
+        for (Uri uri : uris) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    private static long getLedgerId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * The table and complete selection addressed by a URI, combined with the
+     * caller's own selection.
+     */
+    private static class Target {
+        final String table;
+        final String selection;
+        final String[] selectionArgs;
+        final long ledgerId;
+        final long rowId;
+        final boolean ledgerScoped;
+
+        Target(Uri uri, int match, String selection, String[] selectionArgs) {
+            List<String> segments = uri.getPathSegments();
+            String where;
+            List<String> args = new ArrayList<String>();
+            switch (match) {
+                case LEDGERS:
+                    table = ChangeBus.TABLE_LEDGERS;
+                    ledgerId = ChangeBus.ALL_LEDGERS;
+                    rowId = ChangeBus.ANY_ROW;
+                    where = null;
+                    break;
+                case LEDGER_ID:
+                    table = ChangeBus.TABLE_LEDGERS;
+                    ledgerId = Long.parseLong(segments.get(1));
+                    rowId = ledgerId;
+                    where = HomeDbAdapter.KEY_ROWID + " = ?";
+                    args.add(segments.get(1));
+                    break;
+                case MEMBERS:
+                case PURCHASES:
+                case PAYMENTS:
+                    table = segments.get(2);
+                    ledgerId = Long.parseLong(segments.get(1));
+                    rowId = ChangeBus.ANY_ROW;
+                    where = LedgerDbAdapter.KEY_LEDGER_ID + " = ?";
+                    args.add(segments.get(1));
+                    break;
+                case PURCHASE_ID:
+                case PAYMENT_ID:
+                    table = segments.get(2);
+                    ledgerId = Long.parseLong(segments.get(1));
+                    rowId = Long.parseLong(segments.get(3));
+                    where = LedgerDbAdapter.KEY_LEDGER_ID + " = ? AND "
+                            + LedgerDbAdapter.KEY_ROWID + " = ?";
+                    args.add(segments.get(1));
+                    args.add(segments.get(3));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported URI " + uri);
+            }
+            ledgerScoped = match != LEDGERS && match != LEDGER_ID;
+            if (!TextUtils.isEmpty(selection)) {
+                where = where == null ? selection : where + " AND (" + selection + ")";
+                if (selectionArgs != null) {
+                    for (String arg : selectionArgs) {
+                        args.add(arg);
+                    }
+                }
+            }
+            this.selection = where;
+            this.selectionArgs = args.isEmpty() ? null : args.toArray(new String[args.size()]);
+        }
+
+        void publish() {
+            ChangeBus.getInstance().publish(ledgerId, table, rowId);
+        }
+
+        List<Long> fetchRowIds(SQLiteDatabase db) {
+            return CursorHelper.list(db.query(table, new String[]{LedgerDbAdapter.KEY_ROWID},
+                    selection, selectionArgs, null, null, null),
+                    new CursorHelper.RowMapper<Long>() {
+                        public Long map(Cursor cursor) {
+                            return cursor.getLong(0);
+                        }
+                    });
+        }
+
+        // Members have no gid; their writes are recorded as ledger changes
+        List<String> fetchGids(SQLiteDatabase db) {
+            if (ChangeBus.TABLE_MEMBERS.equals(table)) {
+                return new ArrayList<String>();
+            }
+            return CursorHelper.list(db.query(table, new String[]{OplogDbAdapter.KEY_GID},
+                    selection, selectionArgs, null, null, null),
+                    new CursorHelper.RowMapper<String>() {
+                        public String map(Cursor cursor) {
+                            return cursor.getString(0);
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Environment;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * File based sync between devices. Each device writes the operations its known
+ * peers have not seen to its own file in a shared sync directory, and merges the
+ * files other devices left there. The files are copied between phones by any
+ * means (a shared folder, USB, Bluetooth); only the delta travels, never the
+ * database.
+ * <p/>
+ * A file is gzipped UTF-8 text: one header line with the writer's device id and
+ * version vector, then one operation per line.
+ */
+public class LedgerSync {
+
+    public static final String SYNC_DIRECTORY = "RoommateLedger";
+    public static final String FILE_SUFFIX = ".oplog.gz";
+
+    private static final String TAG = "LedgerSync";
+    private static final String CHARSET = "UTF-8";
+
+    private final OplogDbAdapter mOplogDbHelper;
+
+    /**
+     * The number of operations received from and sent to other devices.
+     */
+    public static class Result {
+        public int received;
+        public int sent;
+    }
+
+    public LedgerSync(Context ctx) {
+        mOplogDbHelper = new OplogDbAdapter(ctx).open();
+    }
+
+    public static File getSyncDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), SYNC_DIRECTORY);
+    }
+
+    /**
+     * Merge the files of every other device found in the sync directory, then
+     * write this device's file.
+     */
+    public Result sync() throws IOException {
+        File directory = getSyncDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String own = mOplogDbHelper.getDeviceId() + FILE_SUFFIX;
+        Result result = new Result();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX) && !file.getName().equals(own)) {
+                    result.received += importFile(file);
+                }
+            }
+        }
+        if (result.received > 0) {
+            // Merged operations can touch any ledger and any table
+            ChangeBus bus = ChangeBus.getInstance();
+            bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_LEDGERS, ChangeBus.ANY_ROW);
+            bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_PURCHASES, ChangeBus.ANY_ROW);
+            bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_PAYMENTS, ChangeBus.ANY_ROW);
+            bus.publish(ChangeBus.ALL_LEDGERS, ChangeBus.TABLE_FX_RATES, ChangeBus.ANY_ROW);
+        }
+        mOplogDbHelper.snapshotIfDue();
+        result.sent = exportFile(new File(directory, own));
+        return result;
+    }
+
+    /**
+     * Merge the operations in a file written by another device.
+     *
+     * @return the number of operations that were new to this device
+     */
+    public int importFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), CHARSET));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                return 0;
+            }
+            JSONObject header = new JSONObject(line);
+            Map<String, Long> vector = new HashMap<String, Long>();
+            JSONArray entries = header.getJSONArray("vector");
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                vector.put(entry.getString("d"), entry.getLong("s"));
+            }
+            List<OplogDbAdapter.Op> ops = new ArrayList<OplogDbAdapter.Op>();
+            while ((line = reader.readLine()) != null) {
+                JSONObject json = new JSONObject(line);
+                OplogDbAdapter.Op op = new OplogDbAdapter.Op();
+                op.deviceId = json.getString("d");
+                op.seq = json.getLong("s");
+                op.lamport = json.getLong("l");
+                op.entity = json.getString("e");
+                op.gid = json.getString("g");
+                op.op = json.getString("o");
+                op.data = json.isNull("v") ? null : json.getString("v");
+                ops.add(op);
+            }
+            int merged = mOplogDbHelper.merge(header.getString("device"), vector, ops);
+            Log.i(TAG, "Merged " + merged + " of " + ops.size() + " operations from " + file);
+            return merged;
+        } catch (JSONException e) {
+            throw new IOException("Bad sync file " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write the operations some known peer has not seen, with this device's
+     * version vector. The file is replaced atomically.
+     *
+     * @return the number of operations written
+     */
+    public int exportFile(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(temp)), CHARSET);
+        int written = 0;
+        Cursor ops = mOplogDbHelper.fetchUnseenOps();
+        try {
+            JSONArray vector = new JSONArray();
+            for (Map.Entry<String, Long> entry : mOplogDbHelper.getVersionVector().entrySet()) {
+                vector.put(new JSONObject().put("d", entry.getKey()).put("s", entry.getValue()));
+            }
+            JSONObject header = new JSONObject();
+            header.put("device", mOplogDbHelper.getDeviceId());
+            header.put("vector", vector);
+            writer.write(header.toString());
+            writer.write('\n');
+            while (ops.moveToNext()) {
+                JSONObject json = new JSONObject();
+                json.put("d", ops.getString(0));
+                json.put("s", ops.getLong(1));
+                json.put("l", ops.getLong(2));
+                json.put("e", ops.getString(3));
+                json.put("g", ops.getString(4));
+                json.put("o", ops.getString(5));
+                if (!ops.isNull(6)) {
+                    json.put("v", ops.getString(6));
+                }
+                writer.write(json.toString());
+                writer.write('\n');
+                written++;
+            }
+        } catch (JSONException e) {
+            throw new IOException("Cannot write " + file, e);
+        } finally {
+            ops.close();
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.demo.roommateledger.LedgerContract.SyncState;
+
+import java.io.File;
+
+/**
+ * Keeps the database compact and its statistics current. An inexact hourly
+ * alarm starts the service, which does nothing unless the device is charging
+ * with the screen off and the last run is a day old. A run then does, within
+ * BUDGET_MS:
+ * <ul>
+ * <li>PRAGMA quick_check, logging any corruption it reports;</li>
+ * <li>ANALYZE, so the planner has statistics for the indexes;</li>
+ * <li>incremental vacuum of the free pages left by deletes, in small steps. A
+ * database created before DatabaseHelper turned on incremental auto_vacuum is
+ * switched over with one full VACUUM first, but only if the file is small
+ * enough to rewrite in the time left;</li>
+ * <li>a WAL checkpoint when the database is in WAL mode;</li>
+ * <li>deleting receipt photos no purchase refers to any more.</li>
+ * </ul>
+ * The file size and the latency of a few representative queries are measured
+ * before and after and kept in sync_state under maintenance_*.
+ */
+public class MaintenanceService extends IntentService {
+    private static final String TAG = "MaintenanceService";
+
+    public static final long BUDGET_MS = 20000;
+    private static final long MIN_INTERVAL_MS = AlarmManager.INTERVAL_DAY;
+
+    // Pages freed per incremental_vacuum step, between budget checks
+    private static final int VACUUM_STEP_PAGES = 256;
+    // A full VACUUM writes the file twice; assume slow flash manages 1MB/s
+    private static final long VACUUM_BYTES_PER_MS = 1024;
+
+    // The ledger list and a scan over every purchase
+    private static final String[] PROBE_QUERIES = {
+            "SELECT _id, title, description, member_count, purchase_total, currency, " +
+                    "last_activity FROM ledgers",
+            "SELECT ledger_id, member_id, SUM(amount) FROM purchases GROUP BY ledger_id, member_id"};
+
+    private SQLiteDatabase mDb;
+
+    public MaintenanceService() {
+        super(TAG);
+    }
+
+    /**
+     * Schedule the hourly check. Scheduling again replaces the alarm, so this
+     * can be called on every launch.
+     */
+    public static void schedule(Context context) {
+        PendingIntent operation = PendingIntent.getService(context, 0,
+                new Intent(context, MaintenanceService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Not a wakeup alarm: the check waits until something else wakes the device
+        alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_HOUR, operation);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!isIdleAndCharging()) {
+            return;
+        }
+        mDb = DatabaseHelper.getInstance(this).getWritableDatabase();
+        long lastRun = Long.parseLong(getState("maintenance_last_run", "0"));
+        if (System.currentTimeMillis() - lastRun < MIN_INTERVAL_MS) {
+            return;
+        }
+        run();
+    }
+
+    private boolean isIdleAndCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int status = battery == null ? -1 : battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+        PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return charging && !power.isScreenOn();
+    }
+
+    private void run() {
+        long start = SystemClock.uptimeMillis();
+        long deadline = start + BUDGET_MS;
+        File file = new File(mDb.getPath());
+        long sizeBefore = file.length();
+        long latencyBefore = probe();
+
+        String check = CursorHelper.stringForQuery(mDb, "PRAGMA quick_check", null, "ok");
+        if (!"ok".equals(check)) {
+            Log.e(TAG, "Database check failed: " + check);
+        }
+        mDb.execSQL("ANALYZE");
+        long pages = vacuum(deadline);
+        if ("wal".equalsIgnoreCase(CursorHelper.stringForQuery(mDb, "PRAGMA journal_mode",
+                null, ""))) {
+            step("PRAGMA wal_checkpoint");
+        }
+        int receipts = ReceiptStore.getInstance(this).sweep(mDb);
+
+        long sizeAfter = file.length();
+        long latencyAfter = probe();
+        long millis = SystemClock.uptimeMillis() - start;
+        Log.i(TAG, "Maintenance took " + millis + "ms, freed " + pages + " pages, size " +
+                sizeBefore + " -> " + sizeAfter + " bytes, probe queries " + latencyBefore +
+                " -> " + latencyAfter + "ms, deleted " + receipts + " unused receipts");
+
+        mDb.beginTransaction();
+        try {
+            putState("maintenance_last_run", System.currentTimeMillis());
+            putState("maintenance_millis", millis);
+            putState("maintenance_check", check);
+            putState("maintenance_size_before", sizeBefore);
+            putState("maintenance_size_after", sizeAfter);
+            putState("maintenance_probe_before_ms", latencyBefore);
+            putState("maintenance_probe_after_ms", latencyAfter);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Return the free pages to the file system until none are left or the
+     * deadline passes.
+     *
+     * @return the number of pages freed
+     */
+    private long vacuum(long deadline) {
+        if (CursorHelper.longForQuery(mDb, "PRAGMA auto_vacuum", null, 0)
+                != DatabaseHelper.AUTO_VACUUM_INCREMENTAL) {
+            // Only takes effect once the whole file is rewritten, which cannot
+            // be stopped at the deadline
+            long size = new File(mDb.getPath()).length();
+            if (size > (deadline - SystemClock.uptimeMillis()) * VACUUM_BYTES_PER_MS) {
+                Log.i(TAG, "Not switching to incremental vacuum, " + size +
+                        " bytes is too big to rewrite in the time left");
+                return 0;
+            }
+            long free = CursorHelper.longForQuery(mDb, "PRAGMA freelist_count", null, 0);
+            mDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            mDb.execSQL("VACUUM");
+            return free;
+        }
+        long freed = 0;
+        long free;
+        while ((free = CursorHelper.longForQuery(mDb, "PRAGMA freelist_count", null, 0)) > 0
+                && SystemClock.uptimeMillis() < deadline) {
+            step("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+            freed += free - CursorHelper.longForQuery(mDb, "PRAGMA freelist_count", null, 0);
+        }
+        return freed;
+    }
+
+    // Runs a statement that returns rows, stepping through all of them
+    private void step(String sql) {
+        Cursor cursor = mDb.rawQuery(sql, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Milliseconds taken by the probe queries, each read to the end
+    private long probe() {
+        long start = SystemClock.uptimeMillis();
+        for (String sql : PROBE_QUERIES) {
+            step(sql);
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    private String getState(String name, String defaultValue) {
+        return CursorHelper.stringForQuery(mDb, "SELECT " + SyncState.VALUE + " FROM " +
+                SyncState.TABLE + " WHERE " + SyncState.NAME + " = ?", new String[]{name},
+                defaultValue);
+    }
+
+    private void putState(String name, Object value) {
+        ContentValues values = new ContentValues();
+        values.put(SyncState.NAME, name);
+        values.put(SyncState.VALUE, String.valueOf(value));
+        mDb.insertWithOnConflict(SyncState.TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
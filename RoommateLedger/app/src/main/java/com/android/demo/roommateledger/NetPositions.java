@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.ListActivity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What each person owes across all the ledgers they are in, so nobody has to
+ * open Balances in every ledger and add it up. See BalanceCalculator for how
+ * people are matched across ledgers.
+ */
+public class NetPositions extends ListActivity {
+
+    private ComputeTask mTask;
+
+    /** Called when the activity is first created. */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.balance_list);
+        setTitle(R.string.net_positions);
+        mTask = new ComputeTask();
+        mTask.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mTask.cancel(false);
+    }
+
+    // Runs every ledger's balances on BalanceCalculator's workers
+    private class ComputeTask
+            extends AsyncTask<Void, Void, List<BalanceCalculator.NetPosition>> {
+        @Override
+        protected List<BalanceCalculator.NetPosition> doInBackground(Void... params) {
+            return new BalanceCalculator(NetPositions.this).computeNetPositions();
+        }
+
+        @Override
+        protected void onPostExecute(List<BalanceCalculator.NetPosition> positions) {
+            setListAdapter(new BalanceAdapter(NetPositions.this, R.layout.balance_row,
+                    new ArrayList<Roommate>(positions)));
+        }
+    }
+}
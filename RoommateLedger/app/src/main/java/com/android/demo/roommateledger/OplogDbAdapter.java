@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.demo.roommateledger.LedgerContract.Ledgers;
+import com.android.demo.roommateledger.LedgerContract.Oplog;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+import com.android.demo.roommateledger.LedgerContract.SyncPeers;
+import com.android.demo.roommateledger.LedgerContract.SyncState;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Operation log database access helper class. Every write made through the
+ * adapters appends one operation to the oplog table: the full new state of a
+ * ledger or rate (a put), or its removal (a delete), named by the row's gid.
+ * Operations are numbered by a per-device seq, so the set of operations a
+ * device has seen is summed up by a version vector holding the highest seq of
+ * each device.
+ * <p/>
+ * Purchases and payments are event sourced instead: they are created, amended
+ * and voided by events that are never changed afterwards, and the tables are
+ * projections of those events kept by Projector.
+ * <p/>
+ * Operations from other devices are merged last-writer-wins: an operation is
+ * applied only if no operation on the same row has a higher lamport clock (ties
+ * broken by device id). Every device therefore ends at the same state once it
+ * has seen the same operations, whatever order they arrived in.
+ */
+public class OplogDbAdapter {
+
+    public static final String KEY_DEVICE_ID = Oplog.DEVICE_ID;
+    public static final String KEY_SEQ = Oplog.SEQ;
+    public static final String KEY_LAMPORT = Oplog.LAMPORT;
+    public static final String KEY_ENTITY = Oplog.ENTITY;
+    public static final String KEY_GID = Oplog.GID;
+    public static final String KEY_OP = Oplog.OP;
+    public static final String KEY_DATA = Oplog.DATA;
+
+    public static final String ENTITY_LEDGER = "ledger";
+    public static final String ENTITY_PURCHASE = "purchase";
+    public static final String ENTITY_PAYMENT = "payment";
+    public static final String ENTITY_FX_RATE = "fx_rate";
+
+    public static final String OP_PUT = "put";
+    public static final String OP_DELETE = "delete";
+    public static final String OP_CREATE = "create";
+    public static final String OP_AMEND = "amend";
+    public static final String OP_VOID = "void";
+
+    private static final String TAG = "OplogDbAdapter";
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private Projector mProjector;
+    private static String sDeviceId;
+
+    private static final String OPLOG_DATABASE_TABLE = Oplog.TABLE;
+    private static final String SYNC_STATE_DATABASE_TABLE = SyncState.TABLE;
+    private static final String SYNC_PEERS_DATABASE_TABLE = SyncPeers.TABLE;
+
+    /** Name of the sync_state row holding this device's id. */
+    private static final String DEVICE_ID_NAME = "device_id";
+
+    private static final String PURCHASE_QUERY =
+            "SELECT p.gid, l.gid AS ledger, m.member, p.title, p.description, p.amount, " +
+                    "p.currency, p.category, p.purchase_date FROM purchases p " +
+                    "JOIN ledgers l ON l._id = p.ledger_id JOIN members m ON m._id = p.member_id " +
+                    "WHERE p._id = ?";
+
+    private static final String PAYMENT_QUERY =
+            "SELECT y.gid, l.gid AS ledger, f.member AS from_member, t.member AS to_member, " +
+                    "y.title, y.description, y.amount, y.currency, y.payment_date FROM payments y " +
+                    "JOIN ledgers l ON l._id = y.ledger_id " +
+                    "JOIN members f ON f._id = y.from_member_id " +
+                    "JOIN members t ON t._id = y.to_member_id WHERE y._id = ?";
+
+    private static final String FX_RATE_QUERY =
+            "SELECT currency || '@' || rate_date AS gid, currency, rate_date, rate FROM fx_rates " +
+                    "WHERE currency = ? AND rate_date = ?";
+
+    /*
+     * Operations some known peer has not reported having yet, oldest first. With
+     * no known peers this is the whole log, so the first sync is a full copy.
+     */
+    private static final String UNSEEN_OPS_QUERY =
+            "SELECT device_id, seq, lamport, entity, gid, op, data FROM oplog o " +
+                    "WHERE o.seq > IFNULL((SELECT MIN(IFNULL(s.seq, 0)) " +
+                    "FROM (SELECT DISTINCT peer_id FROM sync_peers) p " +
+                    "LEFT JOIN sync_peers s ON s.peer_id = p.peer_id " +
+                    "AND s.device_id = o.device_id), 0) ORDER BY o.lamport, o.device_id";
+
+    private final Context mCtx;
+
+    /**
+     * One operation as exchanged between devices.
+     */
+    public static class Op {
+        public String deviceId;
+        public long seq;
+        public long lamport;
+        public String entity;
+        public String gid;
+        public String op;
+        public String data;
+    }
+
+    /**
+     * Constructor - takes the context to allow the database to be
+     * opened/created
+     *
+     * @param ctx the Context within which to work
+     */
+    public OplogDbAdapter(Context ctx) {
+        this.mCtx = ctx;
+    }
+
+    /**
+     * Constructor for a database that is still being opened, when
+     * DatabaseHelper.getInstance() cannot be used yet, or for a database other
+     * than the app's. No need to open().
+     */
+    OplogDbAdapter(SQLiteDatabase db) {
+        this.mCtx = null;
+        mDb = db;
+        mProjector = new Projector(db);
+    }
+
+    /**
+     * Open the database using DatabaseHelper static instance
+     *
+     * @return this (self reference, allowing this to be chained in an
+     * initialization call)
+     * @throws android.database.SQLException if the database could be neither opened or created
+     */
+    public OplogDbAdapter open() throws SQLException {
+        mDbHelper = DatabaseHelper.getInstance(mCtx);
+        mDb = mDbHelper.getWritableDatabase();
+        mProjector = new Projector(mDb);
+        return this;
+    }
+
+    public void close() {
+        mDbHelper.close();
+    }
+
+    /**
+     * Return the id of this device, creating it on first use. The id is kept in
+     * the database and cached for the process, since every write needs it.
+     */
+    public String getDeviceId() {
+        if (sDeviceId == null) {
+            Cursor cursor = mDb.query(SYNC_STATE_DATABASE_TABLE, new String[]{SyncState.VALUE},
+                    SyncState.NAME + " = ?", new String[]{DEVICE_ID_NAME}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    sDeviceId = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (sDeviceId == null) {
+                return newDeviceId();
+            }
+        }
+        return sDeviceId;
+    }
+
+    /**
+     * Give this device a new id. A restored database must not keep numbering
+     * operations under its old id, since other devices may already hold later
+     * operations with the same seqs from before the restore.
+     */
+    public String newDeviceId() {
+        String device_id = UUID.randomUUID().toString();
+        ContentValues values = new ContentValues();
+        values.put(SyncState.NAME, DEVICE_ID_NAME);
+        values.put(SyncState.VALUE, device_id);
+        mDb.insertWithOnConflict(SYNC_STATE_DATABASE_TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        sDeviceId = device_id;
+        return device_id;
+    }
+
+    /**
+     * Return the gid of a row, or null if the row does not exist.
+     *
+     * @param table ledgers, purchases or payments
+     */
+    public String getGid(String table, long rowId) {
+        Cursor cursor = mDb.query(table, new String[]{KEY_GID}, "_id=" + rowId,
+                null, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Record the current state of a ledger and its member names.
+     */
+    public void recordLedger(long rowId) {
+        recordLedger(rowId, null);
+    }
+
+    /**
+     * Record the current state of a ledger and its member names, with the
+     * members just renamed so that replaying the event renames them instead of
+     * dropping them and everything that names them.
+     *
+     * @param renames old member names mapped to their new names, or null
+     */
+    public void recordLedger(long rowId, Map<String, String> renames) {
+        Cursor ledger = mDb.rawQuery("SELECT gid, title, description, currency FROM ledgers " +
+                "WHERE _id = ?", new String[]{String.valueOf(rowId)});
+        try {
+            if (!ledger.moveToFirst()) {
+                return;
+            }
+            JSONObject data = rowToJson(ledger);
+            data.put("members", new JSONArray(mProjector.getMemberNames(rowId)));
+            if (renames != null && !renames.isEmpty()) {
+                JSONObject renamed = new JSONObject();
+                for (Map.Entry<String, String> rename : renames.entrySet()) {
+                    renamed.put(rename.getKey(), rename.getValue());
+                }
+                data.put("renames", renamed);
+            }
+            append(ENTITY_LEDGER, ledger.getString(0), OP_PUT, data.toString());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            ledger.close();
+        }
+    }
+
+    /**
+     * Record an event carrying the current state of a purchase.
+     *
+     * @param op OP_CREATE or OP_AMEND
+     */
+    public void recordPurchase(long rowId, String op) {
+        recordRow(ENTITY_PURCHASE, op, PURCHASE_QUERY, new String[]{String.valueOf(rowId)});
+    }
+
+    /**
+     * Record an event carrying the current state of a payment.
+     *
+     * @param op OP_CREATE or OP_AMEND
+     */
+    public void recordPayment(long rowId, String op) {
+        recordRow(ENTITY_PAYMENT, op, PAYMENT_QUERY, new String[]{String.valueOf(rowId)});
+    }
+
+    /**
+     * Record the current rate of a currency on a date, or its removal if there is
+     * no longer a rate stored for that date.
+     */
+    public void recordFxRate(String currency, String rate_date) {
+        if (!recordRow(ENTITY_FX_RATE, OP_PUT, FX_RATE_QUERY, new String[]{currency, rate_date})) {
+            try {
+                JSONObject data = new JSONObject();
+                data.put(FxRatesDbAdapter.KEY_CURRENCY, currency);
+                data.put(FxRatesDbAdapter.KEY_RATE_DATE, rate_date);
+                append(ENTITY_FX_RATE, currency + "@" + rate_date, OP_DELETE, data.toString());
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Record the removal of a ledger.
+     */
+    public void recordDelete(String entity, String gid) {
+        if (gid != null) {
+            append(entity, gid, OP_DELETE, null);
+        }
+    }
+
+    /**
+     * Record the void event of a purchase or payment.
+     */
+    public void recordVoid(String entity, String gid) {
+        if (gid != null) {
+            append(entity, gid, OP_VOID, null);
+        }
+    }
+
+    /**
+     * Record the state of every ledger, purchase and payment that has no
+     * operation in the log yet: rows written before there was a log, or
+     * loaded in bulk like LedgerGenerator's. Purchases and payments get a
+     * create event, so the projections can be rebuilt without losing them.
+     *
+     * @return the number of rows recorded
+     */
+    public int recordUnlogged() {
+        int recorded = 0;
+        for (long rowId : fetchUnlogged(Ledgers.TABLE, ENTITY_LEDGER)) {
+            recordLedger(rowId);
+            recorded++;
+        }
+        for (long rowId : fetchUnlogged(Purchases.TABLE, ENTITY_PURCHASE)) {
+            recordPurchase(rowId, OP_CREATE);
+            recorded++;
+        }
+        for (long rowId : fetchUnlogged(Payments.TABLE, ENTITY_PAYMENT)) {
+            recordPayment(rowId, OP_CREATE);
+            recorded++;
+        }
+        return recorded;
+    }
+
+    // Read in full first, since recording adds to the oplog the query reads
+    private List<Long> fetchUnlogged(String table, String entity) {
+        Cursor cursor = mDb.rawQuery("SELECT " + Ledgers.ID + " FROM " + table + " WHERE " +
+                Ledgers.GID + " NOT IN (SELECT " + KEY_GID + " FROM " + OPLOG_DATABASE_TABLE +
+                " WHERE " + KEY_ENTITY + " = ?) ORDER BY " + Ledgers.ID, new String[]{entity});
+        return CursorHelper.list(cursor, new CursorHelper.RowMapper<Long>() {
+            public Long map(Cursor cursor) {
+                return cursor.getLong(0);
+            }
+        });
+    }
+
+    /**
+     * Return a Cursor over the events of a purchase or payment, oldest first:
+     * the op, the time it was recorded and the state it carried.
+     *
+     * @param table purchases or payments
+     */
+    public Cursor fetchHistory(String entity, String table, long rowId) {
+        String gid = getGid(table, rowId);
+        return mDb.rawQuery("SELECT rowid AS _id, op, recorded_at, data FROM oplog " +
+                "WHERE entity = ? AND gid = ? ORDER BY lamport, device_id",
+                new String[]{entity, gid == null ? "" : gid});
+    }
+
+    /**
+     * Take a snapshot of the projections if enough events were logged since the
+     * last one. See Projector.
+     */
+    public boolean snapshotIfDue() {
+        return mProjector.snapshotIfDue();
+    }
+
+    /**
+     * Return the highest seq of every device this device has operations from.
+     */
+    public Map<String, Long> getVersionVector() {
+        Map<String, Long> vector = new HashMap<String, Long>();
+        Cursor cursor = mDb.rawQuery("SELECT device_id, MAX(seq) FROM oplog GROUP BY device_id",
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                vector.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return vector;
+    }
+
+    /**
+     * Return a Cursor over the operations that at least one known peer has not
+     * seen, in an order that keeps each operation after the ones it depends on.
+     */
+    public Cursor fetchUnseenOps() {
+        return mDb.rawQuery(UNSEEN_OPS_QUERY, null);
+    }
+
+    /**
+     * Merge operations received from a peer in one transaction and remember which
+     * operations the peer has, so they are not sent back to it.
+     *
+     * @param peer_id     device id of the peer
+     * @param peer_vector the peer's version vector
+     * @param ops         operations the peer sent, in any order
+     * @return the number of operations that were new to this device
+     */
+    public int merge(String peer_id, Map<String, Long> peer_vector, List<Op> ops) {
+        int merged = 0;
+        mDb.beginTransaction();
+        try {
+            for (Op op : ops) {
+                if (mergeOp(op)) {
+                    merged++;
+                }
+            }
+            for (Map.Entry<String, Long> entry : peer_vector.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(SyncPeers.PEER_ID, peer_id);
+                values.put(KEY_DEVICE_ID, entry.getKey());
+                values.put(KEY_SEQ, entry.getValue());
+                mDb.insertWithOnConflict(SYNC_PEERS_DATABASE_TABLE, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return merged;
+    }
+
+    private boolean mergeOp(Op op) {
+        if (DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM oplog " +
+                "WHERE device_id = ? AND seq = ?", new String[]{op.deviceId,
+                String.valueOf(op.seq)}) > 0) {
+            return false;
+        }
+        ContentValues values = new ContentValues();
+        values.put(KEY_DEVICE_ID, op.deviceId);
+        values.put(KEY_SEQ, op.seq);
+        values.put(KEY_LAMPORT, op.lamport);
+        values.put(KEY_ENTITY, op.entity);
+        values.put(KEY_GID, op.gid);
+        values.put(KEY_OP, op.op);
+        values.put(KEY_DATA, op.data);
+        mDb.insertOrThrow(OPLOG_DATABASE_TABLE, null, values);
+        mProjector.invalidateSnapshotsAfter(op.lamport, op.deviceId);
+
+        // A later write to the same row has already been applied
+        String lamport = String.valueOf(op.lamport);
+        if (DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM oplog " +
+                "WHERE entity = ? AND gid = ? AND (lamport > ? OR (lamport = ? AND device_id > ?))",
+                new String[]{op.entity, op.gid, lamport, lamport, op.deviceId}) > 0) {
+            return true;
+        }
+        mProjector.apply(op.entity, op.op, op.gid, op.data);
+        return true;
+    }
+
+    // The first column of the query is the gid, the rest become the data
+    private boolean recordRow(String entity, String op, String sql, String[] selectionArgs) {
+        Cursor row = mDb.rawQuery(sql, selectionArgs);
+        try {
+            if (!row.moveToFirst()) {
+                return false;
+            }
+            append(entity, row.getString(0), op, rowToJson(row).toString());
+            return true;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            row.close();
+        }
+    }
+
+    private static JSONObject rowToJson(Cursor row) throws JSONException {
+        JSONObject data = new JSONObject();
+        for (int i = 1; i < row.getColumnCount(); i++) {
+            switch (row.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    data.put(row.getColumnName(i), row.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    data.put(row.getColumnName(i), row.getDouble(i));
+                    break;
+                default:
+                    data.put(row.getColumnName(i), row.getString(i));
+                    break;
+            }
+        }
+        return data;
+    }
+
+    private void append(String entity, String gid, String op, String data) {
+        String device_id = getDeviceId();
+        long seq = DatabaseUtils.longForQuery(mDb,
+                "SELECT IFNULL(MAX(seq), 0) + 1 FROM oplog WHERE device_id = ?",
+                new String[]{device_id});
+        ContentValues values = new ContentValues();
+        values.put(KEY_DEVICE_ID, device_id);
+        values.put(KEY_SEQ, seq);
+        values.put(KEY_LAMPORT, DatabaseUtils.longForQuery(mDb,
+                "SELECT IFNULL(MAX(lamport), 0) + 1 FROM oplog", null));
+        values.put(KEY_ENTITY, entity);
+        values.put(KEY_GID, gid);
+        values.put(KEY_OP, op);
+        values.put(KEY_DATA, data);
+        mDb.insertOrThrow(OPLOG_DATABASE_TABLE, null, values);
+        if (seq % Projector.SNAPSHOT_INTERVAL == 0) {
+            mProjector.snapshotIfDue();
+        }
+    }
+}
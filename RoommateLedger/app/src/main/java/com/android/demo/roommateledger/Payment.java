@@ -1,14 +1,74 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
 package com.android.demo.roommateledger;
 
+import android.database.Cursor;
+
+import com.android.demo.roommateledger.LedgerContract.Payments;
+
 /**
- * Created by Derek on 11/29/2014.
+ * One payment between two members, as read by PaymentsDbAdapter.getPayment().
  */
 public class Payment {
-    public int from;
-    public int to;
+    public long id;
+    public long fromMemberId;
+    public long toMemberId;
+    public String title;
+    public String description;
     public double amount;
+    public String currency;
+
+    /**
+     * Return a mapper for cursors over Payments.PROJECTION, or any query
+     * selecting the same column names.
+     */
+    public static CursorHelper.RowMapper<Payment> mapper() {
+        return new CursorHelper.ColumnMapper<Payment>() {
+            private int mId;
+            private int mFromMemberId;
+            private int mToMemberId;
+            private int mTitle;
+            private int mDescription;
+            private int mAmount;
+            private int mCurrency;
 
-    public Payment() {
+            @Override
+            protected void columns(Cursor cursor) {
+                mId = cursor.getColumnIndexOrThrow(Payments.ID);
+                mFromMemberId = cursor.getColumnIndexOrThrow(Payments.FROM_MEMBER_ID);
+                mToMemberId = cursor.getColumnIndexOrThrow(Payments.TO_MEMBER_ID);
+                mTitle = cursor.getColumnIndexOrThrow(Payments.TITLE);
+                mDescription = cursor.getColumnIndexOrThrow(Payments.DESCRIPTION);
+                mAmount = cursor.getColumnIndexOrThrow(Payments.AMOUNT);
+                mCurrency = cursor.getColumnIndexOrThrow(Payments.CURRENCY);
+            }
 
+            @Override
+            protected Payment read(Cursor cursor) {
+                Payment payment = new Payment();
+                payment.id = cursor.getLong(mId);
+                payment.fromMemberId = cursor.getLong(mFromMemberId);
+                payment.toMemberId = cursor.getLong(mToMemberId);
+                payment.title = cursor.getString(mTitle);
+                payment.description = cursor.getString(mDescription);
+                payment.amount = cursor.getDouble(mAmount);
+                payment.currency = cursor.getString(mCurrency);
+                return payment;
+            }
+        };
     }
 }
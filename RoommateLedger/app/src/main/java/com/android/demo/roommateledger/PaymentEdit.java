@@ -17,7 +17,6 @@
 package com.android.demo.roommateledger;
 
 import android.app.Activity;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -25,18 +24,18 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Spinner;
 
-import java.util.List;
-
 public class PaymentEdit extends Activity {
 
     private EditText mTitleText;
     private EditText mDescriptionText;
     private EditText mAmountText;
+    private EditText mCurrencyText;
     private Long mRowId;
     private Long mLedgerId;
     private PaymentsDbAdapter mDbHelper;
     private Spinner mSpinner1;
     private Spinner mSpinner2;
+    private RosterCache.Roster mRoster;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,6 +49,7 @@ public class PaymentEdit extends Activity {
         mTitleText = (EditText) findViewById(R.id.title);
         mDescriptionText = (EditText) findViewById(R.id.description);
         mAmountText = (EditText) findViewById(R.id.amount);
+        mCurrencyText = (EditText) findViewById(R.id.currency);
         mSpinner1 = (Spinner) findViewById(R.id.spinner1);
         mSpinner2 = (Spinner) findViewById(R.id.spinner2);
 
@@ -84,35 +84,43 @@ public class PaymentEdit extends Activity {
 
     private void populateFields() {
         if (mLedgerId != null) {
-            List<String> members = mDbHelper.fetchAllRoommates(mLedgerId);
-            ArrayAdapter<String> dataAdapter = new ArrayAdapter<String>(this,
-                    android.R.layout.simple_spinner_item, members);
-            dataAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-            // attaching data adapter to spinner
-            mSpinner1.setAdapter(dataAdapter);
-            mSpinner2.setAdapter(dataAdapter);
+            // Rebuild the spinners only when the members changed since the last resume
+            RosterCache.Roster roster = mDbHelper.fetchRoster(mLedgerId);
+            if (roster != mRoster) {
+                mRoster = roster;
+                ArrayAdapter<String> dataAdapter = new ArrayAdapter<String>(this,
+                        android.R.layout.simple_spinner_item, roster.getNames());
+                dataAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+                // attaching data adapter to spinner
+                mSpinner1.setAdapter(dataAdapter);
+                mSpinner2.setAdapter(dataAdapter);
+            }
+            // New payments default to the currency of the ledger
+            if (mRowId == null && mCurrencyText.getText().length() == 0) {
+                mCurrencyText.setText(mDbHelper.fetchLedgerCurrency(mLedgerId));
+            }
         }
         if (mRowId != null) {
-            Cursor purchase = mDbHelper.fetchPayment(mRowId);
-            startManagingCursor(purchase);
-            if (purchase != null && purchase.moveToFirst()) {
-                mTitleText.setText(purchase.getString(
-                        purchase.getColumnIndexOrThrow(PaymentsDbAdapter.KEY_TITLE)));
-                mDescriptionText.setText(purchase.getString(
-                        purchase.getColumnIndexOrThrow(PaymentsDbAdapter.KEY_DESCRIPTION)));
-                mAmountText.setText(purchase.getString(
-                        purchase.getColumnIndexOrThrow(PaymentsDbAdapter.KEY_AMOUNT)));
-                String text = (purchase.getString(
-                        purchase.getColumnIndexOrThrow(PaymentsDbAdapter.KEY_FROM_MEMBER_ID)));
-                int offset = mDbHelper.getCountBefore(mLedgerId);
-                mSpinner1.setSelection(Integer.valueOf(text) - 1 - offset);
-                text = (purchase.getString(
-                        purchase.getColumnIndexOrThrow(PaymentsDbAdapter.KEY_TO_MEMBER_ID)));
-                mSpinner2.setSelection(Integer.valueOf(text) - 1 - offset);
+            Payment payment = mDbHelper.getPayment(mRowId);
+            if (payment != null) {
+                mTitleText.setText(payment.title);
+                mDescriptionText.setText(payment.description);
+                mAmountText.setText(String.valueOf(payment.amount));
+                mCurrencyText.setText(payment.currency);
+                selectMember(mSpinner1, payment.fromMemberId);
+                selectMember(mSpinner2, payment.toMemberId);
             }
         }
     }
 
+    // Select the member by id; a member missing from the roster leaves the selection alone
+    private void selectMember(Spinner spinner, long memberId) {
+        int position = mRoster.indexOf(memberId);
+        if (position != -1) {
+            spinner.setSelection(position);
+        }
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -139,14 +147,16 @@ public class PaymentEdit extends Activity {
         String from = mSpinner1.getSelectedItem().toString();
         String to = mSpinner2.getSelectedItem().toString();
         double amount = Double.parseDouble(mAmountText.getText().toString());
+        String currency = mCurrencyText.getText().toString();
 
         if (mRowId == null) {
-            long id = mDbHelper.createPayment(title, description, from, to, amount, mLedgerId);
+            long id = mDbHelper.createPayment(title, description, from, to, amount, currency, mLedgerId);
             if (id > 0) {
                 mRowId = id;
             }
         } else {
-            mDbHelper.updatePayment(title, description, from, to, amount, mRowId, mLedgerId);
+            mDbHelper.updatePayment(title, description, from, to, amount, currency, mRowId,
+                    mLedgerId);
         }
     }
 }
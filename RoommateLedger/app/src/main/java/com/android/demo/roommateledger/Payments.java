@@ -22,14 +22,11 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.os.Bundle;
 import android.util.Log;
-import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
-import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.TextView;
 
 import com.android.demo.roommateledger.HomeDbAdapter;
@@ -38,16 +35,21 @@ import com.android.demo.roommateledger.PaymentEdit;
 import com.android.demo.roommateledger.PaymentsDbAdapter;
 import com.android.demo.roommateledger.R;
 
-public class Payments extends ListActivity {
+import java.util.List;
+
+public class Payments extends ListActivity implements ChangeBus.Listener {
     private static final int ACTIVITY_CREATE=0;
     private static final int ACTIVITY_EDIT=1;
 
     private static final int INSERT_ID = Menu.FIRST;
-    private static final int DELETE_ID = Menu.FIRST + 1;
+    private static final int HISTORY_ID = BulkEditMode.FIRST_ROW_ID;
 
     private PaymentsDbAdapter mDbHelper;
     private LedgerDbAdapter mLedgerDbHelper;
     private Long mLedgerId;
+    private SimpleCursorAdapter mPayments;
+    private boolean mResumed;
+    private boolean mStale;
 
     /** Called when the activity is first created. */
     @Override
@@ -65,24 +67,80 @@ public class Payments extends ListActivity {
         mDbHelper.open();
         mLedgerDbHelper = new LedgerDbAdapter(this);
         mLedgerDbHelper.open();
+
+        // Create an array to specify the fields we want to display in the list (only TITLE)
+        String[] from = new String[]{PaymentsDbAdapter.KEY_TITLE, PaymentsDbAdapter.KEY_AMOUNT,
+                PaymentsDbAdapter.KEY_CURRENCY};
+
+        // and an array of the fields we want to bind those fields to (in this case just text1)
+        int[] to = new int[]{R.id.text1, R.id.text2, R.id.currency_text};
+
+        // The cursor is swapped in by fillData() and only requeried when the ChangeBus
+        // reports a payment change in this ledger
+        mPayments = new SimpleCursorAdapter(this, R.layout.payment_row, null, from, to, 0);
+        setListAdapter(mPayments);
         fillData();
-        registerForContextMenu(getListView());
+        ChangeBus.getInstance().subscribe(this, mLedgerId, ChangeBus.TABLE_PAYMENTS);
+        // Long pressing a payment starts selecting payments to delete or move
+        getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        getListView().setMultiChoiceModeListener(new BulkEditMode(this, mLedgerDbHelper, mLedgerId) {
+            @Override
+            protected int delete(long[] ids) {
+                return mDbHelper.deletePayments(ids, mLedgerId);
+            }
+
+            @Override
+            protected int move(long[] ids, long toLedgerId) {
+                return mDbHelper.movePayments(ids, mLedgerId, toLedgerId);
+            }
+
+            @Override
+            protected void addRowItems(Menu menu) {
+                menu.add(0, HISTORY_ID, 0, R.string.history);
+            }
+
+            @Override
+            protected void onRowItemClicked(int itemId, long id) {
+                if (itemId == HISTORY_ID) {
+                    EventHistory.show(Payments.this, OplogDbAdapter.ENTITY_PAYMENT, "payments", id);
+                }
+            }
+        });
     }
 
-    private void fillData() {
-        Cursor paymentsCursor = mDbHelper.fetchAllPayments(mLedgerId);
-        startManagingCursor(paymentsCursor);
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if (mStale) {
+            fillData();
+        }
+    }
 
-        // Create an array to specify the fields we want to display in the list (only TITLE)
-        String[] from = new String[]{PaymentsDbAdapter.KEY_TITLE, PaymentsDbAdapter.KEY_AMOUNT};
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+    }
 
-        // and an array of the fields we want to bind those fields to (in this case just text1)
-        int[] to = new int[]{R.id.text1, R.id.text2};
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ChangeBus.getInstance().unsubscribe(this);
+        mPayments.changeCursor(null);
+    }
 
-        // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter payments =
-                new SimpleCursorAdapter(this, R.layout.payment_row, paymentsCursor, from, to);
-        setListAdapter(payments);
+    public void onDataChanged(List<ChangeBus.Change> changes) {
+        // Defer the reload while an editor is on top; it runs once in onResume()
+        mStale = true;
+        if (mResumed) {
+            fillData();
+        }
+    }
+
+    private void fillData() {
+        mStale = false;
+        mPayments.changeCursor(mDbHelper.fetchAllPayments(mLedgerId));
     }
 
     @Override
@@ -103,25 +161,6 @@ public class Payments extends ListActivity {
         return super.onMenuItemSelected(featureId, item);
     }
 
-    @Override
-    public void onCreateContextMenu(ContextMenu menu, View v,
-                                    ContextMenuInfo menuInfo) {
-        super.onCreateContextMenu(menu, v, menuInfo);
-        menu.add(0, DELETE_ID, 0, R.string.menu_delete_payment);
-    }
-
-    @Override
-    public boolean onContextItemSelected(MenuItem item) {
-        switch(item.getItemId()) {
-            case DELETE_ID:
-                AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-                mDbHelper.deletePayment(info.id);
-                fillData();
-                return true;
-        }
-        return super.onContextItemSelected(item);
-    }
-
     private void createPayment() {
         Intent i = new Intent(this, PaymentEdit.class);
         i.putExtra(PaymentsDbAdapter.KEY_LEDGER_ID, mLedgerId);
@@ -137,10 +176,4 @@ public class Payments extends ListActivity {
         i.putExtra(PaymentsDbAdapter.KEY_ROWID, id);
         startActivityForResult(i, ACTIVITY_EDIT);
     }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        super.onActivityResult(requestCode, resultCode, intent);
-        fillData();
-    }
 }
\ No newline at end of file
@@ -21,9 +21,9 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.android.demo.roommateledger.LedgerContract.Payments;
 
 /**
  * Simple purchases database access helper class. Defines the basic CRUD operations
@@ -37,20 +37,40 @@ import java.util.List;
  */
 public class PaymentsDbAdapter {
 
-    public static final String KEY_TITLE = "title";
-    public static final String KEY_DESCRIPTION = "description";
-    public static final String KEY_AMOUNT = "amount";
-    public static final String KEY_LEDGER_ID = "ledger_id";
-    public static final String KEY_FROM_MEMBER_ID = "from_member_id";
-    public static final String KEY_TO_MEMBER_ID = "to_member_id";
-    public static final String KEY_ROWID = "_id";
+    public static final String KEY_TITLE = Payments.TITLE;
+    public static final String KEY_DESCRIPTION = Payments.DESCRIPTION;
+    public static final String KEY_AMOUNT = Payments.AMOUNT;
+    public static final String KEY_CURRENCY = Payments.CURRENCY;
+    public static final String KEY_LEDGER_ID = Payments.LEDGER_ID;
+    public static final String KEY_FROM_MEMBER_ID = Payments.FROM_MEMBER_ID;
+    public static final String KEY_TO_MEMBER_ID = Payments.TO_MEMBER_ID;
+    public static final String KEY_ROWID = Payments.ID;
     private LedgerDbAdapter mLedgerDbHelper;
+    private OplogDbAdapter mOplogDbHelper;
 
     private static final String TAG = "LedgerDbAdapter";
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
 
-    private static final String PAYMENTS_DATABASE_TABLE = "payments";
+    private static final String PAYMENTS_DATABASE_TABLE = Payments.TABLE;
+
+    static final String PAYMENTS_QUERY =
+            "SELECT _id, title, amount, currency FROM payments WHERE ledger_id = ?";
+
+    // The members of the target ledger with the same names as the payment's
+    private static final String TARGET_FROM_MEMBER = "(SELECT t._id FROM members f " +
+            "JOIN members t ON t.member = f.member WHERE f._id = payments.from_member_id " +
+            "AND t.ledger_id = ?1)";
+    private static final String TARGET_TO_MEMBER = "(SELECT t._id FROM members f " +
+            "JOIN members t ON t.member = f.member WHERE f._id = payments.to_member_id " +
+            "AND t.ledger_id = ?1)";
+
+    // Payments whose members are not both in the target ledger are not moved
+    private static final String MOVE_PAYMENT =
+            "UPDATE payments SET ledger_id = ?1, from_member_id = " + TARGET_FROM_MEMBER + ", " +
+                    "to_member_id = " + TARGET_TO_MEMBER + " WHERE _id = ?2 AND ledger_id = ?3 " +
+                    "AND " + TARGET_FROM_MEMBER + " IS NOT NULL AND " + TARGET_TO_MEMBER +
+                    " IS NOT NULL";
 
     private final Context mCtx;
     /**
@@ -77,6 +97,7 @@ public class PaymentsDbAdapter {
     public PaymentsDbAdapter open() throws SQLException {
         mDbHelper = DatabaseHelper.getInstance(mCtx);
         mDb = mDbHelper.getWritableDatabase();
+        mOplogDbHelper = new OplogDbAdapter(mCtx).open();
         return this;
     }
 
@@ -85,21 +106,16 @@ public class PaymentsDbAdapter {
     }
 
     /**
-     * Return a Cursor positioned at the purchase that matches the given rowId
+     * Return the payment that matches the given rowId
      *
-     * @param rowId id of purchase to retrieve
-     * @return Cursor positioned to matching purchase, if found
-     * @throws android.database.SQLException if purchase could not be found/retrieved
+     * @param rowId id of payment to retrieve
+     * @return the payment, or null if there is none with that id
+     * @throws android.database.SQLException if payment could not be retrieved
      */
-    public Cursor fetchPayment(long rowId) throws SQLException {
-        Cursor mCursor =
-                mDb.query(true, PAYMENTS_DATABASE_TABLE, new String[]{KEY_ROWID, KEY_TITLE,
-                                KEY_DESCRIPTION, KEY_FROM_MEMBER_ID, KEY_TO_MEMBER_ID, KEY_AMOUNT},
-                                KEY_ROWID + "=" + rowId, null, null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
-        }
-        return mCursor;
+    public Payment getPayment(long rowId) throws SQLException {
+        Cursor cursor = mDb.query(PAYMENTS_DATABASE_TABLE, Payments.PROJECTION,
+                KEY_ROWID + "=" + rowId, null, null, null, null);
+        return CursorHelper.first(cursor, Payment.mapper(), null);
     }
 
     /**
@@ -110,9 +126,11 @@ public class PaymentsDbAdapter {
      * @param title       the title of the purchase
      * @param description the description of the purchase
      * @param amount      the amount of the purchase
+     * @param currency    the currency the amount was paid in
      * @return rowId or -1 if failed
      */
-    public long createPayment(String title, String description, String from, String to, double amount, long ledger_id) {
+    public long createPayment(String title, String description, String from, String to, double amount,
+                              String currency, long ledger_id) {
         long from_member_id = mLedgerDbHelper.getMemberId(from, ledger_id);
         long to_member_id = mLedgerDbHelper.getMemberId(to, ledger_id);
         ContentValues initialValues = new ContentValues();
@@ -121,38 +139,140 @@ public class PaymentsDbAdapter {
         initialValues.put(KEY_FROM_MEMBER_ID, from_member_id);
         initialValues.put(KEY_TO_MEMBER_ID, to_member_id);
         initialValues.put(KEY_AMOUNT, amount);
+        initialValues.put(KEY_CURRENCY, FxRatesDbAdapter.normalizeCurrency(currency));
         initialValues.put(KEY_LEDGER_ID, ledger_id);
 
-        return mDb.insert(PAYMENTS_DATABASE_TABLE, null, initialValues);
+        long rowId;
+        mDb.beginTransaction();
+        try {
+            rowId = mDb.insert(PAYMENTS_DATABASE_TABLE, null, initialValues);
+            if (rowId != -1) {
+                mOplogDbHelper.recordPayment(rowId, OplogDbAdapter.OP_CREATE);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (rowId != -1) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PAYMENTS, rowId);
+        }
+        return rowId;
     }
 
     /**
-     * Delete the purchase with the given rowId
+     * Delete the payment with the given rowId. The payment is voided: its
+     * events stay in the oplog.
      *
-     * @param rowId id of purchase to delete
+     * @param rowId     id of payment to delete
+     * @param ledger_id id of the ledger the payment belongs to
      * @return true if deleted, false otherwise
      */
-    public boolean deletePayment(long rowId) {
-        return mDb.delete(PAYMENTS_DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+    public boolean deletePayment(long rowId, long ledger_id) {
+        boolean deleted;
+        mDb.beginTransaction();
+        try {
+            deleted = deletePaymentRow(rowId);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PAYMENTS, rowId);
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the payments with the given rowIds in one transaction, voiding
+     * each, and publish a single change for the ledger.
+     *
+     * @param rowIds    ids of the payments to delete
+     * @param ledger_id id of the ledger the payments belong to
+     * @return the number of payments deleted
+     */
+    public int deletePayments(long[] rowIds, long ledger_id) {
+        int deleted = 0;
+        mDb.beginTransaction();
+        try {
+            for (long rowId : rowIds) {
+                if (deletePaymentRow(rowId)) {
+                    deleted++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted > 0) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PAYMENTS,
+                    ChangeBus.ANY_ROW);
+        }
+        return deleted;
+    }
+
+    private boolean deletePaymentRow(long rowId) {
+        String gid = mOplogDbHelper.getGid(PAYMENTS_DATABASE_TABLE, rowId);
+        boolean deleted = mDb.delete(PAYMENTS_DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        if (deleted) {
+            mOplogDbHelper.recordVoid(OplogDbAdapter.ENTITY_PAYMENT, gid);
+        }
+        return deleted;
+    }
+
+    /**
+     * Move the payments with the given rowIds to another ledger in one
+     * transaction, between the members of the same names there. Payments whose
+     * members the target ledger does not both have stay where they are.
+     *
+     * @param rowIds       ids of the payments to move
+     * @param ledger_id    id of the ledger the payments belong to
+     * @param to_ledger_id id of the ledger to move them to
+     * @return the number of payments moved
+     */
+    public int movePayments(long[] rowIds, long ledger_id, long to_ledger_id) {
+        int moved = 0;
+        mDb.beginTransaction();
+        SQLiteStatement move = mDb.compileStatement(MOVE_PAYMENT);
+        try {
+            move.bindLong(1, to_ledger_id);
+            move.bindLong(3, ledger_id);
+            for (long rowId : rowIds) {
+                move.bindLong(2, rowId);
+                if (move.executeUpdateDelete() > 0) {
+                    mOplogDbHelper.recordPayment(rowId, OplogDbAdapter.OP_AMEND);
+                    moved++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            move.close();
+            mDb.endTransaction();
+        }
+        if (moved > 0) {
+            ChangeBus bus = ChangeBus.getInstance();
+            bus.publish(ledger_id, ChangeBus.TABLE_PAYMENTS, ChangeBus.ANY_ROW);
+            bus.publish(to_ledger_id, ChangeBus.TABLE_PAYMENTS, ChangeBus.ANY_ROW);
+        }
+        return moved;
     }
 
     public Cursor fetchAllPayments(long ledger_id) {
-        Cursor mCursor = mDb.rawQuery("SELECT _id, title, amount FROM payments WHERE ledger_id = ?",
-                new String[] {String.valueOf(ledger_id)});
+        Cursor mCursor = mDb.rawQuery(PAYMENTS_QUERY, new String[] {String.valueOf(ledger_id)});
         return mCursor;
     }
 
     /**
-     * Return a Cursor over the list of roommates for the given ledger_id in the database
+     * Return the roster of the given ledger. The roster is shared through
+     * RosterCache and stays the same instance until the members change.
      *
-     * @return Cursor over all roommates
+     * @return the immutable roster of the ledger
      */
-    public List<String> fetchAllRoommates(long ledger_id) {
-        return mLedgerDbHelper.fetchAllRoommates(ledger_id);
+    public RosterCache.Roster fetchRoster(long ledger_id) {
+        return mLedgerDbHelper.fetchRoster(ledger_id);
     }
 
-    public int getCountBefore(long ledger_id) {
-        return mLedgerDbHelper.getCountBefore(ledger_id);
+    public String fetchLedgerCurrency(long ledger_id) {
+        return mLedgerDbHelper.fetchLedgerCurrency(ledger_id);
     }
 
     /**
@@ -163,19 +283,44 @@ public class PaymentsDbAdapter {
      * @param rowId id of purchase to update
      * @param title value to set purchase title to
      * @param description  value to set purchase body to
-     * @return true if the purchase was successfully updated, false otherwise
+     * @param currency value to set payment currency to
+     * @return true if the payment was changed, false if it was not found or
+     * already held these values
      */
-    public boolean updatePayment(String title, String description, String from, String to, double amount, long rowId, long ledger_id) {
+    public boolean updatePayment(String title, String description, String from, String to, double amount,
+                                 String currency, long rowId, long ledger_id) {
         long from_id = mLedgerDbHelper.getMemberId(from, ledger_id);
         long to_id = mLedgerDbHelper.getMemberId(to, ledger_id);
+        currency = FxRatesDbAdapter.normalizeCurrency(currency);
         ContentValues args = new ContentValues();
         args.put(KEY_TITLE, title);
         args.put(KEY_DESCRIPTION, description);
         args.put(KEY_FROM_MEMBER_ID, from_id);
         args.put(KEY_TO_MEMBER_ID, to_id);
         args.put(KEY_AMOUNT, amount);
+        args.put(KEY_CURRENCY, currency);
         args.put(KEY_LEDGER_ID, ledger_id);
 
-        return mDb.update(PAYMENTS_DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+        boolean updated;
+        mDb.beginTransaction();
+        try {
+            // Only touch the row when a value differs, so saving an unchanged form is a no-op
+            updated = mDb.update(PAYMENTS_DATABASE_TABLE, args, KEY_ROWID + "=" + rowId +
+                            " AND (" + KEY_TITLE + " IS NOT ? OR " + KEY_DESCRIPTION + " IS NOT ? OR " +
+                            KEY_FROM_MEMBER_ID + " IS NOT ? OR " + KEY_TO_MEMBER_ID + " IS NOT ? OR " +
+                            KEY_AMOUNT + " IS NOT ? OR " + KEY_CURRENCY + " IS NOT ?)",
+                    new String[]{title, description, String.valueOf(from_id), String.valueOf(to_id),
+                            String.valueOf(amount), currency}) > 0;
+            if (updated) {
+                mOplogDbHelper.recordPayment(rowId, OplogDbAdapter.OP_AMEND);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (updated) {
+            ChangeBus.getInstance().publish(ledger_id, ChangeBus.TABLE_PAYMENTS, rowId);
+        }
+        return updated;
     }
 }
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.android.demo.roommateledger.LedgerContract.FxRates;
+import com.android.demo.roommateledger.LedgerContract.Ledgers;
+import com.android.demo.roommateledger.LedgerContract.Members;
+import com.android.demo.roommateledger.LedgerContract.Oplog;
+import com.android.demo.roommateledger.LedgerContract.Payments;
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+import com.android.demo.roommateledger.LedgerContract.SnapshotRows;
+import com.android.demo.roommateledger.LedgerContract.Snapshots;
+import com.android.demo.roommateledger.LedgerContract.SyncState;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the purchases and payments tables from the events in the oplog.
+ * Purchases and payments are event sourced: every change is an immutable
+ * create, amend or void event, and the tables only hold the result of applying
+ * those events in (lamport, device_id) order. The adapters apply their own
+ * events as they write them; apply() does the same for events merged from other
+ * devices, and rebuild() replays the log from scratch.
+ * <p/>
+ * A snapshot records the latest event of every live purchase and payment up to
+ * a watermark, so a rebuild starts from the newest snapshot and replays only
+ * the events after it. Snapshots are taken incrementally every SNAPSHOT_INTERVAL
+ * events, which keeps a cold-start replay bounded however long the log grows.
+ */
+public class Projector {
+
+    /**
+     * Version of the projection rules. Bump it whenever apply() or the
+     * projected tables change, and the projections are rebuilt on next open.
+     */
+    public static final int PROJECTION_VERSION = 1;
+
+    /** Number of events between two snapshots. */
+    public static final int SNAPSHOT_INTERVAL = 500;
+
+    private static final String TAG = "Projector";
+
+    /** Name of the sync_state row holding the version the projections were built by. */
+    static final String PROJECTION_VERSION_NAME = "projection_version";
+
+    private static final String LATEST_SNAPSHOT_QUERY =
+            "SELECT " + Snapshots.ID + ", " + Snapshots.LAMPORT + ", " + Snapshots.DEVICE_ID +
+                    " FROM " + Snapshots.TABLE + " ORDER BY " + Snapshots.LAMPORT + " DESC, " +
+                    Snapshots.DEVICE_ID + " DESC LIMIT 1";
+
+    private static final String MEMBER_WHERE = Members.LEDGER_ID + " = ? AND " +
+            Members.MEMBER + " = ?";
+
+    // Written as a range on lamport so it walks oplog_lamport from the watermark
+    private static final String EVENTS_AFTER_QUERY =
+            "SELECT " + Oplog.ENTITY + ", " + Oplog.OP + ", " + Oplog.GID + ", " + Oplog.DATA +
+                    ", " + Oplog.LAMPORT + ", " + Oplog.DEVICE_ID + " FROM " + Oplog.TABLE +
+                    " WHERE " + Oplog.LAMPORT + " >= ? AND (" + Oplog.LAMPORT + " > ? OR " +
+                    Oplog.DEVICE_ID + " > ?) AND +" + Oplog.ENTITY + " IN ('" +
+                    OplogDbAdapter.ENTITY_PURCHASE + "', '" + OplogDbAdapter.ENTITY_PAYMENT +
+                    "') ORDER BY " + Oplog.LAMPORT + ", " + Oplog.DEVICE_ID;
+
+    private final SQLiteDatabase mDb;
+
+    public Projector(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Rebuild the projections if they were built by other projection rules.
+     * Called each time the database is opened; costs one lookup when current.
+     */
+    public void rebuildIfStale() {
+        String version = String.valueOf(PROJECTION_VERSION);
+        Cursor cursor = mDb.query(SyncState.TABLE, new String[]{SyncState.VALUE},
+                SyncState.NAME + " = ?", new String[]{PROJECTION_VERSION_NAME}, null, null, null);
+        try {
+            if (cursor.moveToFirst() && version.equals(cursor.getString(0))) {
+                return;
+            }
+        } finally {
+            cursor.close();
+        }
+        mDb.beginTransaction();
+        try {
+            rebuild();
+            ContentValues values = new ContentValues();
+            values.put(SyncState.NAME, PROJECTION_VERSION_NAME);
+            values.put(SyncState.VALUE, version);
+            mDb.insertWithOnConflict(SyncState.TABLE, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Empty the purchases and payments tables and replay them from the newest
+     * snapshot and the events after it. Rows without any event are recorded
+     * first, see OplogDbAdapter.recordUnlogged().
+     *
+     * @return the number of events replayed after the snapshot
+     */
+    public int rebuild() {
+        long start = System.currentTimeMillis();
+        int replayed = 0;
+        mDb.beginTransaction();
+        try {
+            int unlogged = new OplogDbAdapter(mDb).recordUnlogged();
+            if (unlogged > 0) {
+                Log.i(TAG, "Recorded " + unlogged + " rows missing from the oplog");
+            }
+
+            // Receipts and recurring rules are local to this device and not in
+            // the oplog; put them back on the replayed rows
+            Cursor local = mDb.query(Purchases.TABLE, new String[]{Purchases.GID,
+                    Purchases.RECEIPT, Purchases.RECURRING_ID}, Purchases.RECEIPT +
+                    " IS NOT NULL OR " + Purchases.RECURRING_ID + " IS NOT NULL", null, null, null,
+                    null);
+            List<Object[]> kept = CursorHelper.list(local,
+                    new CursorHelper.RowMapper<Object[]>() {
+                        public Object[] map(Cursor cursor) {
+                            return new Object[]{cursor.getString(1),
+                                    cursor.isNull(2) ? null : cursor.getLong(2),
+                                    cursor.getString(0)};
+                        }
+                    });
+            mDb.delete(Purchases.TABLE, null, null);
+            mDb.delete(Payments.TABLE, null, null);
+
+            long lamport = 0;
+            String device_id = "";
+            Cursor snapshot = mDb.rawQuery(LATEST_SNAPSHOT_QUERY, null);
+            try {
+                if (snapshot.moveToFirst()) {
+                    lamport = snapshot.getLong(1);
+                    device_id = snapshot.getString(2);
+                    Cursor rows = mDb.query(SnapshotRows.TABLE, new String[]{SnapshotRows.ENTITY,
+                            SnapshotRows.GID, SnapshotRows.DATA}, SnapshotRows.SNAPSHOT_ID + " = ?",
+                            new String[]{snapshot.getString(0)}, null, null, null);
+                    try {
+                        while (rows.moveToNext()) {
+                            apply(rows.getString(0), OplogDbAdapter.OP_CREATE, rows.getString(1),
+                                    rows.getString(2));
+                        }
+                    } finally {
+                        rows.close();
+                    }
+                }
+            } finally {
+                snapshot.close();
+            }
+
+            Cursor events = fetchEventsAfter(lamport, device_id);
+            try {
+                while (events.moveToNext()) {
+                    apply(events.getString(0), events.getString(1), events.getString(2),
+                            events.getString(3));
+                    replayed++;
+                }
+            } finally {
+                events.close();
+            }
+            for (Object[] row : kept) {
+                mDb.execSQL("UPDATE " + Purchases.TABLE + " SET " + Purchases.RECEIPT + " = ?, " +
+                        Purchases.RECURRING_ID + " = ? WHERE " + Purchases.GID + " = ?", row);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        Log.i(TAG, "Rebuilt projections replaying " + replayed + " events in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return replayed;
+    }
+
+    /**
+     * Take a snapshot if SNAPSHOT_INTERVAL events were logged since the last one.
+     *
+     * @return true if a snapshot was taken
+     */
+    public boolean snapshotIfDue() {
+        long lamport = DatabaseUtils.longForQuery(mDb, "SELECT IFNULL(MAX(" + Snapshots.LAMPORT +
+                "), 0) FROM " + Snapshots.TABLE, null);
+        long pending = DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + Oplog.TABLE +
+                " WHERE " + Oplog.LAMPORT + " > ?", new String[]{String.valueOf(lamport)});
+        if (pending < SNAPSHOT_INTERVAL) {
+            return false;
+        }
+        snapshot();
+        return true;
+    }
+
+    /**
+     * Take a snapshot covering every event logged so far. The snapshot is built
+     * from the previous one and the events after it, then replaces it.
+     *
+     * @return the id of the snapshot, or -1 if the log is empty
+     */
+    public long snapshot() {
+        ContentValues values = new ContentValues();
+        Cursor last = mDb.query(Oplog.TABLE, new String[]{Oplog.LAMPORT, Oplog.DEVICE_ID}, null,
+                null, null, null, Oplog.LAMPORT + " DESC, " + Oplog.DEVICE_ID + " DESC", "1");
+        try {
+            if (!last.moveToFirst()) {
+                return -1;
+            }
+            values.put(Snapshots.LAMPORT, last.getLong(0));
+            values.put(Snapshots.DEVICE_ID, last.getString(1));
+        } finally {
+            last.close();
+        }
+
+        long snapshot_id;
+        mDb.beginTransaction();
+        try {
+            long previous_id = -1;
+            long lamport = 0;
+            String device_id = "";
+            Cursor previous = mDb.rawQuery(LATEST_SNAPSHOT_QUERY, null);
+            try {
+                if (previous.moveToFirst()) {
+                    previous_id = previous.getLong(0);
+                    lamport = previous.getLong(1);
+                    device_id = previous.getString(2);
+                }
+            } finally {
+                previous.close();
+            }
+
+            values.put(Snapshots.EVENTS, DatabaseUtils.longForQuery(mDb,
+                    "SELECT COUNT(*) FROM " + Oplog.TABLE, null));
+            snapshot_id = mDb.insertOrThrow(Snapshots.TABLE, null, values);
+            if (previous_id != -1) {
+                mDb.execSQL("INSERT INTO " + SnapshotRows.TABLE + " SELECT ?, " +
+                        SnapshotRows.ENTITY + ", " + SnapshotRows.GID + ", " + SnapshotRows.DATA +
+                        " FROM " + SnapshotRows.TABLE + " WHERE " + SnapshotRows.SNAPSHOT_ID +
+                        " = ?", new Object[]{snapshot_id, previous_id});
+            }
+            Cursor events = fetchEventsAfter(lamport, device_id);
+            try {
+                while (events.moveToNext()) {
+                    if (OplogDbAdapter.OP_VOID.equals(events.getString(1))) {
+                        mDb.delete(SnapshotRows.TABLE, SnapshotRows.SNAPSHOT_ID + " = ? AND " +
+                                SnapshotRows.ENTITY + " = ? AND " + SnapshotRows.GID + " = ?",
+                                new String[]{String.valueOf(snapshot_id), events.getString(0),
+                                        events.getString(2)});
+                    } else {
+                        ContentValues row = new ContentValues();
+                        row.put(SnapshotRows.SNAPSHOT_ID, snapshot_id);
+                        row.put(SnapshotRows.ENTITY, events.getString(0));
+                        row.put(SnapshotRows.GID, events.getString(2));
+                        row.put(SnapshotRows.DATA, events.getString(3));
+                        mDb.insertWithOnConflict(SnapshotRows.TABLE, null, row,
+                                SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                }
+            } finally {
+                events.close();
+            }
+            // Only the newest snapshot is ever replayed from
+            mDb.delete(SnapshotRows.TABLE, SnapshotRows.SNAPSHOT_ID + " != " + snapshot_id, null);
+            mDb.delete(Snapshots.TABLE, Snapshots.ID + " != " + snapshot_id, null);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return snapshot_id;
+    }
+
+    /**
+     * Drop the snapshots that do not cover an event merged after they were
+     * taken, that is every snapshot whose watermark is after the event.
+     */
+    public void invalidateSnapshotsAfter(long lamport, String device_id) {
+        String where = Snapshots.LAMPORT + " > ? OR (" + Snapshots.LAMPORT + " = ? AND " +
+                Snapshots.DEVICE_ID + " > ?)";
+        String[] args = new String[]{String.valueOf(lamport), String.valueOf(lamport), device_id};
+        mDb.delete(SnapshotRows.TABLE, SnapshotRows.SNAPSHOT_ID + " IN (SELECT " + Snapshots.ID +
+                " FROM " + Snapshots.TABLE + " WHERE " + where + ")", args);
+        mDb.delete(Snapshots.TABLE, where, args);
+    }
+
+    /**
+     * Apply one event to the projected tables. Ledgers and rates are not event
+     * sourced, their put and delete operations simply overwrite the row.
+     *
+     * @param data JSON state carried by the event, null for a delete or void
+     */
+    public void apply(String entity, String op, String gid, String data) {
+        try {
+            JSONObject json = data == null || OplogDbAdapter.OP_VOID.equals(op)
+                    || OplogDbAdapter.OP_DELETE.equals(op) ? null : new JSONObject(data);
+            if (OplogDbAdapter.ENTITY_LEDGER.equals(entity)) {
+                applyLedger(gid, json);
+            } else if (OplogDbAdapter.ENTITY_PURCHASE.equals(entity)) {
+                applyPurchase(gid, json);
+            } else if (OplogDbAdapter.ENTITY_PAYMENT.equals(entity)) {
+                applyPayment(gid, json);
+            } else if (OplogDbAdapter.ENTITY_FX_RATE.equals(entity)) {
+                applyFxRate(OplogDbAdapter.OP_PUT.equals(op), new JSONObject(data));
+            }
+        } catch (JSONException e) {
+            throw new SQLException("Bad " + op + " event on " + entity + " " + gid);
+        }
+    }
+
+    // A null data is a delete
+    private void applyLedger(String gid, JSONObject data) throws JSONException {
+        if (data == null) {
+            mDb.delete(Ledgers.TABLE, Ledgers.GID + " = ?", new String[]{gid});
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(Ledgers.TITLE, data.getString(Ledgers.TITLE));
+        values.put(Ledgers.DESCRIPTION, data.getString(Ledgers.DESCRIPTION));
+        values.put(Ledgers.CURRENCY, data.getString(Ledgers.CURRENCY));
+        long ledger_id = putRow(Ledgers.TABLE, gid, values);
+
+        List<String> members = new ArrayList<String>();
+        JSONArray names = data.getJSONArray("members");
+        for (int i = 0; i < names.length(); i++) {
+            members.add(names.getString(i));
+        }
+        // Renamed members keep their rows, and with them their purchases and payments
+        JSONObject renames = data.optJSONObject("renames");
+        JSONArray renamed = renames == null ? null : renames.names();
+        for (int i = 0; renamed != null && i < renamed.length(); i++) {
+            String member = renamed.getString(i);
+            String name = renames.getString(member);
+            if (getMemberId(ledger_id, name) != -1) {
+                continue;
+            }
+            ContentValues memberValues = new ContentValues();
+            memberValues.put(Members.MEMBER, name);
+            mDb.update(Members.TABLE, memberValues, MEMBER_WHERE,
+                    new String[]{String.valueOf(ledger_id), member});
+        }
+        List<String> current = getMemberNames(ledger_id);
+        for (String member : current) {
+            if (!members.contains(member)) {
+                mDb.delete(Members.TABLE, MEMBER_WHERE,
+                        new String[]{String.valueOf(ledger_id), member});
+            }
+        }
+        for (String member : members) {
+            if (!current.contains(member)) {
+                ContentValues memberValues = new ContentValues();
+                memberValues.put(Members.LEDGER_ID, ledger_id);
+                memberValues.put(Members.MEMBER, member);
+                mDb.insert(Members.TABLE, null, memberValues);
+            }
+        }
+    }
+
+    // Rows whose ledger or members no longer exist here are skipped
+    private void applyPurchase(String gid, JSONObject data) throws JSONException {
+        if (data == null) {
+            mDb.delete(Purchases.TABLE, Purchases.GID + " = ?", new String[]{gid});
+            return;
+        }
+        long ledger_id = getIdByGid(Ledgers.TABLE, data.getString("ledger"));
+        long member_id = getMemberId(ledger_id, data.getString("member"));
+        if (member_id == -1) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(Purchases.LEDGER_ID, ledger_id);
+        values.put(Purchases.MEMBER_ID, member_id);
+        values.put(Purchases.TITLE, data.getString(Purchases.TITLE));
+        values.put(Purchases.DESCRIPTION, data.getString(Purchases.DESCRIPTION));
+        values.put(Purchases.AMOUNT, data.getDouble(Purchases.AMOUNT));
+        values.put(Purchases.CURRENCY, data.getString(Purchases.CURRENCY));
+        values.put(Purchases.CATEGORY, data.getString(Purchases.CATEGORY));
+        values.put(Purchases.PURCHASE_DATE, data.getString(Purchases.PURCHASE_DATE));
+        putRow(Purchases.TABLE, gid, values);
+    }
+
+    private void applyPayment(String gid, JSONObject data) throws JSONException {
+        if (data == null) {
+            mDb.delete(Payments.TABLE, Payments.GID + " = ?", new String[]{gid});
+            return;
+        }
+        long ledger_id = getIdByGid(Ledgers.TABLE, data.getString("ledger"));
+        long from_id = getMemberId(ledger_id, data.getString("from_member"));
+        long to_id = getMemberId(ledger_id, data.getString("to_member"));
+        if (from_id == -1 || to_id == -1) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(Payments.LEDGER_ID, ledger_id);
+        values.put(Payments.FROM_MEMBER_ID, from_id);
+        values.put(Payments.TO_MEMBER_ID, to_id);
+        values.put(Payments.TITLE, data.getString(Payments.TITLE));
+        values.put(Payments.DESCRIPTION, data.getString(Payments.DESCRIPTION));
+        values.put(Payments.AMOUNT, data.getDouble(Payments.AMOUNT));
+        values.put(Payments.CURRENCY, data.getString(Payments.CURRENCY));
+        values.put(Payments.PAYMENT_DATE, data.getString(Payments.PAYMENT_DATE));
+        putRow(Payments.TABLE, gid, values);
+    }
+
+    private void applyFxRate(boolean put, JSONObject data) throws JSONException {
+        String currency = data.getString(FxRates.CURRENCY);
+        String rate_date = data.getString(FxRates.RATE_DATE);
+        if (put) {
+            ContentValues values = new ContentValues();
+            values.put(FxRates.CURRENCY, currency);
+            values.put(FxRates.RATE_DATE, rate_date);
+            values.put(FxRates.RATE, data.getDouble(FxRates.RATE));
+            mDb.insertWithOnConflict(FxRates.TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } else {
+            mDb.delete(FxRates.TABLE, FxRates.CURRENCY + " = ? AND " + FxRates.RATE_DATE + " = ?",
+                    new String[]{currency, rate_date});
+        }
+    }
+
+    // Update the row with the given gid, or insert it if this device lacks it.
+    // Ledgers, purchases and payments name their id and gid columns alike.
+    private long putRow(String table, String gid, ContentValues values) {
+        long rowId = getIdByGid(table, gid);
+        if (rowId != -1) {
+            mDb.update(table, values, Ledgers.ID + "=" + rowId, null);
+            return rowId;
+        }
+        values.put(Ledgers.GID, gid);
+        return mDb.insertOrThrow(table, null, values);
+    }
+
+    private long getIdByGid(String table, String gid) {
+        Cursor cursor = mDb.query(table, new String[]{Ledgers.ID}, Ledgers.GID + " = ?",
+                new String[]{gid}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getMemberId(long ledger_id, String member) {
+        Cursor cursor = mDb.query(Members.TABLE, new String[]{Members.ID}, MEMBER_WHERE,
+                new String[]{String.valueOf(ledger_id), member}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    List<String> getMemberNames(long ledger_id) {
+        List<String> members = new ArrayList<String>();
+        Cursor cursor = mDb.query(Members.TABLE, new String[]{Members.MEMBER},
+                Members.LEDGER_ID + " = ?", new String[]{String.valueOf(ledger_id)}, null, null,
+                Members.ID);
+        try {
+            while (cursor.moveToNext()) {
+                members.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return members;
+    }
+
+    private Cursor fetchEventsAfter(long lamport, String device_id) {
+        String clock = String.valueOf(lamport);
+        return mDb.rawQuery(EVENTS_AFTER_QUERY, new String[]{clock, clock, device_id});
+    }
+}
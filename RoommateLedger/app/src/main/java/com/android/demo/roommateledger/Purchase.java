@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.database.Cursor;
+
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+
+/**
+ * One purchase, as read by LedgerDbAdapter.getPurchase().
+ */
+public class Purchase {
+    public long id;
+    public long memberId;
+    public String title;
+    public String description;
+    public double amount;
+    public String currency;
+    public String category;
+    public String receipt;
+
+    /**
+     * Return a mapper for cursors over Purchases.PROJECTION, or any query
+     * selecting the same column names.
+     */
+    public static CursorHelper.RowMapper<Purchase> mapper() {
+        return new CursorHelper.ColumnMapper<Purchase>() {
+            private int mId;
+            private int mMemberId;
+            private int mTitle;
+            private int mDescription;
+            private int mAmount;
+            private int mCurrency;
+            private int mCategory;
+            private int mReceipt;
+
+            @Override
+            protected void columns(Cursor cursor) {
+                mId = cursor.getColumnIndexOrThrow(Purchases.ID);
+                mMemberId = cursor.getColumnIndexOrThrow(Purchases.MEMBER_ID);
+                mTitle = cursor.getColumnIndexOrThrow(Purchases.TITLE);
+                mDescription = cursor.getColumnIndexOrThrow(Purchases.DESCRIPTION);
+                mAmount = cursor.getColumnIndexOrThrow(Purchases.AMOUNT);
+                mCurrency = cursor.getColumnIndexOrThrow(Purchases.CURRENCY);
+                mCategory = cursor.getColumnIndexOrThrow(Purchases.CATEGORY);
+                mReceipt = cursor.getColumnIndexOrThrow(Purchases.RECEIPT);
+            }
+
+            @Override
+            protected Purchase read(Cursor cursor) {
+                Purchase purchase = new Purchase();
+                purchase.id = cursor.getLong(mId);
+                purchase.memberId = cursor.getLong(mMemberId);
+                purchase.title = cursor.getString(mTitle);
+                purchase.description = cursor.getString(mDescription);
+                purchase.amount = cursor.getDouble(mAmount);
+                purchase.currency = cursor.getString(mCurrency);
+                purchase.category = cursor.getString(mCategory);
+                purchase.receipt = cursor.getString(mReceipt);
+                return purchase;
+            }
+        };
+    }
+}
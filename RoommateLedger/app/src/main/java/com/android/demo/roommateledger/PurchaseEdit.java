@@ -17,26 +17,40 @@
 package com.android.demo.roommateledger;
 
 import android.app.Activity;
-import android.database.Cursor;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
+import android.widget.Toast;
 
-import java.util.List;
+import java.io.IOException;
 
 public class PurchaseEdit extends Activity {
+    private static final String TAG = "PurchaseEdit";
+    private static final int ACTIVITY_PICK_RECEIPT = 0;
 
     private EditText mTitleText;
     private EditText mDescriptionText;
     private EditText mAmountText;
+    private EditText mCurrencyText;
+    private EditText mCategoryText;
     private Long mRowId;
     private Long mLedgerId;
     private LedgerDbAdapter mDbHelper;
     private Spinner mSpinner;
+    private Spinner mRepeatSpinner;
+    private View mRepeatRow;
+    private RosterCache.Roster mRoster;
+    private ImageView mReceiptView;
+    private String mReceipt;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,9 +64,15 @@ public class PurchaseEdit extends Activity {
         mTitleText = (EditText) findViewById(R.id.title);
         mDescriptionText = (EditText) findViewById(R.id.description);
         mAmountText = (EditText) findViewById(R.id.amount);
+        mCurrencyText = (EditText) findViewById(R.id.currency);
+        mCategoryText = (EditText) findViewById(R.id.category);
         mSpinner = (Spinner) findViewById(R.id.spinner);
+        mRepeatSpinner = (Spinner) findViewById(R.id.repeat_spinner);
+        mRepeatRow = findViewById(R.id.repeat_row);
+        mReceiptView = (ImageView) findViewById(R.id.receipt);
 
         Button confirmButton = (Button) findViewById(R.id.confirm);
+        Button attachButton = (Button) findViewById(R.id.attach_receipt);
 
         mRowId = (savedInstanceState == null) ? null :
             (Long) savedInstanceState.getSerializable(LedgerDbAdapter.KEY_ROWID);
@@ -79,36 +99,116 @@ public class PurchaseEdit extends Activity {
             }
 
         });
+
+        // Pausing for the picker saves the purchase, so a new one has a row by the result
+        attachButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View view) {
+                Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+                pick.setType("image/*");
+                pick.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pick, ACTIVITY_PICK_RECEIPT);
+            }
+        });
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == ACTIVITY_PICK_RECEIPT && resultCode == RESULT_OK && data != null
+                && data.getData() != null && mRowId != null) {
+            new AttachTask(data.getData(), mRowId, mLedgerId, mReceipt).execute();
+        }
+    }
+
+    // Copies the photo into the ReceiptStore and attaches it off the main thread
+    private class AttachTask extends AsyncTask<Void, Void, String> {
+        private final Uri mUri;
+        private final long mPurchaseId;
+        private final long mPurchaseLedgerId;
+        private final String mPrevious;
+
+        AttachTask(Uri uri, long purchaseId, long ledgerId, String previous) {
+            mUri = uri;
+            mPurchaseId = purchaseId;
+            mPurchaseLedgerId = ledgerId;
+            mPrevious = previous;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            ReceiptStore receipts = ReceiptStore.getInstance(PurchaseEdit.this);
+            String name;
+            try {
+                name = receipts.importReceipt(mUri);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot import receipt " + mUri, e);
+                return null;
+            }
+            if (!mDbHelper.setReceipt(mPurchaseId, name, mPurchaseLedgerId)) {
+                receipts.delete(name);
+                return null;
+            }
+            if (mPrevious != null) {
+                receipts.delete(mPrevious);
+            }
+            return name;
+        }
+
+        @Override
+        protected void onPostExecute(String name) {
+            if (name == null) {
+                Toast.makeText(PurchaseEdit.this, R.string.receipt_failed,
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            mReceipt = name;
+            ReceiptStore.getInstance(PurchaseEdit.this).loadThumbnail(mReceipt, mReceiptView);
+        }
     }
 
     private void populateFields() {
         if (mLedgerId != null) {
-            List<String> members = mDbHelper.fetchAllRoommates(mLedgerId);
-            ArrayAdapter<String> dataAdapter = new ArrayAdapter<String>(this,
-                    android.R.layout.simple_spinner_item, members);
-            dataAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-            // attaching data adapter to spinner
-            mSpinner.setAdapter(dataAdapter);
+            // Rebuild the spinner only when the members changed since the last resume
+            RosterCache.Roster roster = mDbHelper.fetchRoster(mLedgerId);
+            if (roster != mRoster) {
+                mRoster = roster;
+                ArrayAdapter<String> dataAdapter = new ArrayAdapter<String>(this,
+                        android.R.layout.simple_spinner_item, roster.getNames());
+                dataAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+                // attaching data adapter to spinner
+                mSpinner.setAdapter(dataAdapter);
+            }
+        }
+        // Only a new purchase can be made recurring
+        mRepeatRow.setVisibility(mRowId == null ? View.VISIBLE : View.GONE);
+        // New purchases default to the currency of the ledger
+        if (mRowId == null && mLedgerId != null && mCurrencyText.getText().length() == 0) {
+            mCurrencyText.setText(mDbHelper.fetchLedgerCurrency(mLedgerId));
         }
         if (mRowId != null) {
-            Cursor purchase = mDbHelper.fetchPurchase(mRowId);
-            startManagingCursor(purchase);
-            if (purchase != null && purchase.moveToFirst()) {
-                mTitleText.setText(purchase.getString(
-                        purchase.getColumnIndexOrThrow(LedgerDbAdapter.KEY_TITLE)));
-                mDescriptionText.setText(purchase.getString(
-                        purchase.getColumnIndexOrThrow(LedgerDbAdapter.KEY_DESCRIPTION)));
-                mAmountText.setText(purchase.getString(
-                        purchase.getColumnIndexOrThrow(LedgerDbAdapter.KEY_AMOUNT)));
-                String text = (purchase.getString(
-                        purchase.getColumnIndexOrThrow(LedgerDbAdapter.KEY_MEMBER)));
-                int offset = mDbHelper.getCountBefore(mLedgerId);
-                mSpinner.setSelection(Integer.valueOf(text) - 1 - offset);
+            Purchase purchase = mDbHelper.getPurchase(mRowId);
+            if (purchase != null) {
+                mTitleText.setText(purchase.title);
+                mDescriptionText.setText(purchase.description);
+                mAmountText.setText(String.valueOf(purchase.amount));
+                mCurrencyText.setText(purchase.currency);
+                mCategoryText.setText(purchase.category);
+                selectMember(mSpinner, purchase.memberId);
+                mReceipt = purchase.receipt;
             }
         }
+        ReceiptStore.getInstance(this).loadThumbnail(mReceipt, mReceiptView);
     }
 
-        @Override
+    // Select the member by id; a member missing from the roster leaves the selection alone
+    private void selectMember(Spinner spinner, long memberId) {
+        int position = mRoster.indexOf(memberId);
+        if (position != -1) {
+            spinner.setSelection(position);
+        }
+    }
+
+    @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         saveState();
@@ -133,14 +233,34 @@ public class PurchaseEdit extends Activity {
         String description = mDescriptionText.getText().toString();
         String roommate = mSpinner.getSelectedItem().toString();
         double amount = Double.parseDouble(mAmountText.getText().toString());
+        String currency = mCurrencyText.getText().toString();
+        String category = mCategoryText.getText().toString().trim();
 
         if (mRowId == null) {
-            long id = mDbHelper.createPurchase(title, roommate, description, amount, mLedgerId);
+            String period = getSelectedPeriod();
+            long id = period == null
+                    ? mDbHelper.createPurchase(title, roommate, description, amount, currency,
+                    category, mLedgerId)
+                    : mDbHelper.createRecurringPurchase(title, roommate, description, amount,
+                    currency, category, period, mLedgerId);
             if (id > 0) {
                 mRowId = id;
             }
         } else {
-            mDbHelper.updatePurchase(title, roommate, description, amount, mRowId, mLedgerId);
+            mDbHelper.updatePurchase(title, roommate, description, amount, currency, category,
+                    mRowId, mLedgerId);
+        }
+    }
+
+    // Positions of the repeat_periods array: does not repeat, weekly, monthly
+    private String getSelectedPeriod() {
+        switch (mRepeatSpinner.getSelectedItemPosition()) {
+            case 1:
+                return RecurringDbAdapter.PERIOD_WEEKLY;
+            case 2:
+                return RecurringDbAdapter.PERIOD_MONTHLY;
+            default:
+                return null;
         }
     }
 }
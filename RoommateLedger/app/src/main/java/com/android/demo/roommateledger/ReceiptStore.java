@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Receipt photos of purchases. A photo is copied into the receipts directory
+ * of the app and the purchase only keeps its file name in the receipt column.
+ * <p/>
+ * Lists show receipts as thumbnails, which are never decoded on the main
+ * thread. A thumbnail is downsampled from the photo on a background thread
+ * and cached at two levels: in memory, in an LruCache holding at most
+ * 1/MEMORY_SHARE of the heap, and on disk, as small JPEGs in the cache
+ * directory holding at most DISK_BUDGET_BYTES. Scrolling back to a row takes
+ * the bitmap from memory, and reopening a ledger reads the small file rather
+ * than decoding the photo again.
+ */
+public class ReceiptStore {
+    private static final String TAG = "ReceiptStore";
+
+    private static final int MEMORY_SHARE = 8;
+    public static final long DISK_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final int THUMBNAIL_QUALITY = 80;
+    private static final int COPY_BUFFER_BYTES = 8192;
+
+    // Receipts are referenced from the database only after they are copied,
+    // so the sweep leaves files this recent alone
+    private static final long SWEEP_MIN_AGE_MS = AlarmManager.INTERVAL_DAY;
+
+    private static ReceiptStore sInstance;
+
+    private final Context mContext;
+    private final File mReceiptDir;
+    private final File mThumbnailDir;
+    private final int mThumbnailSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    // One thread, so thumbnails load in the order rows are bound and the disk
+    // cache is only written from here
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ReceiptStore(Context context) {
+        mContext = context.getApplicationContext();
+        mReceiptDir = new File(mContext.getFilesDir(), "receipts");
+        mThumbnailDir = new File(mContext.getCacheDir(), "receipt_thumbnails");
+        mThumbnailSize = mContext.getResources().getDimensionPixelSize(
+                R.dimen.receipt_thumbnail_size);
+        int budget = (int) (Runtime.getRuntime().maxMemory() / MEMORY_SHARE);
+        mMemoryCache = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(String name, Bitmap thumbnail) {
+                return thumbnail.getByteCount();
+            }
+        };
+    }
+
+    public static synchronized ReceiptStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ReceiptStore(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Copy the photo at the given uri into the receipts directory. Reads the
+     * whole photo, so call it off the main thread.
+     *
+     * @return the file name to store in the purchase's receipt column
+     * @throws IOException if the photo could not be read or written
+     */
+    public String importReceipt(Uri uri) throws IOException {
+        if (!mReceiptDir.isDirectory() && !mReceiptDir.mkdirs()) {
+            throw new IOException("Cannot create " + mReceiptDir);
+        }
+        String name = UUID.randomUUID().toString() + ".jpg";
+        File file = new File(mReceiptDir, name);
+        InputStream in = mContext.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_BYTES];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        return name;
+    }
+
+    /**
+     * Return the photo file of the given receipt.
+     */
+    public File getReceiptFile(String name) {
+        return new File(mReceiptDir, name);
+    }
+
+    /**
+     * Delete the photo and the cached thumbnail of the given receipt.
+     */
+    public void delete(String name) {
+        mMemoryCache.remove(name);
+        new File(mThumbnailDir, name).delete();
+        getReceiptFile(name).delete();
+    }
+
+    /**
+     * Show the thumbnail of the given receipt in the view, which is hidden
+     * when name is null. A thumbnail that is not in memory is loaded in the
+     * background; if the view was bound to another receipt meanwhile, as list
+     * rows are when they are recycled, the result is only cached.
+     * <p/>
+     * Call on the main thread.
+     */
+    public void loadThumbnail(String name, ImageView view) {
+        view.setTag(name);
+        if (name == null) {
+            view.setImageDrawable(null);
+            view.setVisibility(View.GONE);
+            return;
+        }
+        view.setVisibility(View.VISIBLE);
+        Bitmap thumbnail = mMemoryCache.get(name);
+        if (thumbnail != null) {
+            view.setImageBitmap(thumbnail);
+            return;
+        }
+        view.setImageDrawable(null);
+        mExecutor.execute(new LoadThumbnail(name, view));
+    }
+
+    private class LoadThumbnail implements Runnable {
+        private final String mName;
+        private final WeakReference<ImageView> mView;
+
+        LoadThumbnail(String name, ImageView view) {
+            mName = name;
+            mView = new WeakReference<ImageView>(view);
+        }
+
+        public void run() {
+            // Rows scrolled past before their turn came are skipped
+            if (!isBoundTo(mView.get(), mName)) {
+                return;
+            }
+            final Bitmap thumbnail = getThumbnail(mName);
+            if (thumbnail == null) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                public void run() {
+                    ImageView view = mView.get();
+                    if (isBoundTo(view, mName)) {
+                        view.setImageBitmap(thumbnail);
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean isBoundTo(ImageView view, String name) {
+        return view != null && name.equals(view.getTag());
+    }
+
+    // Runs on the executor: from memory, then disk, then decoding the photo
+    private Bitmap getThumbnail(String name) {
+        Bitmap thumbnail = mMemoryCache.get(name);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        File cached = new File(mThumbnailDir, name);
+        if (cached.isFile()) {
+            thumbnail = BitmapFactory.decodeFile(cached.getPath());
+            // Recently used thumbnails are trimmed last
+            cached.setLastModified(System.currentTimeMillis());
+        }
+        if (thumbnail == null) {
+            thumbnail = decodeThumbnail(getReceiptFile(name));
+            if (thumbnail == null) {
+                Log.w(TAG, "Cannot decode receipt " + name);
+                return null;
+            }
+            writeThumbnail(cached, thumbnail);
+        }
+        mMemoryCache.put(name, thumbnail);
+        return thumbnail;
+    }
+
+    /*
+     * Decode the photo at a power of two sample size, the largest that keeps
+     * both sides at least mThumbnailSize, then scale it so its shorter side is
+     * mThumbnailSize. Only the sampled bitmap is ever allocated, never the full
+     * photo.
+     */
+    private Bitmap decodeThumbnail(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sample = 1;
+        while (options.outWidth / (sample * 2) >= mThumbnailSize
+                && options.outHeight / (sample * 2) >= mThumbnailSize) {
+            sample *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        Bitmap sampled = BitmapFactory.decodeFile(file.getPath(), options);
+        if (sampled == null) {
+            return null;
+        }
+        int shorter = Math.min(sampled.getWidth(), sampled.getHeight());
+        if (shorter <= mThumbnailSize) {
+            return sampled;
+        }
+        Bitmap thumbnail = Bitmap.createScaledBitmap(sampled,
+                sampled.getWidth() * mThumbnailSize / shorter,
+                sampled.getHeight() * mThumbnailSize / shorter, true);
+        if (thumbnail != sampled) {
+            sampled.recycle();
+        }
+        return thumbnail;
+    }
+
+    private void writeThumbnail(File file, Bitmap thumbnail) {
+        if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+            return;
+        }
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot cache thumbnail " + file, e);
+            file.delete();
+            return;
+        }
+        trimDiskCache();
+    }
+
+    // Delete the least recently used thumbnails until the cache fits its budget
+    private void trimDiskCache() {
+        File[] files = mThumbnailDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_BUDGET_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > DISK_BUDGET_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * Delete the receipts no purchase refers to any more, left behind by
+     * deleted purchases and ledgers, replaced receipts and purchases a restore
+     * did not bring back.
+     *
+     * @return the number of receipts deleted
+     */
+    public int sweep(SQLiteDatabase db) {
+        File[] files = mReceiptDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Cursor cursor = db.rawQuery("SELECT receipt FROM purchases WHERE receipt IS NOT NULL",
+                null);
+        final Set<String> referenced = new HashSet<String>();
+        CursorHelper.forEach(cursor, new CursorHelper.RowVisitor() {
+            @Override
+            protected void visit(Cursor cursor) {
+                referenced.add(cursor.getString(0));
+            }
+        });
+        long cutoff = System.currentTimeMillis() - SWEEP_MIN_AGE_MS;
+        int swept = 0;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < cutoff) {
+                delete(file.getName());
+                swept++;
+            }
+        }
+        return swept;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.demo.roommateledger.LedgerContract.Purchases;
+import com.android.demo.roommateledger.LedgerContract.RecurringPurchases;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Recurring purchases database access helper class. A recurring purchase is
+ * stored once as a rule; its occurrences are written to the purchases table
+ * lazily, by materialize(), and only up to the date a list, total or balance
+ * query is asking about. Rules that have nothing due are skipped through the
+ * next_date index, so a rule costs nothing until one of its dates is reached.
+ */
+public class RecurringDbAdapter {
+
+    public static final String KEY_ROWID = RecurringPurchases.ID;
+    public static final String KEY_LEDGER_ID = RecurringPurchases.LEDGER_ID;
+    public static final String KEY_MEMBER_ID = RecurringPurchases.MEMBER_ID;
+    public static final String KEY_TITLE = RecurringPurchases.TITLE;
+    public static final String KEY_DESCRIPTION = RecurringPurchases.DESCRIPTION;
+    public static final String KEY_AMOUNT = RecurringPurchases.AMOUNT;
+    public static final String KEY_CURRENCY = RecurringPurchases.CURRENCY;
+    public static final String KEY_CATEGORY = RecurringPurchases.CATEGORY;
+    public static final String KEY_PERIOD = RecurringPurchases.PERIOD;
+    public static final String KEY_START_DATE = RecurringPurchases.START_DATE;
+    public static final String KEY_END_DATE = RecurringPurchases.END_DATE;
+    public static final String KEY_OCCURRENCES = RecurringPurchases.OCCURRENCES;
+    public static final String KEY_NEXT_DATE = RecurringPurchases.NEXT_DATE;
+    public static final String KEY_RECURRING_ID = Purchases.RECURRING_ID;
+    public static final String KEY_PURCHASE_DATE = Purchases.PURCHASE_DATE;
+
+    public static final String PERIOD_WEEKLY = "weekly";
+    public static final String PERIOD_MONTHLY = "monthly";
+
+    /** next_date of a rule that has no occurrences left. */
+    private static final String NEVER = "9999-12-31";
+
+    private static final String TAG = "RecurringDbAdapter";
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private OplogDbAdapter mOplogDbHelper;
+
+    private static final String RECURRING_DATABASE_TABLE = RecurringPurchases.TABLE;
+    private static final String PURCHASES_DATABASE_TABLE = Purchases.TABLE;
+
+    private final Context mCtx;
+
+    /**
+     * Constructor - takes the context to allow the database to be
+     * opened/created
+     *
+     * @param ctx the Context within which to work
+     */
+    public RecurringDbAdapter(Context ctx) {
+        this.mCtx = ctx;
+    }
+
+    /**
+     * Open the database using DatabaseHelper static instance
+     *
+     * @return this (self reference, allowing this to be chained in an
+     * initialization call)
+     * @throws android.database.SQLException if the database could be neither opened or created
+     */
+    public RecurringDbAdapter open() throws SQLException {
+        mDbHelper = DatabaseHelper.getInstance(mCtx);
+        mDb = mDbHelper.getWritableDatabase();
+        mOplogDbHelper = new OplogDbAdapter(mCtx).open();
+        return this;
+    }
+
+    public void close() {
+        mDbHelper.close();
+    }
+
+    /**
+     * Return today's date in the yyyy-MM-dd form used by the date columns.
+     */
+    public static String today() {
+        return newDateFormat().format(new Date());
+    }
+
+    /**
+     * Create a new recurring purchase rule. No occurrence is written until
+     * materialize() is asked for a date on or after start_date.
+     *
+     * @param period     PERIOD_WEEKLY or PERIOD_MONTHLY
+     * @param start_date date of the first occurrence, yyyy-MM-dd
+     * @param end_date   last date an occurrence may fall on, or null for no end
+     * @return rowId or -1 if failed
+     */
+    public long createRule(long ledger_id, long member_id, String title, String description,
+                           double amount, String currency, String category, String period,
+                           String start_date, String end_date) {
+        ContentValues initialValues = new ContentValues();
+        initialValues.put(KEY_LEDGER_ID, ledger_id);
+        initialValues.put(KEY_MEMBER_ID, member_id);
+        initialValues.put(KEY_TITLE, title);
+        initialValues.put(KEY_DESCRIPTION, description);
+        initialValues.put(KEY_AMOUNT, amount);
+        initialValues.put(KEY_CURRENCY, currency);
+        initialValues.put(KEY_CATEGORY, category);
+        initialValues.put(KEY_PERIOD, period);
+        initialValues.put(KEY_START_DATE, start_date);
+        initialValues.put(KEY_END_DATE, end_date);
+        initialValues.put(KEY_OCCURRENCES, 0);
+        initialValues.put(KEY_NEXT_DATE, start_date);
+
+        return mDb.insert(RECURRING_DATABASE_TABLE, null, initialValues);
+    }
+
+    /**
+     * Stop the rule that produced the given purchase from producing occurrences
+     * after today. Occurrences already written are kept.
+     *
+     * @param purchase_id id of a purchase materialized from a rule
+     * @return true if a rule was ended, false if the purchase is not recurring
+     */
+    public boolean endRuleOfPurchase(long purchase_id) {
+        ContentValues args = new ContentValues();
+        args.put(KEY_END_DATE, today());
+        args.put(KEY_NEXT_DATE, NEVER);
+        return mDb.update(RECURRING_DATABASE_TABLE, args, KEY_ROWID + " = (SELECT " +
+                        KEY_RECURRING_ID + " FROM " + PURCHASES_DATABASE_TABLE + " WHERE " +
+                        Purchases.ID + " = ?)",
+                new String[]{String.valueOf(purchase_id)}) > 0;
+    }
+
+    /**
+     * Write every occurrence dated on or before the given date that has not been
+     * written yet.
+     *
+     * @param ledger_id the ledger to materialize, or ChangeBus.ALL_LEDGERS
+     * @param through   the last date being queried, yyyy-MM-dd
+     * @return the number of purchases written
+     */
+    public int materialize(long ledger_id, String through) {
+        String selection = KEY_NEXT_DATE + " <= ?";
+        String[] selectionArgs = new String[]{through};
+        if (ledger_id != ChangeBus.ALL_LEDGERS) {
+            selection = KEY_LEDGER_ID + " = ? AND " + selection;
+            selectionArgs = new String[]{String.valueOf(ledger_id), through};
+        }
+        int written = 0;
+        Set<Long> changedLedgers = new HashSet<Long>();
+        Cursor rules = mDb.query(RECURRING_DATABASE_TABLE, new String[]{KEY_ROWID,
+                        KEY_LEDGER_ID, KEY_MEMBER_ID, KEY_TITLE, KEY_DESCRIPTION, KEY_AMOUNT,
+                        KEY_CATEGORY, KEY_PERIOD, KEY_START_DATE, KEY_END_DATE, KEY_OCCURRENCES,
+                        KEY_CURRENCY},
+                selection, selectionArgs, null, null, null);
+        try {
+            // The common case: nothing is due, so no write transaction is started
+            if (rules.getCount() == 0) {
+                return 0;
+            }
+            mDb.beginTransaction();
+            try {
+                while (rules.moveToNext()) {
+                    long ruleId = rules.getLong(0);
+                    String endDate = rules.isNull(9) ? null : rules.getString(9);
+                    int occurrences = rules.getInt(10);
+                    String date = occurrenceDate(rules.getString(8), rules.getString(7), occurrences);
+                    while (date.compareTo(through) <= 0
+                            && (endDate == null || date.compareTo(endDate) <= 0)) {
+                        ContentValues purchase = new ContentValues();
+                        purchase.put(KEY_LEDGER_ID, rules.getLong(1));
+                        purchase.put(KEY_MEMBER_ID, rules.getLong(2));
+                        purchase.put(KEY_TITLE, rules.getString(3));
+                        purchase.put(KEY_DESCRIPTION, rules.getString(4));
+                        purchase.put(KEY_AMOUNT, rules.getDouble(5));
+                        purchase.put(KEY_CATEGORY, rules.getString(6));
+                        purchase.put(KEY_CURRENCY, rules.getString(11));
+                        purchase.put(KEY_PURCHASE_DATE, date);
+                        purchase.put(KEY_RECURRING_ID, ruleId);
+                        long purchase_id = mDb.insert(PURCHASES_DATABASE_TABLE, null, purchase);
+                        // Rules stay on this device; other devices receive the occurrences
+                        mOplogDbHelper.recordPurchase(purchase_id, OplogDbAdapter.OP_CREATE);
+                        written++;
+                        occurrences++;
+                        date = occurrenceDate(rules.getString(8), rules.getString(7), occurrences);
+                    }
+                    ContentValues args = new ContentValues();
+                    args.put(KEY_OCCURRENCES, occurrences);
+                    args.put(KEY_NEXT_DATE,
+                            endDate == null || date.compareTo(endDate) <= 0 ? date : NEVER);
+                    mDb.update(RECURRING_DATABASE_TABLE, args, KEY_ROWID + "=" + ruleId, null);
+                    if (occurrences > rules.getInt(10)) {
+                        changedLedgers.add(rules.getLong(1));
+                    }
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        } finally {
+            rules.close();
+        }
+        if (written > 0) {
+            for (long changed : changedLedgers) {
+                ChangeBus.getInstance().publish(changed, ChangeBus.TABLE_PURCHASES,
+                        ChangeBus.ANY_ROW);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Return the id of the earliest purchase written for the given rule, or -1.
+     */
+    public long getFirstOccurrenceId(long rule_id) {
+        Cursor cursor = mDb.query(PURCHASES_DATABASE_TABLE, new String[]{KEY_ROWID},
+                KEY_RECURRING_ID + " = ?", new String[]{String.valueOf(rule_id)},
+                null, null, KEY_PURCHASE_DATE + ", " + KEY_ROWID, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the date of the n-th (zero based) occurrence of a rule. Monthly rules
+     * are counted from the start date so a rule starting on the 31st falls on the
+     * last day of shorter months without drifting.
+     */
+    static String occurrenceDate(String start_date, String period, int n) {
+        SimpleDateFormat format = newDateFormat();
+        Calendar calendar = Calendar.getInstance();
+        try {
+            calendar.setTime(format.parse(start_date));
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Bad start date " + start_date, e);
+        }
+        if (PERIOD_WEEKLY.equals(period)) {
+            calendar.add(Calendar.DAY_OF_MONTH, 7 * n);
+        } else {
+            calendar.add(Calendar.MONTH, n);
+        }
+        return format.format(calendar.getTime());
+    }
+
+    private static SimpleDateFormat newDateFormat() {
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    }
+}
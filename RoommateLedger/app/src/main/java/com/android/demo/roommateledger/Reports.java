@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.app.ListActivity;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.widget.SimpleCursorAdapter;
+
+public class Reports extends ListActivity {
+    private ReportsDbAdapter mDbHelper;
+    private Long mLedgerId;
+
+    /** Called when the activity is first created. */
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        mLedgerId = (savedInstanceState == null) ? null :
+                (Long) savedInstanceState.getSerializable(LedgerDbAdapter.KEY_ROWID);
+        if (mLedgerId == null) {
+            Bundle extras = getIntent().getExtras();
+            mLedgerId = extras != null ? extras.getLong(LedgerDbAdapter.KEY_ROWID)
+                    : null;
+        }
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.report_list);
+        mDbHelper = new ReportsDbAdapter(this);
+        mDbHelper.open();
+        fillData();
+    }
+
+    // Reads only the precomputed rollups, never the purchases themselves
+    private void fillData() {
+        Cursor rollupsCursor = mDbHelper.fetchSpendingByMonthAndCategory(mLedgerId);
+        startManagingCursor(rollupsCursor);
+
+        String[] from = new String[]{ReportsDbAdapter.KEY_MEMBER, ReportsDbAdapter.KEY_MONTH,
+                ReportsDbAdapter.KEY_CATEGORY, ReportsDbAdapter.KEY_TOTAL,
+                ReportsDbAdapter.KEY_CURRENCY};
+
+        int[] to = new int[]{R.id.report_member, R.id.report_month, R.id.report_category,
+                R.id.report_total, R.id.report_currency};
+
+        SimpleCursorAdapter rollups =
+                new SimpleCursorAdapter(this, R.layout.report_row, rollupsCursor, from, to);
+        setListAdapter(rollups);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Spending report database access helper class. Reads the per member, month and
+ * category totals kept in the spending_rollups table. The rollups are maintained
+ * by triggers on every purchase write, so the cost of a report depends only on
+ * the number of (member, month, category) groups and never on the number of
+ * purchases in the ledger.
+ */
+public class ReportsDbAdapter {
+
+    public static final String KEY_ROWID = "_id";
+    public static final String KEY_MEMBER = "member";
+    public static final String KEY_MONTH = "month";
+    public static final String KEY_CATEGORY = "category";
+    public static final String KEY_TOTAL = "total";
+    public static final String KEY_CURRENCY = "currency";
+    public static final String KEY_PURCHASE_COUNT = "purchase_count";
+
+    private static final String TAG = "ReportsDbAdapter";
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    private final Context mCtx;
+
+    /**
+     * Constructor - takes the context to allow the database to be
+     * opened/created
+     *
+     * @param ctx the Context within which to work
+     */
+    public ReportsDbAdapter(Context ctx) {
+        this.mCtx = ctx;
+    }
+
+    /**
+     * Open the database using DatabaseHelper static instance
+     *
+     * @return this (self reference, allowing this to be chained in an
+     * initialization call)
+     * @throws android.database.SQLException if the database could be neither opened or created
+     */
+    public ReportsDbAdapter open() throws SQLException {
+        mDbHelper = DatabaseHelper.getInstance(mCtx);
+        mDb = mDbHelper.getWritableDatabase();
+        return this;
+    }
+
+    public void close() {
+        mDbHelper.close();
+    }
+
+    /**
+     * Return a Cursor over the spending of every member of the given ledger, broken
+     * down by month and category, newest month first. Totals are kept separately
+     * for each currency the purchases were made in.
+     *
+     * @param ledger_id ID of ledger in which to get spending
+     * @return Cursor over the rollup rows of the ledger
+     */
+    public Cursor fetchSpendingByMonthAndCategory(long ledger_id) {
+        return mDb.rawQuery("SELECT r.rowid AS _id, m.member, r.month, r.category, r.total, " +
+                        "r.currency, r.purchase_count FROM spending_rollups r " +
+                        "JOIN members m ON m._id = r.member_id " +
+                        "WHERE r.ledger_id = ? ORDER BY r.month DESC, m.member, r.category, r.currency",
+                new String[]{String.valueOf(ledger_id)});
+    }
+}
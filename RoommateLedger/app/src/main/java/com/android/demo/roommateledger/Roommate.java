@@ -7,6 +7,7 @@ public class Roommate {
     public int id;
     public String name;
     public double balance;
+    public String currency;
 
     public Roommate() {
 
@@ -14,6 +15,6 @@ public class Roommate {
 
     @Override
     public String toString() {
-        return this.name + ":   " + "$" + balance;
+        return this.name + ":   " + balance + " " + currency;
     }
 }
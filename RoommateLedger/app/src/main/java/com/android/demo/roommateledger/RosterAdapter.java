@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Backs the member list of LedgerEdit. Rows are recycled and hold their views
+ * in a ViewHolder, so the editor stays smooth with hundreds of members. Member
+ * names identify members across devices, so blank and duplicate names are
+ * refused, and each row remembers the name it was loaded with so a renamed
+ * member can be told apart from one removed and another added.
+ */
+public class RosterAdapter extends BaseAdapter {
+    private final LayoutInflater mInflater;
+    private final List<String> mMembers = new ArrayList<String>();
+    // The name each row was loaded with, null for members added since
+    private final List<String> mOriginals = new ArrayList<String>();
+    private final Set<String> mNames = new HashSet<String>();
+
+    // Removes the member of the row the button belongs to
+    private final View.OnClickListener mRemoveListener = new View.OnClickListener() {
+        public void onClick(View view) {
+            remove((Integer) view.getTag());
+        }
+    };
+
+    private static class ViewHolder {
+        TextView name;
+        View remove;
+    }
+
+    public RosterAdapter(Context context) {
+        mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+    }
+
+    @Override
+    public int getCount() {
+        return mMembers.size();
+    }
+
+    public Object getItem(int position) {
+        return mMembers.get(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.member_row, parent, false);
+            holder = new ViewHolder();
+            holder.name = (TextView) convertView.findViewById(R.id.member_name);
+            holder.remove = convertView.findViewById(R.id.remove_member);
+            holder.remove.setOnClickListener(mRemoveListener);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        holder.name.setText(mMembers.get(position));
+        holder.remove.setTag(position);
+        return convertView;
+    }
+
+    /**
+     * Replace the roster with the given member names.
+     */
+    public void setMembers(List<String> members) {
+        mMembers.clear();
+        mOriginals.clear();
+        mNames.clear();
+        for (String member : members) {
+            if (mNames.add(member)) {
+                mMembers.add(member);
+                mOriginals.add(member);
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Add a member at the end of the roster.
+     *
+     * @return false if the name is blank or already in the roster
+     */
+    public boolean add(String member) {
+        member = member.trim();
+        if (member.length() == 0 || !mNames.add(member)) {
+            return false;
+        }
+        mMembers.add(member);
+        mOriginals.add(null);
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Give the member at the given position a new name.
+     *
+     * @return false if the name is blank or another member already has it
+     */
+    public boolean rename(int position, String member) {
+        member = member.trim();
+        if (member.equals(mMembers.get(position))) {
+            return true;
+        }
+        if (member.length() == 0 || !mNames.add(member)) {
+            return false;
+        }
+        mNames.remove(mMembers.set(position, member));
+        notifyDataSetChanged();
+        return true;
+    }
+
+    public void remove(int position) {
+        mNames.remove(mMembers.remove(position));
+        mOriginals.remove(position);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Return a copy of the member names in roster order.
+     */
+    public List<String> getMembers() {
+        return new ArrayList<String>(mMembers);
+    }
+
+    /**
+     * Return the loaded names of the renamed members mapped to their new names.
+     */
+    public Map<String, String> getRenames() {
+        Map<String, String> renames = new LinkedHashMap<String, String>();
+        for (int i = 0; i < mMembers.size(); i++) {
+            String original = mOriginals.get(i);
+            if (original != null && !original.equals(mMembers.get(i))) {
+                renames.put(original, mMembers.get(i));
+            }
+        }
+        return renames;
+    }
+}
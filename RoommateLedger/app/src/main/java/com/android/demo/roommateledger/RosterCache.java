@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Process wide cache of ledger rosters. Every screen and adapter asking for the
+ * members of a ledger gets the same immutable Roster until the members change.
+ * The member triggers bump ledgers.roster_version on every insert and delete,
+ * so a lookup costs one primary key read of the version, and the members are
+ * only queried again when it differs from the cached one.
+ * <p/>
+ * Safe to use from any thread.
+ */
+public class RosterCache {
+
+    // Rosters of the ledgers used most recently
+    private static final int MAX_LEDGERS = 16;
+
+    static final String VERSION_QUERY =
+            "SELECT roster_version FROM ledgers WHERE _id = ?";
+
+    // Version and members are read in one statement so they always agree
+    static final String ROSTER_QUERY =
+            "SELECT l.roster_version, m._id, m.member FROM ledgers l " +
+                    "LEFT JOIN members m ON m.ledger_id = l._id WHERE l._id = ? ORDER BY m._id";
+
+    private static RosterCache sInstance;
+
+    private final LruCache<Long, Roster> mRosters = new LruCache<Long, Roster>(MAX_LEDGERS);
+
+    /**
+     * Immutable snapshot of the members of one ledger, in the order they were
+     * added. Positions match those of a spinner bound to getNames(). Member ids
+     * ascend with the positions, so a position is found by binary search.
+     */
+    public static final class Roster {
+        public final long ledgerId;
+        public final long version;
+        private final long[] mIds;
+        private final List<String> mNames;
+
+        Roster(long ledgerId, long version, List<Long> ids, List<String> names) {
+            this.ledgerId = ledgerId;
+            this.version = version;
+            mIds = new long[ids.size()];
+            for (int i = 0; i < mIds.length; i++) {
+                mIds[i] = ids.get(i);
+            }
+            mNames = Collections.unmodifiableList(names);
+        }
+
+        /** Return the member names; the list cannot be modified. */
+        public List<String> getNames() {
+            return mNames;
+        }
+
+        /** Return the member id at the given position. */
+        public long getId(int position) {
+            return mIds[position];
+        }
+
+        /**
+         * Return the position of the member with the given id, or -1 if the
+         * member is not in this roster.
+         */
+        public int indexOf(long memberId) {
+            int position = Arrays.binarySearch(mIds, memberId);
+            return position < 0 ? -1 : position;
+        }
+
+        public int size() {
+            return mIds.length;
+        }
+    }
+
+    public static synchronized RosterCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new RosterCache();
+        }
+        return sInstance;
+    }
+
+    private RosterCache() {
+    }
+
+    /**
+     * Return the roster of the given ledger, reading it from the database only
+     * if its members changed since it was cached. A missing ledger has an empty
+     * roster with version -1.
+     */
+    public Roster get(SQLiteDatabase db, long ledgerId) {
+        String[] args = new String[]{String.valueOf(ledgerId)};
+        long version = -1;
+        Cursor cursor = db.rawQuery(VERSION_QUERY, args);
+        try {
+            if (cursor.moveToFirst()) {
+                version = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        Roster roster = mRosters.get(ledgerId);
+        if (roster != null && roster.version == version) {
+            return roster;
+        }
+        if (version == -1) {
+            mRosters.remove(ledgerId);
+            return new Roster(ledgerId, -1, new ArrayList<Long>(), new ArrayList<String>());
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        List<String> names = new ArrayList<String>();
+        cursor = db.rawQuery(ROSTER_QUERY, args);
+        try {
+            while (cursor.moveToNext()) {
+                version = cursor.getLong(0);
+                if (!cursor.isNull(1)) {
+                    ids.add(cursor.getLong(1));
+                    names.add(cursor.getString(2));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        roster = new Roster(ledgerId, version, ids, names);
+        mRosters.put(ledgerId, roster);
+        return roster;
+    }
+
+    /**
+     * Forget every cached roster. Needed when ledgers are replaced wholesale,
+     * as their versions start over.
+     */
+    public void clear() {
+        mRosters.evictAll();
+    }
+}
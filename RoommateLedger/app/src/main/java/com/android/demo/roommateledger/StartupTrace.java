@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.demo.roommateledger;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Times the cold start of the app, from Home.onCreate() to its first frame
+ * (time to first frame) and to the first frame listing the ledgers (time to
+ * data). Only the first launch of the process is traced. Each time is logged,
+ * with a warning in debug builds when it goes over its budget; StartupTraceTest
+ * fails when a launch of Home does, so work creeping back onto the main thread
+ * before the first frame breaks the build.
+ * <p/>
+ * Called on the main thread only.
+ */
+public class StartupTrace {
+
+    public static final long FIRST_FRAME_BUDGET_MS = 250;
+    public static final long DATA_BUDGET_MS = 1000;
+
+    private static final String TAG = "StartupTrace";
+
+    private static long sStart = -1;
+    private static long sFirstFrame = -1;
+    private static long sData = -1;
+    private static boolean sTracing;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Start the trace. Does nothing after the first launch of the process.
+     */
+    public static void begin() {
+        if (sStart == -1) {
+            sStart = SystemClock.uptimeMillis();
+            sTracing = true;
+        }
+    }
+
+    /**
+     * Record the first frame drawn with the given view attached.
+     */
+    public static void watchFirstFrame(final View view) {
+        if (!sTracing) {
+            return;
+        }
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (sTracing && sFirstFrame == -1) {
+                    sFirstFrame = SystemClock.uptimeMillis() - sStart;
+                    check("first frame", sFirstFrame, FIRST_FRAME_BUDGET_MS);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Record that the ledgers are shown, which ends the trace.
+     */
+    public static void dataShown() {
+        if (!sTracing) {
+            return;
+        }
+        sTracing = false;
+        sData = SystemClock.uptimeMillis() - sStart;
+        check("data", sData, DATA_BUDGET_MS);
+    }
+
+    /** Milliseconds from launch to the first frame, or -1 if not reached yet. */
+    public static long getTimeToFirstFrame() {
+        return sFirstFrame;
+    }
+
+    /** Milliseconds from launch to the ledgers being shown, or -1. */
+    public static long getTimeToData() {
+        return sData;
+    }
+
+    private static void check(String what, long millis, long budget) {
+        if (millis > budget && BuildConfig.DEBUG) {
+            Log.w(TAG, "Time to " + what + " " + millis + "ms is over its " + budget +
+                    "ms budget");
+        } else {
+            Log.i(TAG, "Time to " + what + " " + millis + "ms");
+        }
+    }
+}